@@ -0,0 +1,40 @@
+package com.google.closure.benchmarks;
+
+import com.google.closure.benchmarks.Catalogs.Catalog;
+import com.google.closure.benchmarks.Catalogs.Product;
+
+/**
+ * Representative data for the benchmark templates.
+ * Content is deterministic so that runs are comparable.
+ */
+final class Fixtures {
+  private Fixtures() {
+    // Static API
+  }
+
+  private static final String[] TAGS = {
+    "new", "sale", "outdoor", "kitchen", "<gift>", "r&d",
+  };
+
+  /** A page of n products with text that needs escaping. */
+  static Catalog catalog(int n) {
+    Catalog.Builder b = Catalog.newBuilder()
+        .setTitle("Results for \"garden & patio\"")
+        .setQuery("garden & patio");
+    for (int i = 0; i < n; ++i) {
+      Product.Builder p = Product.newBuilder()
+          .setName("Product #" + i + " <deluxe>")
+          .setDescription(
+              "A sturdy, weather-resistant item that's ideal for"
+              + " \"everyday\" use.  Model " + (i * 7919 % 10007) + ".")
+          .setUrl("/product?id=" + i + "&ref=search")
+          .setPriceCents(199 + (i * 317) % 50000)
+          .setInStock(i % 5 != 0);
+      for (int j = 0, m = i % TAGS.length; j < m; ++j) {
+        p.addTag(TAGS[(i + j) % TAGS.length]);
+      }
+      b.addProduct(p);
+    }
+    return b.build();
+  }
+}
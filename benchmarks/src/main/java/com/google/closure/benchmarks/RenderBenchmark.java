@@ -0,0 +1,112 @@
+package com.google.closure.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.closure.module.ClosureModule;
+import com.google.closure.module.ResponseWriter;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.template.soy.jbcsrc.api.Precompiled;
+import com.google.template.soy.jbcsrc.api.SoySauce;
+import com.google.template.soy.jbcsrc.api.SoySauce.WriteContinuation;
+import com.google.template.soy.shared.SoyCssRenamingMap;
+
+/**
+ * Measures how long it takes to render a page of search results with
+ * templates compiled by the plugin.
+ * <p>
+ * Run via
+ * <pre>
+ * mvn -Pbenchmarks install
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ * </pre>
+ * The {@code gc} profiler reports bytes allocated per render as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+public class RenderBenchmark {
+
+  static final String TEMPLATE_NAME = "com.google.closure.benchmarks.Page";
+
+  /** The number of products on the page. */
+  @Param({ "10", "100" })
+  public int productCount;
+
+  /**
+   * True to render via {@link ResponseWriter#buffered} into a byte stream,
+   * flushing whenever the template yields, instead of into a StringBuilder.
+   */
+  @Param({ "false", "true" })
+  public boolean buffered;
+
+  @Inject
+  @Precompiled
+  SoySauce soySauce;
+
+  @Inject
+  SoyCssRenamingMap cssRenamingMap;
+
+  private ImmutableMap<String, Object> data;
+  private final StringBuilder out = new StringBuilder(1 << 16);
+  private final ByteArrayOutputStream bytes =
+      new ByteArrayOutputStream(1 << 16);
+
+  /** Loads the templates and builds the page data. */
+  @Setup
+  public void setUp() {
+    Guice.createInjector(new ClosureModule()).injectMembers(this);
+    data = ImmutableMap.<String, Object>of(
+        "catalog", Fixtures.catalog(productCount));
+  }
+
+  /**
+   * Renders the page into a reused buffer.
+   *
+   * @return the output so that JMH does not treat the render as dead code.
+   */
+  @Benchmark
+  public Object render() throws IOException {
+    ResponseWriter w;
+    Object output;
+    if (buffered) {
+      bytes.reset();
+      w = ResponseWriter.buffered(bytes);
+      output = bytes;
+    } else {
+      out.setLength(0);
+      w = new ResponseWriter(out);
+      output = out;
+    }
+    WriteContinuation c = soySauce
+        .renderTemplate(TEMPLATE_NAME)
+        .setData(data)
+        .setCssRenamingMap(cssRenamingMap)
+        .render(w);
+    while (!c.result().isDone()) {
+      w.flush();
+      c = c.continueRender();
+    }
+    w.close();
+    return output;
+  }
+}
@@ -0,0 +1,197 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.template.soy.jbcsrc.api.AdvisingAppendable;
+import com.google.template.soy.jbcsrc.api.RenderResult;
+import com.google.template.soy.jbcsrc.api.SoySauce;
+import com.google.template.soy.jbcsrc.api.SoySauce.WriteContinuation;
+
+/**
+ * Renders a template without tying up a thread while the template waits on
+ * data that is still loading or while the client is slow to read.
+ * <p>
+ * JBC-src templates detach when they reach a {@link Future} in their data
+ * that is not yet done.  Instead of blocking on it, this sends the output so
+ * far and resumes rendering on an executor once the future completes.
+ * Output is buffered as UTF-8 and only written when the
+ * {@link OutputChannel channel} is ready; when it is not, rendering pauses
+ * until it is.
+ * <p>
+ * Futures that are {@link ListenableFuture}s resume rendering as soon as they
+ * complete.  Others can only be waited on, which ties up a thread of the
+ * wait executor until they complete.
+ */
+public final class AsyncRenderer {
+  private final Executor executor;
+  private final Executor waitExecutor;
+  private final int softLimit;
+
+  /**
+   * @param executor runs rendering steps.  Steps do not block, so a small
+   *     pool shared with other request work is fine.
+   * @param waitExecutor blocks on futures in template data that are not
+   *     {@link ListenableFuture}s, one thread per future, until they
+   *     complete.  This should not be the executor that runs rendering
+   *     steps or any pool that could be exhausted by slow futures.
+   */
+  public AsyncRenderer(Executor executor, Executor waitExecutor) {
+    this(executor, waitExecutor, ResponseWriter.DEFAULT_SOFT_LIMIT);
+  }
+
+  /**
+   * @param executor runs rendering steps.
+   * @param waitExecutor blocks on futures that are not
+   *     {@link ListenableFuture}s.
+   * @param softLimit the count of buffered bytes after which templates yield
+   *     so the output so far can be sent.
+   * @see #AsyncRenderer(Executor, Executor)
+   */
+  public AsyncRenderer(
+      Executor executor, Executor waitExecutor, int softLimit) {
+    Preconditions.checkArgument(softLimit > 0, "softLimit must be positive");
+    this.executor = Preconditions.checkNotNull(executor);
+    this.waitExecutor = Preconditions.checkNotNull(waitExecutor);
+    this.softLimit = softLimit;
+  }
+
+  /**
+   * Starts rendering to the given channel.
+   * The channel's output stream is neither flushed nor closed.
+   *
+   * @return a future that completes once all output has been written to the
+   *     channel or fails with the reason rendering stopped.
+   *     Cancelling it stops rendering at the next step.
+   */
+  public ListenableFuture<Void> render(
+      final SoySauce.Renderer renderer, OutputChannel channel) {
+    Preconditions.checkNotNull(renderer);
+    return render(
+        new Start() {
+          @Override
+          public WriteContinuation render(AdvisingAppendable out)
+          throws IOException {
+            return renderer.render(out);
+          }
+        },
+        channel);
+  }
+
+  @VisibleForTesting
+  ListenableFuture<Void> render(Start start, OutputChannel channel) {
+    RenderTask task = new RenderTask(start, channel);
+    executor.execute(task);
+    return task.done;
+  }
+
+  /** Starts rendering a template. */
+  @VisibleForTesting
+  interface Start {
+    /** Renders until the template first has to stop. */
+    WriteContinuation render(AdvisingAppendable out) throws IOException;
+  }
+
+  @SuppressWarnings("synthetic-access")
+  final class RenderTask implements Runnable {
+    final Start start;
+    final OutputChannel channel;
+    final Utf8OutputBuffer buffer;
+    final ResponseWriter writer;
+    final SettableFuture<Void> done = SettableFuture.create();
+    /** Keeps rendering off the channel's callback thread. */
+    final Runnable resubmit = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(RenderTask.this);
+      }
+    };
+    private WriteContinuation continuation;
+
+    RenderTask(Start start, OutputChannel channel) {
+      this.start = Preconditions.checkNotNull(start);
+      this.channel = Preconditions.checkNotNull(channel);
+      this.buffer = new Utf8OutputBuffer(
+          channel.getOutputStream(), softLimit, false);
+      this.writer = new ResponseWriter(buffer, Optional.of(buffer));
+    }
+
+    /**
+     * Renders until the template or the channel has to wait, and arranges
+     * for this to run again when it is done waiting.
+     * Only one thread runs this at a time since each run hands off to at
+     * most one callback.
+     */
+    @Override
+    public void run() {
+      if (done.isDone()) {
+        buffer.release();
+        return;
+      }
+      try {
+        while (true) {
+          if (continuation == null) {
+            continuation = start.render(writer);
+          }
+          RenderResult result = continuation.result();
+          switch (result.type()) {
+            case DONE:
+              if (!channelReady()) { return; }
+              buffer.finish();
+              done.set(null);
+              return;
+            case LIMITED:
+              if (!channelReady()) { return; }
+              buffer.writeBuffered();
+              break;
+            case DETACH:
+              if (result.future().isDone()) {
+                // We were resumed, or it completed before we could wait.
+                break;
+              }
+              // Send what we have so the client can start on it while we
+              // wait.
+              if (buffer.bufferedByteCount() != 0 && channel.isReady()) {
+                buffer.writeBuffered();
+              }
+              resumeAfter(result.future());
+              return;
+            default:
+              throw new AssertionError(result.type());
+          }
+          continuation = continuation.continueRender();
+        }
+      } catch (IOException | RuntimeException ex) {
+        buffer.release();
+        done.setException(ex);
+      }
+    }
+
+    /**
+     * True if the channel is ready.  Otherwise arranges to run again when it
+     * is.
+     */
+    private boolean channelReady() throws IOException {
+      if (channel.isReady()) {
+        return true;
+      }
+      channel.whenReady(resubmit);
+      return false;
+    }
+
+    private void resumeAfter(Future<?> f) {
+      ListenableFuture<?> lf = f instanceof ListenableFuture<?>
+          ? (ListenableFuture<?>) f
+          : JdkFutureAdapters.listenInPoolThread(f, waitExecutor);
+      // The template reports failures of the future when it resumes.
+      lf.addListener(this, executor);
+    }
+  }
+}
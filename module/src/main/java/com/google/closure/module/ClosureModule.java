@@ -30,6 +30,9 @@ import com.google.template.soy.types.proto.SoyProtoValueConverter;
 
 /**
  * A guice module that allows using the Closure Templates JBC-src backend.
+ * <p>
+ * Install {@link PrecompiledTemplatesModule} too to load compiled templates
+ * at startup instead of on first use.
  */
 @SuppressWarnings("static-method")
 public final class ClosureModule extends AbstractModule {
@@ -40,12 +43,33 @@ public final class ClosureModule extends AbstractModule {
   public static final String PROTO_DESCRIPTORS_RESOURCE_PATH =
       "/closure/descriptors.pd";
 
+  /**
+   * The resource path to the bundled proto-descriptors in the form read by
+   * {@link ProtoDescriptorIndex}.
+   */
+  public static final String PROTO_DESCRIPTOR_INDEX_RESOURCE_PATH =
+      "/closure/descriptors.pdx";
+
   /**
    * The resource path to the bundled CSS rename map in JSON format.
    */
   public static final String CSS_RENAMING_MAP_RESOURCE_PATH =
       "/closure/css/css-rename-map.json";
 
+  /**
+   * The resource path to the bundled CSS rename map in the compact binary
+   * format read by {@link CssRenamingTable}.
+   */
+  public static final String CSS_RENAMING_TABLE_RESOURCE_PATH =
+      "/closure/css/css-rename-map.bin";
+
+  /**
+   * The resource path to the manifest that maps compiled CSS files to their
+   * critical and deferred parts.
+   */
+  public static final String CRITICAL_CSS_MANIFEST_RESOURCE_PATH =
+      "/closure/css/critical-css-manifest.json";
+
   @Override
   protected void configure() {
     // This installs all the core plugins and the apicallscope dependencies.
@@ -53,7 +77,7 @@ public final class ClosureModule extends AbstractModule {
 
     bind(SoyValueConverter.class).to(SoyValueHelper.class).in(Singleton.class);
     Multibinder.newSetBinder(binder(), SoyTypeProvider.class)
-        .addBinding().to(SoyProtoTypeProvider.class);
+        .addBinding().to(LazyProtoTypeProvider.class);
   }
 
   /**
@@ -71,10 +95,24 @@ public final class ClosureModule extends AbstractModule {
     return ImmutableList.<SoyCustomValueConverter>of(protoConverter);
   }
 
+  /**
+   * Resolves proto names in Soy code to protobuf definitions bundled with the
+   * application JAR, building descriptors only for types that are used.
+   */
+  @Provides
+  @Singleton
+  public LazyProtoTypeProvider provideLazyProtoTypeProvider()
+  throws IOException {
+    return LazyProtoTypeProvider.fromResources();
+  }
+
   /**
    * Register the proto descriptors bundled with the application JAR so that
    * the SoyTypeRegistry can map proto names in Soy code to protobuf
    * definitions.
+   * <p>
+   * This builds every descriptor, so is only used by code that asks for it
+   * directly.  The SoyTypeRegistry uses {@link LazyProtoTypeProvider}.
    */
   @Provides
   @Singleton
@@ -89,11 +127,19 @@ public final class ClosureModule extends AbstractModule {
     return b.build();
   }
 
-  /** Reads the CSS rename map  */
+  /**
+   * Reads the CSS rename map preferring the binary table and falling back to
+   * the JSON form.
+   */
   @Provides
   @Singleton
   public SoyCssRenamingMap provideCssRenamingMap()
   throws IOException {
+    URL tableUrl = getClass().getResource(CSS_RENAMING_TABLE_RESOURCE_PATH);
+    if (tableUrl != null) {
+      return CssRenamingTable.read(Resources.asByteSource(tableUrl));
+    }
+
     ImmutableMap.Builder<String, String> cssMapBuilder = ImmutableMap.builder();
 
     URL crUrl = getClass().getResource(CSS_RENAMING_MAP_RESOURCE_PATH);
@@ -109,21 +155,16 @@ public final class ClosureModule extends AbstractModule {
         cssMapBuilder.put(e.getKey(), e.getValue().getAsString());
       }
     }
-    return new SoyCssRenamingMapImpl(cssMapBuilder.build());
+    return CssRenamingTable.of(cssMapBuilder.build());
   }
 
-  static final class SoyCssRenamingMapImpl implements SoyCssRenamingMap {
-    final ImmutableMap<String, String> originalNameToRewrittenName;
-
-    SoyCssRenamingMapImpl(
-        Map<? extends String, ? extends String> originalNameToRewrittenName) {
-      this.originalNameToRewrittenName = ImmutableMap.copyOf(
-          originalNameToRewrittenName);
-    }
-
-    @Override
-    public String get(String originalName) {
-      return this.originalNameToRewrittenName.get(originalName);
-    }
+  /**
+   * Reads the critical CSS bundled with the application JAR so that it can
+   * be inlined into responses.
+   */
+  @Provides
+  @Singleton
+  public CriticalCss provideCriticalCss() throws IOException {
+    return CriticalCss.fromResources();
   }
 }
@@ -0,0 +1,105 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharSource;
+import com.google.common.io.Resources;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The critical parts of compiled CSS files which can be inlined into a
+ * response so that above-the-fold content renders without waiting on a
+ * stylesheet fetch, along with the path of the deferred remainder.
+ */
+public final class CriticalCss {
+  private final ImmutableMap<String, String> criticalCss;
+  private final ImmutableMap<String, String> deferredPaths;
+
+  private CriticalCss(
+      ImmutableMap<String, String> criticalCss,
+      ImmutableMap<String, String> deferredPaths) {
+    this.criticalCss = criticalCss;
+    this.deferredPaths = deferredPaths;
+  }
+
+  /** A value with no critical CSS. */
+  public static final CriticalCss EMPTY = new CriticalCss(
+      ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of());
+
+  /**
+   * @param compiledCssPath the path of a compiled CSS file relative to the
+   *    {@code /closure/css/} resource directory.
+   * @return the CSS text that should be inlined.
+   */
+  public Optional<String> getCriticalCss(String compiledCssPath) {
+    return Optional.fromNullable(criticalCss.get(compiledCssPath));
+  }
+
+  /**
+   * @param compiledCssPath the path of a compiled CSS file relative to the
+   *    {@code /closure/css/} resource directory.
+   * @return the path, relative to the same directory, of the CSS that can be
+   *    loaded after the critical CSS.
+   */
+  public Optional<String> getDeferredCssPath(String compiledCssPath) {
+    return Optional.fromNullable(deferredPaths.get(compiledCssPath));
+  }
+
+  /**
+   * Loads the manifest written by the plugin and the critical CSS it
+   * references from class-path resources.
+   */
+  public static CriticalCss fromResources() throws IOException {
+    return fromResources(CriticalCss.class.getClassLoader());
+  }
+
+  /**
+   * Loads the manifest and the critical CSS it references from resources
+   * visible to the given loader.
+   */
+  @VisibleForTesting
+  static CriticalCss fromResources(ClassLoader loader) throws IOException {
+    // Class loaders resolve resource paths without the leading slash.
+    String manifestPath =
+        ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH.substring(1);
+    URL manifestUrl = loader.getResource(manifestPath);
+    if (manifestUrl == null) {
+      return EMPTY;
+    }
+    String cssDir = manifestPath.substring(
+        0, manifestPath.lastIndexOf('/') + 1);
+
+    JsonElement json;
+    CharSource manifest = Resources.asCharSource(manifestUrl, Charsets.UTF_8);
+    try (Reader jsonIn = manifest.openStream()) {
+      json = new JsonParser().parse(jsonIn);
+    }
+
+    ImmutableMap.Builder<String, String> criticalCss = ImmutableMap.builder();
+    ImmutableMap.Builder<String, String> deferredPaths =
+        ImmutableMap.builder();
+    for (Map.Entry<String, JsonElement> e
+         : json.getAsJsonObject().entrySet()) {
+      JsonObject parts = e.getValue().getAsJsonObject();
+      String criticalPath = parts.get("critical").getAsString();
+      URL criticalUrl = loader.getResource(cssDir + criticalPath);
+      if (criticalUrl == null) {
+        throw new IOException("Missing critical CSS " + criticalPath);
+      }
+      criticalCss.put(
+          e.getKey(),
+          Resources.toString(criticalUrl, Charsets.UTF_8));
+      deferredPaths.put(e.getKey(), parts.get("deferred").getAsString());
+    }
+    return new CriticalCss(criticalCss.build(), deferredPaths.build());
+  }
+}
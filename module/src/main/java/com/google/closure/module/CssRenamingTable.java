@@ -0,0 +1,104 @@
+package com.google.closure.module;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.ByteSource;
+import com.google.template.soy.shared.SoyCssRenamingMap;
+
+/**
+ * A compact, sorted-array CSS rename table.
+ * <p>
+ * The plugin writes this next to the JSON rename map so that the runtime
+ * can load it with a single read and answer lookups via binary search
+ * without allocating.
+ */
+public final class CssRenamingTable implements SoyCssRenamingMap {
+  /** "CRMT" in ASCII. */
+  private static final int MAGIC = 0x43524d54;
+  private static final int VERSION = 1;
+
+  private final String[] originalNames;
+  private final String[] rewrittenNames;
+
+  private CssRenamingTable(String[] originalNames, String[] rewrittenNames) {
+    Preconditions.checkArgument(
+        originalNames.length == rewrittenNames.length);
+    this.originalNames = originalNames;
+    this.rewrittenNames = rewrittenNames;
+  }
+
+  /** A table with the given mappings. */
+  public static CssRenamingTable of(
+      Map<? extends String, ? extends String> originalNameToRewrittenName) {
+    ImmutableSortedMap<String, String> sorted = ImmutableSortedMap.copyOf(
+        originalNameToRewrittenName);
+    return new CssRenamingTable(
+        sorted.keySet().toArray(new String[sorted.size()]),
+        sorted.values().toArray(new String[sorted.size()]));
+  }
+
+  /** The number of original names that have a rewritten name. */
+  public int size() {
+    return originalNames.length;
+  }
+
+  @Override
+  public String get(String originalName) {
+    int index = Arrays.binarySearch(originalNames, originalName);
+    return index >= 0 ? rewrittenNames[index] : null;
+  }
+
+  /**
+   * Writes the table in the format understood by {@link #read}.
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(MAGIC);
+    dout.writeInt(VERSION);
+    dout.writeInt(originalNames.length);
+    for (int i = 0, n = originalNames.length; i < n; ++i) {
+      dout.writeUTF(originalNames[i]);
+      dout.writeUTF(rewrittenNames[i]);
+    }
+    dout.flush();
+  }
+
+  /**
+   * Reads a table written by {@link #write}.
+   */
+  public static CssRenamingTable read(ByteSource source) throws IOException {
+    try (InputStream in = source.openBufferedStream()) {
+      DataInputStream din = new DataInputStream(in);
+      if (din.readInt() != MAGIC) {
+        throw new IOException("Not a CSS renaming table: " + source);
+      }
+      int version = din.readInt();
+      if (version != VERSION) {
+        throw new IOException(
+            "Unsupported CSS renaming table version " + version);
+      }
+      int n = din.readInt();
+      if (n < 0) {
+        throw new IOException("Malformed CSS renaming table: " + source);
+      }
+      String[] originalNames = new String[n];
+      String[] rewrittenNames = new String[n];
+      for (int i = 0; i < n; ++i) {
+        originalNames[i] = din.readUTF();
+        rewrittenNames[i] = din.readUTF();
+        if (i != 0 && originalNames[i - 1].compareTo(originalNames[i]) >= 0) {
+          throw new IOException("CSS renaming table not sorted: " + source);
+        }
+      }
+      return new CssRenamingTable(originalNames, rewrittenNames);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Resources;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.template.soy.types.SoyType;
+import com.google.template.soy.types.SoyTypeProvider;
+import com.google.template.soy.types.SoyTypeRegistry;
+import com.google.template.soy.types.proto.SoyProtoTypeProvider;
+
+/**
+ * A type provider that builds proto descriptors on first use instead of
+ * building every bundled descriptor when the injector is created.
+ * <p>
+ * The first lookup of a type finds the file that defines it in a
+ * {@link ProtoDescriptorIndex} and builds that file's descriptors and its
+ * dependencies'.  Later lookups of types from the same file reuse them.
+ */
+public final class LazyProtoTypeProvider implements SoyTypeProvider {
+  private final ProtoDescriptorIndex index;
+  /** Type providers by proto file name.  Guarded by itself. */
+  private final Map<String, SoyProtoTypeProvider> providersByFile =
+      Maps.newHashMap();
+
+  /** */
+  public LazyProtoTypeProvider(ProtoDescriptorIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Uses the index bundled with the application JAR.
+   * Falls back to indexing the bundled descriptor set when the index is
+   * missing, as when the JAR was built by an older version of the plugin.
+   */
+  public static LazyProtoTypeProvider fromResources() throws IOException {
+    return fromResources(LazyProtoTypeProvider.class.getClassLoader());
+  }
+
+  /**
+   * Uses the index or descriptor set loaded by the given loader.
+   * @see #fromResources()
+   */
+  @VisibleForTesting
+  static LazyProtoTypeProvider fromResources(ClassLoader loader)
+  throws IOException {
+    // Class loaders resolve resource paths without the leading slash.
+    URL indexUrl = loader.getResource(
+        ClosureModule.PROTO_DESCRIPTOR_INDEX_RESOURCE_PATH.substring(1));
+    ByteSource indexBytes;
+    if (indexUrl != null) {
+      indexBytes = Resources.asByteSource(indexUrl);
+    } else {
+      URL pdUrl = loader.getResource(
+          ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH.substring(1));
+      FileDescriptorSet descriptors = pdUrl != null
+          ? FileDescriptorSet.parseFrom(Resources.toByteArray(pdUrl))
+          : FileDescriptorSet.getDefaultInstance();
+      indexBytes = ByteSource.wrap(ProtoDescriptorIndex.encode(descriptors));
+    }
+    return new LazyProtoTypeProvider(ProtoDescriptorIndex.decode(indexBytes));
+  }
+
+  @Override
+  public SoyType getType(String typeName, SoyTypeRegistry typeRegistry) {
+    Optional<String> fileName = index.getFileDefiningType(typeName);
+    if (!fileName.isPresent()) {
+      return null;
+    }
+    SoyProtoTypeProvider provider;
+    try {
+      provider = getProviderForFile(fileName.get());
+    } catch (IOException | Descriptors.DescriptorValidationException ex) {
+      throw new IllegalStateException(
+          "Failed to build proto descriptors for " + typeName
+          + " from " + fileName.get(),
+          ex);
+    }
+    return provider.getType(typeName, typeRegistry);
+  }
+
+  private SoyProtoTypeProvider getProviderForFile(String fileName)
+  throws IOException, Descriptors.DescriptorValidationException {
+    synchronized (providersByFile) {
+      SoyProtoTypeProvider provider = providersByFile.get(fileName);
+      if (provider == null) {
+        FileDescriptor fd = index.getFileDescriptor(fileName).get();
+        // The builder walks messages, enums and extensions, but ignores
+        // file descriptors.
+        provider = new SoyProtoTypeProvider.Builder()
+            .addDescriptors(
+                ImmutableList.<Descriptors.GenericDescriptor>builder()
+                .addAll(fd.getMessageTypes())
+                .addAll(fd.getEnumTypes())
+                .addAll(fd.getExtensions())
+                .build())
+            .build();
+        providersByFile.put(fileName, provider);
+      }
+      return provider;
+    }
+  }
+}
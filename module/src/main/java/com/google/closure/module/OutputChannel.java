@@ -0,0 +1,31 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A destination for rendered output that may not be able to accept bytes
+ * without blocking, like a servlet output stream in non-blocking mode.
+ *
+ * @see AsyncRenderer
+ * @see ServletOutputChannel
+ */
+public interface OutputChannel {
+  /**
+   * The stream to write.  It is only written when {@link #isReady} is true.
+   */
+  OutputStream getOutputStream();
+
+  /**
+   * True if bytes can be written to the output stream without blocking.
+   *
+   * @throws IOException if the channel failed, as when the client went away.
+   */
+  boolean isReady() throws IOException;
+
+  /**
+   * Arranges for callback to be run once, after {@link #isReady} returned
+   * false, when the channel is next ready or has failed.
+   */
+  void whenReady(Runnable callback);
+}
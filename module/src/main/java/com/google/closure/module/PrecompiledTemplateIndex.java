@@ -0,0 +1,18 @@
+package com.google.closure.module;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Maps template names to the classes compiled for them.
+ * <p>
+ * closure-maven-plugin generates an implementation for projects that depend
+ * on this module and registers it as a {@link java.util.ServiceLoader service}
+ * so that {@link PrecompiledTemplates} can find compiled templates without
+ * searching the class path.
+ */
+public interface PrecompiledTemplateIndex {
+  /**
+   * Binary names of compiled template factory classes by full template name.
+   */
+  ImmutableMap<String, String> getFactoryClassNames();
+}
@@ -0,0 +1,99 @@
+package com.google.closure.module;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.template.soy.jbcsrc.shared.CompiledTemplate;
+
+/**
+ * Factories for the templates listed in the
+ * {@link PrecompiledTemplateIndex}es bundled with the application, loaded
+ * up-front so that the first request for a template does not pay to find,
+ * load, and initialize its classes.
+ * <p>
+ * This only warms up the class loader.  {@code @Precompiled SoySauce} still
+ * finds templates by name, so it renders the same classes whether or not
+ * these were loaded.  Install {@link PrecompiledTemplatesModule} to load them
+ * when the injector is created.
+ */
+public final class PrecompiledTemplates {
+  private static final Logger LOG = Logger.getLogger(
+      PrecompiledTemplates.class.getName());
+
+  private final ImmutableMap<String, CompiledTemplate.Factory> factories;
+
+  private PrecompiledTemplates(
+      ImmutableMap<String, CompiledTemplate.Factory> factories) {
+    this.factories = factories;
+  }
+
+  /**
+   * Loads the factories listed in indices registered as services with the
+   * given class loader.
+   * Factories that cannot be loaded, as when an index is out of date with
+   * the compiled templates, are logged and left out.
+   */
+  public static PrecompiledTemplates load(ClassLoader loader) {
+    return fromIndices(
+        ServiceLoader.load(PrecompiledTemplateIndex.class, loader), loader);
+  }
+
+  /**
+   * Loads the factories listed in the given indices.
+   * Factories that cannot be loaded are logged and left out.
+   */
+  public static PrecompiledTemplates fromIndices(
+      Iterable<? extends PrecompiledTemplateIndex> indices,
+      ClassLoader loader) {
+    Map<String, CompiledTemplate.Factory> factories = Maps.newLinkedHashMap();
+    for (PrecompiledTemplateIndex index : indices) {
+      for (Map.Entry<String, String> e
+           : index.getFactoryClassNames().entrySet()) {
+        String templateName = e.getKey();
+        String className = e.getValue();
+        if (factories.containsKey(templateName)) {
+          continue;
+        }
+        CompiledTemplate.Factory factory;
+        try {
+          factory = Class.forName(className, true, loader)
+              .asSubclass(CompiledTemplate.Factory.class)
+              .getConstructor()
+              .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException
+                 | LinkageError ex) {
+          // SoySauce reports the problem if the template is ever rendered.
+          LOG.log(
+              Level.WARNING,
+              "Failed to load compiled template " + templateName
+              + " from " + className,
+              ex);
+          continue;
+        }
+        factories.put(templateName, factory);
+      }
+    }
+    return new PrecompiledTemplates(ImmutableMap.copyOf(factories));
+  }
+
+  /** The names of indexed templates. */
+  public ImmutableSet<String> getTemplateNames() {
+    return factories.keySet();
+  }
+
+  /** True if the named template was indexed. */
+  public boolean hasTemplate(String templateName) {
+    return factories.containsKey(templateName);
+  }
+
+  /** The factory for the named template if it was indexed. */
+  public Optional<CompiledTemplate.Factory> getFactory(String templateName) {
+    return Optional.fromNullable(factories.get(templateName));
+  }
+}
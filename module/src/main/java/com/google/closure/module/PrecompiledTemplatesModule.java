@@ -0,0 +1,20 @@
+package com.google.closure.module;
+
+import com.google.inject.AbstractModule;
+
+/**
+ * A guice module that binds {@link PrecompiledTemplates}, loading the
+ * templates indexed by the plugin while the injector is being created so that
+ * first requests don't wait on class loading.
+ * <p>
+ * This is optional.  Without it, templates are loaded when first rendered.
+ */
+public final class PrecompiledTemplatesModule extends AbstractModule {
+
+  @Override
+  protected void configure() {
+    bind(PrecompiledTemplates.class).toInstance(
+        PrecompiledTemplates.load(
+            PrecompiledTemplatesModule.class.getClassLoader()));
+  }
+}
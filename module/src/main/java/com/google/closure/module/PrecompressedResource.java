@@ -0,0 +1,88 @@
+package com.google.closure.module;
+
+import java.net.URL;
+import java.util.Locale;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Resources;
+
+/**
+ * A class-path resource along with the content encoding of its bytes.
+ * <p>
+ * When the plugin is configured to precompress outputs, compiled CSS and JS
+ * under {@code /closure/} have gzipped siblings which can be served as-is to
+ * clients that accept gzip.
+ */
+public final class PrecompressedResource {
+  /** The value for the Content-Encoding header, or "identity". */
+  public final String contentEncoding;
+  /** The bytes to send. */
+  public final ByteSource bytes;
+
+  private PrecompressedResource(String contentEncoding, ByteSource bytes) {
+    this.contentEncoding = contentEncoding;
+    this.bytes = bytes;
+  }
+
+  /** The suffix of gzipped siblings. */
+  public static final String GZIP_SUFFIX = ".gz";
+
+  /**
+   * Finds the best representation of the given resource.
+   *
+   * @param resourcePath an absolute class-path resource path like
+   *     {@code /closure/css/compiled.css}.
+   * @param acceptEncoding the value of the request's Accept-Encoding header
+   *     or null if none.
+   * @return absent if there is no such resource.
+   */
+  public static Optional<PrecompressedResource> forResource(
+      String resourcePath, String acceptEncoding) {
+    if (acceptsGzip(acceptEncoding)) {
+      URL gzUrl = PrecompressedResource.class.getResource(
+          resourcePath + GZIP_SUFFIX);
+      if (gzUrl != null) {
+        return Optional.of(new PrecompressedResource(
+            "gzip", Resources.asByteSource(gzUrl)));
+      }
+    }
+    URL url = PrecompressedResource.class.getResource(resourcePath);
+    if (url == null) {
+      return Optional.absent();
+    }
+    return Optional.of(new PrecompressedResource(
+        "identity", Resources.asByteSource(url)));
+  }
+
+  /**
+   * True if the Accept-Encoding header value admits gzip.
+   * An explicit entry for gzip wins over the "*" wildcard, so
+   * "gzip;q=0, *" refuses gzip.  Encodings are not otherwise ranked.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean wildcardAccepted = false;
+    for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      boolean isGzip = "gzip".equals(name);
+      if (isGzip || "*".equals(name)) {
+        boolean refused = false;
+        for (int i = 1; i < parts.length; ++i) {
+          String param = parts[i].replace(" ", "");
+          if (param.matches("q=0(?:[.]0*)?")) {
+            refused = true;
+          }
+        }
+        if (isGzip) {
+          return !refused;
+        }
+        wildcardAccepted = !refused;
+      }
+    }
+    return wildcardAccepted;
+  }
+}
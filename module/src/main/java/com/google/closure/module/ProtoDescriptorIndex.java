@@ -0,0 +1,284 @@
+package com.google.closure.module;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+
+/**
+ * A proto descriptor set laid out so that the descriptors needed for a type
+ * can be found and built without parsing the whole set.
+ * <p>
+ * The plugin writes this next to the descriptor set.  Its binary format is
+ * <pre>
+ * int32 magic, int32 version
+ * int32 fileCount
+ * fileCount * (UTF fileName, int32 offset, int32 length)
+ * int32 typeCount
+ * typeCount * (UTF typeFullName, int32 fileIndex)
+ * serialized FileDescriptorProtos
+ * </pre>
+ * Files appear in the order of the descriptor set, which lists dependencies
+ * first, and offsets are relative to the end of the type table.
+ * Message and enum types, including nested ones, appear sorted by full name
+ * so that lookups can binary search.
+ */
+public final class ProtoDescriptorIndex {
+  private static final int MAGIC = 0x50444958;  // "PDIX"
+  private static final int VERSION = 1;
+
+  private final ImmutableList<String> fileNames;
+  private final ImmutableMap<String, Integer> fileIndices;
+  private final int[] fileOffsets;
+  private final int[] fileLengths;
+  /** Sorted. */
+  private final ImmutableList<String> typeNames;
+  private final int[] typeFileIndices;
+  private final byte[] descriptorBytes;
+  private final int descriptorBytesStart;
+  /** Memoized results of {@link #buildFileDescriptor}.  Guarded by this. */
+  private final FileDescriptor[] built;
+
+  private ProtoDescriptorIndex(
+      ImmutableList<String> fileNames, int[] fileOffsets, int[] fileLengths,
+      ImmutableList<String> typeNames, int[] typeFileIndices,
+      byte[] descriptorBytes, int descriptorBytesStart) {
+    this.fileNames = fileNames;
+    ImmutableMap.Builder<String, Integer> b = ImmutableMap.builder();
+    for (int i = 0, n = fileNames.size(); i < n; ++i) {
+      b.put(fileNames.get(i), i);
+    }
+    this.fileIndices = b.build();
+    this.fileOffsets = fileOffsets;
+    this.fileLengths = fileLengths;
+    this.typeNames = typeNames;
+    this.typeFileIndices = typeFileIndices;
+    this.descriptorBytes = descriptorBytes;
+    this.descriptorBytesStart = descriptorBytesStart;
+    this.built = new FileDescriptor[fileNames.size()];
+  }
+
+  /** The full names of all indexed message and enum types in sorted order. */
+  public ImmutableList<String> getTypeNames() {
+    return typeNames;
+  }
+
+  /** The names of the indexed files with dependencies first. */
+  public ImmutableList<String> getFileNames() {
+    return fileNames;
+  }
+
+  /**
+   * The name of the file that defines the given type.
+   *
+   * @param typeFullName a full name without any leading dot like
+   *     {@code foo.bar.Baz}.
+   */
+  public Optional<String> getFileDefiningType(String typeFullName) {
+    int i = Collections.binarySearch(typeNames, typeFullName);
+    if (i < 0) {
+      return Optional.absent();
+    }
+    return Optional.of(fileNames.get(typeFileIndices[i]));
+  }
+
+  /**
+   * Builds the named file's descriptor and, transitively, those of its
+   * dependencies.  Descriptors are built at most once.
+   */
+  public Optional<FileDescriptor> getFileDescriptor(String fileName)
+  throws IOException, DescriptorValidationException {
+    Integer index = fileIndices.get(fileName);
+    if (index == null) {
+      return Optional.absent();
+    }
+    synchronized (this) {
+      return Optional.of(buildFileDescriptor(index));
+    }
+  }
+
+  /** Builds descriptors for all files. */
+  public ImmutableList<FileDescriptor> getAllFileDescriptors()
+  throws IOException, DescriptorValidationException {
+    ImmutableList.Builder<FileDescriptor> b = ImmutableList.builder();
+    synchronized (this) {
+      for (int i = 0, n = fileNames.size(); i < n; ++i) {
+        b.add(buildFileDescriptor(i));
+      }
+    }
+    return b.build();
+  }
+
+  private FileDescriptor buildFileDescriptor(int index)
+  throws IOException, DescriptorValidationException {
+    FileDescriptor fd = built[index];
+    if (fd == null) {
+      FileDescriptorProto proto = FileDescriptorProto.parser().parseFrom(
+          descriptorBytes,
+          descriptorBytesStart + fileOffsets[index],
+          fileLengths[index]);
+      int nDeps = proto.getDependencyCount();
+      FileDescriptor[] deps = new FileDescriptor[nDeps];
+      for (int i = 0; i < nDeps; ++i) {
+        String dep = proto.getDependency(i);
+        Integer depIndex = fileIndices.get(dep);
+        if (depIndex == null) {
+          throw new IOException(
+              "Proto descriptor index lacks " + dep
+              + " which is imported by " + proto.getName());
+        }
+        deps[i] = buildFileDescriptor(depIndex);
+      }
+      fd = built[index] = FileDescriptor.buildFrom(proto, deps);
+    }
+    return fd;
+  }
+
+  /**
+   * Reads an index written by {@link #encode}.
+   * Descriptors are not parsed until needed.
+   */
+  public static ProtoDescriptorIndex decode(ByteSource bytes)
+  throws IOException {
+    byte[] content = bytes.read();
+    PositionedByteArrayInputStream positioned =
+        new PositionedByteArrayInputStream(content);
+    try (DataInputStream in = new DataInputStream(positioned)) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a proto descriptor index");
+      }
+      int nFiles = in.readInt();
+      ImmutableList.Builder<String> fileNames = ImmutableList.builder();
+      int[] fileOffsets = new int[nFiles];
+      int[] fileLengths = new int[nFiles];
+      for (int i = 0; i < nFiles; ++i) {
+        fileNames.add(in.readUTF());
+        fileOffsets[i] = in.readInt();
+        fileLengths[i] = in.readInt();
+      }
+      int nTypes = in.readInt();
+      ImmutableList.Builder<String> typeNames = ImmutableList.builder();
+      int[] typeFileIndices = new int[nTypes];
+      for (int i = 0; i < nTypes; ++i) {
+        typeNames.add(in.readUTF());
+        typeFileIndices[i] = in.readInt();
+        if (typeFileIndices[i] < 0 || typeFileIndices[i] >= nFiles) {
+          throw new IOException("Malformed proto descriptor index");
+        }
+      }
+      int start = positioned.position();
+      for (int i = 0; i < nFiles; ++i) {
+        if (fileOffsets[i] < 0 || fileLengths[i] < 0
+            || (long) start + fileOffsets[i] + fileLengths[i]
+               > content.length) {
+          throw new IOException("Malformed proto descriptor index");
+        }
+      }
+      return new ProtoDescriptorIndex(
+          fileNames.build(), fileOffsets, fileLengths,
+          typeNames.build(), typeFileIndices,
+          content, start);
+    }
+  }
+
+  /**
+   * Lays out the descriptors in the given set so that they can be found by
+   * type name.
+   */
+  public static byte[] encode(FileDescriptorSet set) throws IOException {
+    Map<String, FileDescriptorProto> files = Maps.newLinkedHashMap();
+    for (FileDescriptorProto file : set.getFileList()) {
+      if (!files.containsKey(file.getName())) {
+        files.put(file.getName(), file);
+      }
+    }
+
+    SortedMap<String, Integer> types = Maps.newTreeMap();
+    ByteArrayOutputStream descriptors = new ByteArrayOutputStream();
+    ByteArrayOutputStream fileTable = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(fileTable)) {
+      out.writeInt(files.size());
+      int fileIndex = 0;
+      for (FileDescriptorProto file : files.values()) {
+        byte[] bytes = file.toByteArray();
+        out.writeUTF(file.getName());
+        out.writeInt(descriptors.size());
+        out.writeInt(bytes.length);
+        descriptors.write(bytes);
+
+        String prefix = file.getPackage().isEmpty()
+            ? "" : file.getPackage() + ".";
+        for (DescriptorProto message : file.getMessageTypeList()) {
+          indexMessage(prefix, message, fileIndex, types);
+        }
+        for (EnumDescriptorProto enumeration : file.getEnumTypeList()) {
+          indexType(prefix + enumeration.getName(), fileIndex, types);
+        }
+        ++fileIndex;
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      fileTable.writeTo(out);
+      out.writeInt(types.size());
+      for (Map.Entry<String, Integer> e : types.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue());
+      }
+      descriptors.writeTo(out);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void indexMessage(
+      String prefix, DescriptorProto message, int fileIndex,
+      SortedMap<String, Integer> types) {
+    String name = prefix + message.getName();
+    indexType(name, fileIndex, types);
+    for (DescriptorProto nested : message.getNestedTypeList()) {
+      indexMessage(name + ".", nested, fileIndex, types);
+    }
+    for (EnumDescriptorProto enumeration : message.getEnumTypeList()) {
+      indexType(name + "." + enumeration.getName(), fileIndex, types);
+    }
+  }
+
+  private static void indexType(
+      String name, int fileIndex, SortedMap<String, Integer> types) {
+    // First definition wins as when building descriptors.
+    if (!types.containsKey(name)) {
+      types.put(name, fileIndex);
+    }
+  }
+
+
+  private static final class PositionedByteArrayInputStream
+  extends ByteArrayInputStream {
+    PositionedByteArrayInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    int position() {
+      return pos;
+    }
+  }
+}
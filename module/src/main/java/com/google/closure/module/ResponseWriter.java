@@ -3,20 +3,46 @@ package com.google.closure.module;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.template.soy.jbcsrc.api.AdvisingAppendable;
 
 /**
- * A simple AdvisingAppendable that delegates to an Appendable without trying
- * to determine whether
+ * An AdvisingAppendable that delegates to an Appendable.
+ * <p>
+ * A writer created via its constructor never asks templates to stop.
+ * One created via {@link #buffered} encodes output as UTF-8 into a pooled
+ * buffer and reports {@link #softLimitReached} once the buffer holds a chunk
+ * worth sending, so a render loop should flush between continuations:
+ * <pre>
+ * try (ResponseWriter rw = ResponseWriter.buffered(resp.getOutputStream())) {
+ *   WriteContinuation wc = renderer.render(rw);
+ *   while (!wc.result().isDone()) {
+ *     rw.flush();  // Send the chunk so far to the client.
+ *     wc = wc.continueRender();
+ *   }
+ * }
+ * </pre>
  */
 public class ResponseWriter
 implements AdvisingAppendable, Flushable, Closeable {
+  /**
+   * The default count of buffered bytes after which a
+   * {@link #buffered buffered} writer reports that its soft limit is reached.
+   */
+  public static final int DEFAULT_SOFT_LIMIT = 8192;
+
   protected final Appendable out;
+  private final Optional<Utf8OutputBuffer> buffer;
 
   /** */
   public ResponseWriter(Appendable out) {
+    this(out, Optional.<Utf8OutputBuffer>absent());
+  }
+
+  ResponseWriter(Appendable out, Optional<Utf8OutputBuffer> buffer) {
     // We don't want to spuriously throw Exception from close and we don't want
     // to fail to close resources.
     Preconditions.checkArgument(
@@ -24,6 +50,28 @@ implements AdvisingAppendable, Flushable, Closeable {
         "this.close() will not close an AutoCloseable appendable that is not"
         + " java.io.Closeable");
     this.out = Preconditions.checkNotNull(out);
+    this.buffer = buffer;
+  }
+
+  /**
+   * A writer that encodes output as UTF-8 and writes it to out in chunks of
+   * roughly {@link #DEFAULT_SOFT_LIMIT} bytes.
+   */
+  public static ResponseWriter buffered(OutputStream out) {
+    return buffered(out, DEFAULT_SOFT_LIMIT);
+  }
+
+  /**
+   * A writer that encodes output as UTF-8 and writes it to out in chunks.
+   *
+   * @param softLimit the count of buffered bytes after which
+   *     {@link #softLimitReached} is true until the next {@link #flush}.
+   *     Smaller limits get the first bytes to the client sooner at the
+   *     cost of more writes.
+   */
+  public static ResponseWriter buffered(OutputStream out, int softLimit) {
+    Utf8OutputBuffer buffer = new Utf8OutputBuffer(out, softLimit, true);
+    return new ResponseWriter(buffer, Optional.of(buffer));
   }
 
   @Override
@@ -47,7 +95,7 @@ implements AdvisingAppendable, Flushable, Closeable {
 
   @Override
   public boolean softLimitReached() {
-    return false;
+    return buffer.isPresent() && buffer.get().softLimitReached();
   }
 
   @Override
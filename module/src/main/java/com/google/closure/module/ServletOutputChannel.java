@@ -0,0 +1,142 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.template.soy.jbcsrc.api.SoySauce;
+
+/**
+ * Adapts a servlet output stream in non-blocking mode to an
+ * {@link OutputChannel} so that {@link AsyncRenderer} can render into a
+ * servlet response without blocking container threads.
+ * <p>
+ * Typical use from a servlet that supports async:
+ * <pre>
+ * resp.setContentType("text/html; charset=UTF-8");
+ * ServletOutputChannel.render(
+ *     asyncRenderer, soySauce.renderTemplate("my.Page").setData(data),
+ *     req.startAsync());
+ * </pre>
+ */
+public final class ServletOutputChannel implements OutputChannel {
+  private final ServletOutputStream out;
+  /** A callback waiting for the stream to be ready.  Guarded by this. */
+  private Runnable pending;
+  /**
+   * True if the container said the stream was ready while no callback was
+   * waiting.  Guarded by this.
+   */
+  private boolean readySignaled;
+  /** Guarded by this. */
+  private Throwable failure;
+
+  private ServletOutputChannel(ServletOutputStream out) {
+    this.out = Preconditions.checkNotNull(out);
+  }
+
+  /**
+   * Puts out into non-blocking mode, so this must be called after the
+   * request has been put into async mode.
+   */
+  public static ServletOutputChannel of(ServletOutputStream out) {
+    ServletOutputChannel channel = new ServletOutputChannel(out);
+    out.setWriteListener(channel.new Listener());
+    return channel;
+  }
+
+  /**
+   * Renders into the response of an async request and completes the request
+   * once rendering finishes or fails.
+   *
+   * @return the result of {@link AsyncRenderer#render}.
+   */
+  public static ListenableFuture<Void> render(
+      AsyncRenderer asyncRenderer, SoySauce.Renderer renderer,
+      final AsyncContext asyncContext)
+  throws IOException {
+    ServletOutputChannel channel = of(
+        asyncContext.getResponse().getOutputStream());
+    ListenableFuture<Void> done = asyncRenderer.render(renderer, channel);
+    done.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            asyncContext.complete();
+          }
+        },
+        MoreExecutors.directExecutor());
+    return done;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return out;
+  }
+
+  @Override
+  public boolean isReady() throws IOException {
+    synchronized (this) {
+      if (failure != null) {
+        throw new IOException(failure);
+      }
+      // The container calls onWritePossible after isReady returns false, so
+      // forget earlier signals before asking.
+      readySignaled = false;
+    }
+    return out.isReady();
+  }
+
+  @Override
+  public void whenReady(Runnable callback) {
+    Preconditions.checkNotNull(callback);
+    synchronized (this) {
+      Preconditions.checkState(pending == null);
+      if (!readySignaled && failure == null) {
+        pending = callback;
+        return;
+      }
+      readySignaled = false;
+    }
+    callback.run();
+  }
+
+  private Runnable takePending() {
+    synchronized (this) {
+      Runnable callback = pending;
+      pending = null;
+      if (callback == null) {
+        readySignaled = true;
+      }
+      return callback;
+    }
+  }
+
+  @SuppressWarnings("synthetic-access")
+  final class Listener implements WriteListener {
+    @Override
+    public void onWritePossible() {
+      Runnable callback = takePending();
+      if (callback != null) {
+        callback.run();
+      }
+    }
+
+    @Override
+    public void onError(Throwable th) {
+      synchronized (ServletOutputChannel.this) {
+        failure = th;
+      }
+      Runnable callback = takePending();
+      if (callback != null) {
+        callback.run();
+      }
+    }
+  }
+}
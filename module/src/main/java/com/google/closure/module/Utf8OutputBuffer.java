@@ -0,0 +1,264 @@
+package com.google.closure.module;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * An appendable that encodes chars as UTF-8 directly into a byte buffer and
+ * writes the buffer to an output stream in chunks.
+ * <p>
+ * Buffers are borrowed from a small pool and returned on {@link #close} so
+ * that a busy server does not allocate one per response.
+ * <p>
+ * A buffer that does not write when full only writes to the output stream
+ * when asked, which lets a non-blocking caller check that the stream is
+ * ready first.
+ * <p>
+ * Malformed UTF-16, an unpaired surrogate, is encoded as {@code '?'} as by
+ * {@link String#getBytes(java.nio.charset.Charset)}.
+ */
+final class Utf8OutputBuffer implements Appendable, Flushable, Closeable {
+  /** The size of pooled buffers. */
+  static final int POOLED_BUFFER_SIZE = 1 << 14;
+  /** The maximum number of idle buffers kept for reuse. */
+  private static final int POOL_SIZE = 64;
+  private static final ArrayBlockingQueue<byte[]> POOL =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+
+  private final OutputStream out;
+  private final int softLimit;
+  private final boolean writeWhenFull;
+  /** Null once closed. */
+  private byte[] buf;
+  /** The count of bytes in buf not yet written to out. */
+  private int n;
+  /** A high surrogate waiting for its low surrogate or zero. */
+  private char pendingHighSurrogate;
+
+  /**
+   * @param softLimit the count of buffered bytes after which
+   *     {@link #softLimitReached} is true.
+   *     The buffer holds at least twice this many bytes before it has to be
+   *     written out regardless, since templates only check the limit between
+   *     chunks of output.
+   * @param writeWhenFull false to grow the buffer instead of writing to out
+   *     when it fills.
+   */
+  Utf8OutputBuffer(OutputStream out, int softLimit, boolean writeWhenFull) {
+    Preconditions.checkArgument(softLimit > 0, "softLimit must be positive");
+    this.out = Preconditions.checkNotNull(out);
+    this.softLimit = softLimit;
+    this.writeWhenFull = writeWhenFull;
+    int capacity = softLimit <= POOLED_BUFFER_SIZE / 2
+        ? POOLED_BUFFER_SIZE
+        // Avoid overflow for absurd limits.
+        : (int) Math.min(Integer.MAX_VALUE - 8, softLimit * 2L);
+    byte[] pooled = capacity == POOLED_BUFFER_SIZE ? POOL.poll() : null;
+    this.buf = pooled != null ? pooled : new byte[capacity];
+  }
+
+  /** True if enough is buffered that it should be flushed to the client. */
+  boolean softLimitReached() {
+    return n >= softLimit;
+  }
+
+  /** The count of bytes buffered but not yet written to the output stream. */
+  int bufferedByteCount() {
+    return n;
+  }
+
+  @Override
+  public Utf8OutputBuffer append(CharSequence s) throws IOException {
+    String str = String.valueOf(s);  // "null" as per Appendable.
+    return append(str, 0, str.length());
+  }
+
+  @Override
+  public Utf8OutputBuffer append(CharSequence s, int lt, int rt)
+  throws IOException {
+    if (s == null) {
+      return append("null", lt, rt);
+    }
+    Preconditions.checkPositionIndexes(lt, rt, s.length());
+    byte[] b = requireOpen();
+    int i = lt;
+    while (i < rt) {
+      // Fast path for runs of ASCII which are the bulk of most HTML.
+      int limit = Math.min(rt, i + (b.length - n));
+      while (i < limit && pendingHighSurrogate == 0) {
+        char ch = s.charAt(i);
+        if (ch >= 0x80) { break; }
+        b[n++] = (byte) ch;
+        ++i;
+      }
+      if (i < rt) {
+        if (n == b.length) {
+          b = makeRoom(1);
+        } else {
+          encode(s.charAt(i));
+          b = buf;  // encode may have grown it.
+          ++i;
+        }
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public Utf8OutputBuffer append(char ch) throws IOException {
+    requireOpen();
+    if (ch < 0x80 && pendingHighSurrogate == 0 && n < buf.length) {
+      buf[n++] = (byte) ch;
+    } else {
+      encode(ch);
+    }
+    return this;
+  }
+
+  private void encode(char ch) throws IOException {
+    byte[] b = makeRoom(4);
+    if (pendingHighSurrogate != 0) {
+      char hi = pendingHighSurrogate;
+      pendingHighSurrogate = 0;
+      if (Character.isLowSurrogate(ch)) {
+        int cp = Character.toCodePoint(hi, ch);
+        b[n++] = (byte) (0xf0 | (cp >>> 18));
+        b[n++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+        b[n++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+        b[n++] = (byte) (0x80 | (cp & 0x3f));
+        return;
+      }
+      b[n++] = '?';
+      b = makeRoom(3);
+    }
+    if (ch < 0x80) {
+      b[n++] = (byte) ch;
+    } else if (ch < 0x800) {
+      b[n++] = (byte) (0xc0 | (ch >>> 6));
+      b[n++] = (byte) (0x80 | (ch & 0x3f));
+    } else if (Character.isHighSurrogate(ch)) {
+      pendingHighSurrogate = ch;
+    } else if (Character.isLowSurrogate(ch)) {
+      b[n++] = '?';
+    } else {
+      b[n++] = (byte) (0xe0 | (ch >>> 12));
+      b[n++] = (byte) (0x80 | ((ch >>> 6) & 0x3f));
+      b[n++] = (byte) (0x80 | (ch & 0x3f));
+    }
+  }
+
+  /**
+   * Makes sure there is room for k more bytes by writing out the buffer or,
+   * if it does not write when full, by growing it.
+   *
+   * @return the buffer.
+   */
+  private byte[] makeRoom(int k) throws IOException {
+    if (n + k > buf.length) {
+      if (writeWhenFull) {
+        drain();
+      } else {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + k));
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * Writes out all complete characters without flushing the output stream.
+   */
+  void writeBuffered() throws IOException {
+    requireOpen();
+    drain();
+  }
+
+  /** Writes buffered bytes to the output stream without flushing it. */
+  private void drain() throws IOException {
+    if (n != 0) {
+      out.write(buf, 0, n);
+      n = 0;
+    }
+  }
+
+  /**
+   * Writes out all complete characters and flushes the output stream.
+   * A trailing high surrogate is held until its low surrogate arrives.
+   */
+  @Override
+  public void flush() throws IOException {
+    requireOpen();
+    drain();
+    out.flush();
+  }
+
+  /**
+   * Writes out everything buffered, returns the buffer to the pool, and
+   * closes the output stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (buf == null) {
+      return;
+    }
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes out everything buffered and returns the buffer to the pool
+   * without flushing or closing the output stream.
+   */
+  void finish() throws IOException {
+    if (buf == null) {
+      return;
+    }
+    try {
+      if (pendingHighSurrogate != 0) {
+        pendingHighSurrogate = 0;
+        makeRoom(1);
+        buf[n++] = '?';
+      }
+      drain();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Returns the buffer to the pool discarding any unwritten content.
+   * Later appends fail.
+   */
+  void release() {
+    byte[] b = buf;
+    buf = null;
+    n = 0;
+    pendingHighSurrogate = 0;
+    if (b != null && b.length == POOLED_BUFFER_SIZE) {
+      @SuppressWarnings("unused")
+      boolean reused = POOL.offer(b);
+    }
+  }
+
+  /** The count of buffers waiting in the pool to be reused. */
+  @VisibleForTesting
+  static int idleBufferCount() {
+    return POOL.size();
+  }
+
+  private byte[] requireOpen() throws IOException {
+    if (buf == null) {
+      throw new IOException("closed");
+    }
+    return buf;
+  }
+}
@@ -0,0 +1,378 @@
+package com.google.closure.module;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.template.soy.jbcsrc.api.AdvisingAppendable;
+import com.google.template.soy.jbcsrc.api.RenderResult;
+import com.google.template.soy.jbcsrc.api.SoySauce.WriteContinuation;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class AsyncRendererTest extends TestCase {
+
+  /** Runs tasks only when asked so tests control the interleaving. */
+  static final class QueueExecutor implements Executor {
+    final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    int runAll() {
+      int n = 0;
+      for (Runnable task; (task = tasks.poll()) != null; ++n) {
+        task.run();
+      }
+      return n;
+    }
+  }
+
+  /** A channel that is ready or not as the test says. */
+  static final class FakeChannel implements OutputChannel {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    boolean ready = true;
+    IOException failure;
+    Runnable pending;
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    @Override
+    public boolean isReady() throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+      return ready;
+    }
+
+    @Override
+    public void whenReady(Runnable callback) {
+      assertNull(pending);
+      pending = callback;
+    }
+
+    void becomeReady() {
+      ready = true;
+      Runnable callback = pending;
+      pending = null;
+      callback.run();
+    }
+
+    String written() {
+      return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+  }
+
+  /**
+   * A template that writes each chunk in turn and stops after each with the
+   * corresponding result.
+   */
+  static final class Script implements AsyncRenderer.Start {
+    final ImmutableList<String> chunks;
+    final ImmutableList<RenderResult> results;
+    /**
+     * What had been written to the channel when each step started, if there
+     * is a channel to check.
+     */
+    final List<String> writtenBeforeStep = Lists.newArrayList();
+    /** Null if there is no fake channel to check. */
+    final FakeChannel channel;
+
+    Script(
+        FakeChannel channel, ImmutableList<String> chunks,
+        ImmutableList<RenderResult> results) {
+      this.channel = channel;
+      this.chunks = chunks;
+      this.results = results;
+    }
+
+    @Override
+    public WriteContinuation render(AdvisingAppendable out)
+    throws IOException {
+      return step(out, 0);
+    }
+
+    WriteContinuation step(final AdvisingAppendable out, final int i)
+    throws IOException {
+      writtenBeforeStep.add(channel != null ? channel.written() : null);
+      out.append(chunks.get(i));
+      final RenderResult result = results.get(i);
+      return new WriteContinuation() {
+        @Override
+        public RenderResult result() {
+          return result;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public WriteContinuation continueRender() throws IOException {
+          assertFalse(result.isDone());
+          return step(out, i + 1);
+        }
+      };
+    }
+
+    int stepCount() {
+      return writtenBeforeStep.size();
+    }
+  }
+
+  private static final Executor NO_WAITS = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      fail("Waited on a future that is listenable");
+    }
+  };
+
+  private static Throwable failureOf(ListenableFuture<?> f)
+  throws InterruptedException {
+    try {
+      f.get();
+    } catch (ExecutionException ex) {
+      return ex.getCause();
+    }
+    fail("Did not fail");
+    return null;
+  }
+
+  @Test
+  public static final void testDone() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("Hello, World!"),
+        ImmutableList.of(RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(script, channel);
+    assertFalse(done.isDone());
+    assertEquals(1, executor.runAll());
+    assertTrue(done.isDone());
+    assertNull(done.get());
+    assertEquals("Hello, World!", channel.written());
+  }
+
+  @Test
+  public static final void testLimited() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("foo", "bar", "baz"),
+        ImmutableList.of(
+            RenderResult.limited(), RenderResult.limited(),
+            RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS, 2)
+        .render(script, channel);
+    executor.runAll();
+    assertTrue(done.isDone());
+    assertEquals("foobarbaz", channel.written());
+    // Output is sent each time the template yields.
+    assertEquals(
+        ImmutableList.of("", "foo", "foobar"), script.writtenBeforeStep);
+  }
+
+  @Test
+  public static final void testDetach() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    SettableFuture<String> data = SettableFuture.create();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("<p>", "data</p>"),
+        ImmutableList.of(
+            RenderResult.continueAfter(data), RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(script, channel);
+    executor.runAll();
+    assertFalse(done.isDone());
+    // The output so far is sent while waiting.
+    assertEquals("<p>", channel.written());
+    assertEquals(0, executor.runAll());
+
+    data.set("data");
+    assertEquals(1, executor.runAll());
+    assertTrue(done.isDone());
+    assertEquals("<p>data</p>", channel.written());
+  }
+
+  @Test
+  public static final void testDetachOnFutureThatIsNotListenable()
+  throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    ExecutorService waitExecutor = Executors.newCachedThreadPool();
+    try {
+      FakeChannel channel = new FakeChannel();
+      FutureTask<String> data = new FutureTask<>(new Callable<String>() {
+        @Override
+        public String call() {
+          return "data";
+        }
+      });
+      Script script = new Script(
+          channel,
+          ImmutableList.of("<p>", "data</p>"),
+          ImmutableList.of(
+              RenderResult.continueAfter(data), RenderResult.done()));
+      ListenableFuture<Void> done = new AsyncRenderer(executor, waitExecutor)
+          .render(script, channel);
+      // Nothing waiting on data runs on the render executor, or this would
+      // block.
+      executor.runAll();
+      assertFalse(done.isDone());
+
+      data.run();
+      Runnable resume = executor.tasks.poll(10, TimeUnit.SECONDS);
+      assertNotNull(resume);
+      resume.run();
+      assertTrue(done.isDone());
+      assertEquals("<p>data</p>", channel.written());
+    } finally {
+      waitExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public static final void testChannelNotReady() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    channel.ready = false;
+    SettableFuture<String> data = SettableFuture.create();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("foo", "bar", "baz"),
+        ImmutableList.of(
+            RenderResult.continueAfter(data), RenderResult.limited(),
+            RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(script, channel);
+    executor.runAll();
+    // Nothing is written to a channel that is not ready, even while waiting
+    // on data.
+    assertEquals("", channel.written());
+    assertNull(channel.pending);
+
+    data.set("data");
+    executor.runAll();
+    assertFalse(done.isDone());
+    assertEquals(2, script.stepCount());
+    assertEquals("", channel.written());
+    assertNotNull(channel.pending);
+
+    // Rendering resumes on the executor, not on the channel's thread.
+    channel.becomeReady();
+    assertEquals(2, script.stepCount());
+    executor.runAll();
+    assertTrue(done.isDone());
+    assertEquals("foobarbaz", channel.written());
+    assertEquals(ImmutableList.of("", "", "foobar"), script.writtenBeforeStep);
+  }
+
+  @Test
+  public static final void testChannelFails() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    SettableFuture<String> data = SettableFuture.create();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("foo", "bar"),
+        ImmutableList.of(
+            RenderResult.continueAfter(data), RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(script, channel);
+    executor.runAll();
+
+    IOException failure = new IOException("client went away");
+    channel.failure = failure;
+    data.set("data");
+    executor.runAll();
+    assertTrue(done.isDone());
+    assertSame(failure, failureOf(done));
+    assertEquals("foo", channel.written());
+  }
+
+  @Test
+  public static final void testTemplateFails() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    final IOException failure = new IOException("bad data");
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(
+            new AsyncRenderer.Start() {
+              @Override
+              public WriteContinuation render(AdvisingAppendable out)
+              throws IOException {
+                out.append("foo");
+                throw failure;
+              }
+            },
+            channel);
+    executor.runAll();
+    assertSame(failure, failureOf(done));
+    assertEquals("", channel.written());
+  }
+
+  @Test
+  public static final void testCancel() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    FakeChannel channel = new FakeChannel();
+    SettableFuture<String> data = SettableFuture.create();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("foo", "bar"),
+        ImmutableList.of(
+            RenderResult.continueAfter(data), RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(executor, NO_WAITS)
+        .render(script, channel);
+    executor.runAll();
+    assertTrue(done.cancel(false));
+
+    data.set("data");
+    executor.runAll();
+    // The template is not resumed.
+    assertEquals(1, script.stepCount());
+    assertEquals("foo", channel.written());
+  }
+
+  @Test
+  public static final void testDirectExecutor() throws Exception {
+    FakeChannel channel = new FakeChannel();
+    SettableFuture<String> data = SettableFuture.create();
+    Script script = new Script(
+        channel,
+        ImmutableList.of("foo", "bar"),
+        ImmutableList.of(
+            RenderResult.continueAfter(data), RenderResult.done()));
+    ListenableFuture<Void> done = new AsyncRenderer(
+        MoreExecutors.directExecutor(), NO_WAITS)
+        .render(script, channel);
+    assertFalse(done.isDone());
+    data.set("data");
+    assertTrue(done.isDone());
+    assertEquals("foobar", channel.written());
+  }
+}
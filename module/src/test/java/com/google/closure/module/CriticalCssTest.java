@@ -0,0 +1,108 @@
+package com.google.closure.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class CriticalCssTest extends TestCase {
+
+  /** Loads resources from dir alone, not the test class path. */
+  private static URLClassLoader loaderFor(File dir) throws IOException {
+    return new URLClassLoader(
+        new URL[] { dir.toURI().toURL() }, null);
+  }
+
+  private static void write(File dir, String resourcePath, String content)
+  throws IOException {
+    File f = new File(dir, resourcePath.substring(1));
+    Files.createParentDirs(f);
+    Files.write(content, f, Charsets.UTF_8);
+  }
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    assertTrue(f.delete());
+  }
+
+  @Test
+  public static final void testFromResources() throws IOException {
+    File dir = Files.createTempDir();
+    try {
+      write(dir, ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH,
+          "{\"main.css\":{"
+          + "\"critical\":\"main-critical.css\","
+          + "\"deferred\":\"main-deferred.css\"},"
+          + "\"sub/other.css\":{"
+          + "\"critical\":\"sub/other-critical.css\","
+          + "\"deferred\":\"sub/other-deferred.css\"}}");
+      write(dir, "/closure/css/main-critical.css", ".a{color:red}");
+      write(dir, "/closure/css/sub/other-critical.css", ".b{color:blue}");
+
+      CriticalCss css;
+      try (URLClassLoader loader = loaderFor(dir)) {
+        css = CriticalCss.fromResources(loader);
+      }
+      assertEquals(
+          Optional.of(".a{color:red}"), css.getCriticalCss("main.css"));
+      assertEquals(
+          Optional.of("main-deferred.css"),
+          css.getDeferredCssPath("main.css"));
+      assertEquals(
+          Optional.of(".b{color:blue}"),
+          css.getCriticalCss("sub/other.css"));
+      assertEquals(
+          Optional.of("sub/other-deferred.css"),
+          css.getDeferredCssPath("sub/other.css"));
+      assertEquals(Optional.absent(), css.getCriticalCss("unsplit.css"));
+      assertEquals(Optional.absent(), css.getDeferredCssPath("unsplit.css"));
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public static final void testNoManifest() throws IOException {
+    File dir = Files.createTempDir();
+    try {
+      try (URLClassLoader loader = loaderFor(dir)) {
+        assertSame(CriticalCss.EMPTY, CriticalCss.fromResources(loader));
+      }
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public static final void testMissingCriticalCss() throws IOException {
+    File dir = Files.createTempDir();
+    try {
+      write(dir, ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH,
+          "{\"main.css\":{"
+          + "\"critical\":\"main-critical.css\","
+          + "\"deferred\":\"main-deferred.css\"}}");
+      try (URLClassLoader loader = loaderFor(dir)) {
+        CriticalCss.fromResources(loader);
+        fail();
+      } catch (IOException ex) {
+        assertEquals("Missing critical CSS main-critical.css", ex.getMessage());
+      }
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.google.closure.module;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class CssRenamingTableTest extends TestCase {
+
+  private static CssRenamingTable roundTrip(CssRenamingTable table)
+  throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    table.write(bytes);
+    return CssRenamingTable.read(ByteSource.wrap(bytes.toByteArray()));
+  }
+
+  @Test
+  public static final void testRoundTrip() throws IOException {
+    CssRenamingTable table = roundTrip(CssRenamingTable.of(
+        ImmutableMap.of(
+            // Out of order to check that the table is sorted.
+            "yellow", "a",
+            "world", "b",
+            "bar", "c",
+            // Outside the BMP and non-ASCII to exercise modified UTF-8.
+            "caf\u00e9-\ud83d\ude00", "d")));
+    assertEquals(4, table.size());
+    assertEquals("a", table.get("yellow"));
+    assertEquals("b", table.get("world"));
+    assertEquals("c", table.get("bar"));
+    assertEquals("d", table.get("caf\u00e9-\ud83d\ude00"));
+  }
+
+  @Test
+  public static final void testMissingKeys() throws IOException {
+    CssRenamingTable table = roundTrip(CssRenamingTable.of(
+        ImmutableMap.of("bar", "c", "world", "b")));
+    // Before the first, between, and after the last key.
+    assertNull(table.get("a"));
+    assertNull(table.get("baz"));
+    assertNull(table.get("zebra"));
+    assertNull(table.get(""));
+    // A prefix of a key is not a key.
+    assertNull(table.get("ba"));
+  }
+
+  @Test
+  public static final void testEmpty() throws IOException {
+    CssRenamingTable table = roundTrip(CssRenamingTable.of(
+        ImmutableMap.<String, String>of()));
+    assertEquals(0, table.size());
+    assertNull(table.get("foo"));
+  }
+
+  @Test
+  public static final void testBadMagic() {
+    try {
+      CssRenamingTable.read(ByteSource.wrap(new byte[] { 0, 0, 0, 0 }));
+      fail("read garbage");
+    } catch (@SuppressWarnings("unused") IOException ex) {
+      // Ok
+    }
+  }
+}
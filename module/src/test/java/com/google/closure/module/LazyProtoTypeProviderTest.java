@@ -0,0 +1,164 @@
+package com.google.closure.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.template.soy.types.SoyObjectType;
+import com.google.template.soy.types.SoyType;
+import com.google.template.soy.types.SoyTypeProvider;
+import com.google.template.soy.types.SoyTypeRegistry;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class LazyProtoTypeProviderTest extends TestCase {
+
+  private static SoyTypeRegistry registryFor(SoyTypeProvider provider) {
+    return new SoyTypeRegistry(ImmutableSet.of(provider));
+  }
+
+  private static LazyProtoTypeProvider providerFor(FileDescriptorSet set)
+  throws IOException {
+    return new LazyProtoTypeProvider(
+        ProtoDescriptorIndex.decode(
+            ByteSource.wrap(ProtoDescriptorIndex.encode(set))));
+  }
+
+  /** Loads resources from dir alone, not the test class path. */
+  private static URLClassLoader loaderFor(File dir) throws IOException {
+    return new URLClassLoader(new URL[] { dir.toURI().toURL() }, null);
+  }
+
+  private static void write(File dir, String resourcePath, byte[] content)
+  throws IOException {
+    File f = new File(dir, resourcePath.substring(1));
+    Files.createParentDirs(f);
+    Files.write(content, f);
+  }
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    assertTrue(f.delete());
+  }
+
+  @Test
+  public static void testTypeFromFileWithDependency() throws Exception {
+    LazyProtoTypeProvider provider =
+        providerFor(ProtoDescriptorIndexTest.descriptorSet());
+    SoyTypeRegistry registry = registryFor(provider);
+
+    // b/main.proto imports a/dep.proto.
+    SoyType main = provider.getType("b.Main", registry);
+    assertNotNull(main);
+    assertEquals(SoyType.Kind.OBJECT, main.getKind());
+    assertEquals("b.Main", ((SoyObjectType) main).getName());
+    SoyType dep = ((SoyObjectType) main).getFieldType("dep");
+    assertEquals(SoyType.Kind.OBJECT, dep.getKind());
+    assertEquals("a.Dep", ((SoyObjectType) dep).getName());
+    assertEquals(
+        SoyType.Kind.ENUM,
+        ((SoyObjectType) main).getFieldType("color").getKind());
+
+    // Types from the dependency itself and nested types.
+    assertEquals(
+        SoyType.Kind.OBJECT,
+        provider.getType("a.Dep.Inner", registry).getKind());
+    assertEquals(
+        SoyType.Kind.ENUM,
+        provider.getType("a.Dep.Kind", registry).getKind());
+    assertEquals(
+        SoyType.Kind.ENUM,
+        provider.getType("b.Main.Mode", registry).getKind());
+
+    // Through the registry.
+    assertSame(SoyType.Kind.OBJECT, registry.getType("a.Dep").getKind());
+  }
+
+  @Test
+  public static void testMiss() throws Exception {
+    LazyProtoTypeProvider provider =
+        providerFor(ProtoDescriptorIndexTest.descriptorSet());
+    SoyTypeRegistry registry = registryFor(provider);
+    assertNull(provider.getType("b.Missing", registry));
+    assertNull(provider.getType("a", registry));
+    assertNull(registry.getType("b.Missing"));
+
+    LazyProtoTypeProvider empty =
+        providerFor(FileDescriptorSet.getDefaultInstance());
+    assertNull(empty.getType("b.Main", registryFor(empty)));
+  }
+
+  @Test
+  public static void testFromResourcesPrefersIndex() throws Exception {
+    FileDescriptorSet set = ProtoDescriptorIndexTest.descriptorSet();
+    File dir = Files.createTempDir();
+    try {
+      write(dir, ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH,
+          set.toByteArray());
+      // An index of only the first file shows which was read.
+      write(dir, ClosureModule.PROTO_DESCRIPTOR_INDEX_RESOURCE_PATH,
+          ProtoDescriptorIndex.encode(
+              FileDescriptorSet.newBuilder().addFile(set.getFile(0)).build()));
+      LazyProtoTypeProvider provider;
+      try (URLClassLoader loader = loaderFor(dir)) {
+        provider = LazyProtoTypeProvider.fromResources(loader);
+      }
+      SoyTypeRegistry registry = registryFor(provider);
+      assertNotNull(provider.getType("a.Dep", registry));
+      assertNull(provider.getType("b.Main", registry));
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public static void testFromResourcesFallsBackToDescriptorSet()
+  throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // As bundled by plugin versions that did not write an index.
+      write(dir, ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH,
+          ProtoDescriptorIndexTest.descriptorSet().toByteArray());
+      LazyProtoTypeProvider provider;
+      try (URLClassLoader loader = loaderFor(dir)) {
+        provider = LazyProtoTypeProvider.fromResources(loader);
+      }
+      SoyTypeRegistry registry = registryFor(provider);
+      SoyType main = provider.getType("b.Main", registry);
+      assertEquals("b.Main", ((SoyObjectType) main).getName());
+      assertEquals(
+          "a.Dep",
+          ((SoyObjectType) ((SoyObjectType) main).getFieldType("dep"))
+          .getName());
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public static void testFromResourcesWithNothingBundled() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      LazyProtoTypeProvider provider;
+      try (URLClassLoader loader = loaderFor(dir)) {
+        provider = LazyProtoTypeProvider.fromResources(loader);
+      }
+      assertNull(provider.getType("b.Main", registryFor(provider)));
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.google.closure.module;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.template.soy.data.SoyRecord;
+import com.google.template.soy.jbcsrc.shared.CompiledTemplate;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PrecompiledTemplatesTest extends TestCase {
+
+  public static final class FooFactory implements CompiledTemplate.Factory {
+    @Override
+    public CompiledTemplate create(SoyRecord params, SoyRecord ij) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public static final class BarFactory implements CompiledTemplate.Factory {
+    @Override
+    public CompiledTemplate create(SoyRecord params, SoyRecord ij) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static PrecompiledTemplateIndex index(
+      final ImmutableMap<String, String> factoryClassNames) {
+    return new PrecompiledTemplateIndex() {
+      @Override
+      public ImmutableMap<String, String> getFactoryClassNames() {
+        return factoryClassNames;
+      }
+    };
+  }
+
+  @Test
+  public static final void testFromIndices() {
+    PrecompiledTemplates templates = PrecompiledTemplates.fromIndices(
+        ImmutableList.of(
+            index(ImmutableMap.of("ns.foo", FooFactory.class.getName())),
+            index(ImmutableMap.of(
+                "ns.foo", BarFactory.class.getName(),
+                "ns.bar", BarFactory.class.getName()))),
+        PrecompiledTemplatesTest.class.getClassLoader());
+    assertEquals(
+        ImmutableSet.of("ns.foo", "ns.bar"), templates.getTemplateNames());
+    // Earlier indices win.
+    assertTrue(
+        templates.getFactory("ns.foo").get() instanceof FooFactory);
+    assertTrue(
+        templates.getFactory("ns.bar").get() instanceof BarFactory);
+    assertFalse(templates.hasTemplate("ns.baz"));
+    assertFalse(templates.getFactory("ns.baz").isPresent());
+  }
+
+  @Test
+  public static final void testStaleEntriesAreSkipped() {
+    PrecompiledTemplates templates = PrecompiledTemplates.fromIndices(
+        ImmutableList.of(index(ImmutableMap.of(
+            "ns.missing", "com.example.NoSuchTemplate$Factory",
+            "ns.notAFactory", String.class.getName(),
+            "ns.foo", FooFactory.class.getName()))),
+        PrecompiledTemplatesTest.class.getClassLoader());
+    assertEquals(ImmutableSet.of("ns.foo"), templates.getTemplateNames());
+  }
+}
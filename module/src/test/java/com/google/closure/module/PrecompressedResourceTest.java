@@ -0,0 +1,47 @@
+package com.google.closure.module;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PrecompressedResourceTest extends TestCase {
+
+  @Test
+  public static final void testAcceptsGzip() {
+    assertFalse(PrecompressedResource.acceptsGzip(null));
+    assertFalse(PrecompressedResource.acceptsGzip(""));
+    assertFalse(PrecompressedResource.acceptsGzip("identity"));
+    assertFalse(PrecompressedResource.acceptsGzip("deflate, br"));
+    assertTrue(PrecompressedResource.acceptsGzip("gzip"));
+    assertTrue(PrecompressedResource.acceptsGzip("GZip"));
+    assertTrue(PrecompressedResource.acceptsGzip("deflate, gzip, br"));
+    assertTrue(PrecompressedResource.acceptsGzip("gzip;q=0.5"));
+    assertTrue(PrecompressedResource.acceptsGzip("gzip; q=0.001"));
+  }
+
+  @Test
+  public static final void testRefusal() {
+    assertFalse(PrecompressedResource.acceptsGzip("gzip;q=0"));
+    assertFalse(PrecompressedResource.acceptsGzip("gzip; q=0.0"));
+    assertFalse(PrecompressedResource.acceptsGzip("gzip;q=0.000, br"));
+  }
+
+  @Test
+  public static final void testWildcard() {
+    assertTrue(PrecompressedResource.acceptsGzip("*"));
+    assertTrue(PrecompressedResource.acceptsGzip("br, *;q=0.1"));
+    assertFalse(PrecompressedResource.acceptsGzip("*;q=0"));
+    // An explicit entry for gzip wins over the wildcard in either order.
+    assertFalse(PrecompressedResource.acceptsGzip("gzip;q=0, *"));
+    assertFalse(PrecompressedResource.acceptsGzip("*, gzip;q=0"));
+    assertTrue(PrecompressedResource.acceptsGzip("gzip, *;q=0"));
+    assertTrue(PrecompressedResource.acceptsGzip("*;q=0, gzip"));
+  }
+
+  @Test
+  public static final void testMissingResource() {
+    assertFalse(PrecompressedResource.forResource(
+        "/closure/css/no-such-file.css", "gzip").isPresent());
+  }
+}
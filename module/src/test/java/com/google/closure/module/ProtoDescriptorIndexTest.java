@@ -0,0 +1,213 @@
+package com.google.closure.module;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ProtoDescriptorIndexTest extends TestCase {
+
+  static EnumDescriptorProto enumeration(String name) {
+    return EnumDescriptorProto.newBuilder()
+        .setName(name)
+        .addValue(
+            EnumValueDescriptorProto.newBuilder()
+            .setName(name.toUpperCase() + "_UNKNOWN").setNumber(0))
+        .build();
+  }
+
+  static FieldDescriptorProto field(
+      String name, int number, FieldDescriptorProto.Type type,
+      String typeName) {
+    return FieldDescriptorProto.newBuilder()
+        .setName(name)
+        .setNumber(number)
+        .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+        .setType(type)
+        .setTypeName(typeName)
+        .build();
+  }
+
+  /**
+   * <pre>
+   * // a/dep.proto
+   * package a;
+   * message Dep { message Inner {} enum Kind {...} }
+   * enum Color {...}
+   *
+   * // b/main.proto
+   * package b;
+   * import "a/dep.proto";
+   * message Main { a.Dep dep = 1; a.Color color = 2; enum Mode {...} }
+   * </pre>
+   */
+  static FileDescriptorSet descriptorSet() {
+    FileDescriptorProto dep = FileDescriptorProto.newBuilder()
+        .setName("a/dep.proto")
+        .setPackage("a")
+        .addMessageType(
+            DescriptorProto.newBuilder()
+            .setName("Dep")
+            .addNestedType(DescriptorProto.newBuilder().setName("Inner"))
+            .addEnumType(enumeration("Kind")))
+        .addEnumType(enumeration("Color"))
+        .build();
+    FileDescriptorProto main = FileDescriptorProto.newBuilder()
+        .setName("b/main.proto")
+        .setPackage("b")
+        .addDependency("a/dep.proto")
+        .addMessageType(
+            DescriptorProto.newBuilder()
+            .setName("Main")
+            .addField(field(
+                "dep", 1, FieldDescriptorProto.Type.TYPE_MESSAGE, ".a.Dep"))
+            .addField(field(
+                "color", 2, FieldDescriptorProto.Type.TYPE_ENUM, ".a.Color"))
+            .addEnumType(enumeration("Mode")))
+        .build();
+    return FileDescriptorSet.newBuilder()
+        .addFile(dep)
+        .addFile(main)
+        .build();
+  }
+
+  @Test
+  public static void testRoundTrip() throws Exception {
+    ProtoDescriptorIndex index = ProtoDescriptorIndex.decode(
+        ByteSource.wrap(ProtoDescriptorIndex.encode(descriptorSet())));
+
+    assertEquals(
+        ImmutableList.of("a/dep.proto", "b/main.proto"),
+        index.getFileNames());
+    assertEquals(
+        ImmutableList.of(
+            "a.Color", "a.Dep", "a.Dep.Inner", "a.Dep.Kind",
+            "b.Main", "b.Main.Mode"),
+        index.getTypeNames());
+
+    assertEquals(
+        Optional.of("a/dep.proto"), index.getFileDefiningType("a.Dep.Inner"));
+    assertEquals(
+        Optional.of("a/dep.proto"), index.getFileDefiningType("a.Dep.Kind"));
+    assertEquals(
+        Optional.of("a/dep.proto"), index.getFileDefiningType("a.Color"));
+    assertEquals(
+        Optional.of("b/main.proto"), index.getFileDefiningType("b.Main.Mode"));
+    assertEquals(Optional.absent(), index.getFileDefiningType("b.Missing"));
+    assertEquals(Optional.absent(), index.getFileDefiningType(".b.Main"));
+
+    // Building a file builds its dependencies and links across files.
+    FileDescriptor main = index.getFileDescriptor("b/main.proto").get();
+    Descriptor mainMessage = main.findMessageTypeByName("Main");
+    FieldDescriptor depField = mainMessage.findFieldByName("dep");
+    assertEquals("a.Dep", depField.getMessageType().getFullName());
+    assertEquals(
+        "a.Color",
+        mainMessage.findFieldByName("color").getEnumType().getFullName());
+    FileDescriptor dep = index.getFileDescriptor("a/dep.proto").get();
+    assertSame(dep, main.getDependencies().get(0));
+    assertSame(dep, depField.getMessageType().getFile());
+    assertEquals(
+        "a.Dep.Kind",
+        dep.findMessageTypeByName("Dep").findEnumTypeByName("Kind")
+        .getFullName());
+
+    // Built once.
+    assertSame(main, index.getFileDescriptor("b/main.proto").get());
+    assertEquals(
+        ImmutableList.of(dep, main), index.getAllFileDescriptors());
+
+    assertEquals(
+        Optional.absent(), index.getFileDescriptor("c/missing.proto"));
+  }
+
+  @Test
+  public static void testDuplicateFilesAndTypes() throws Exception {
+    FileDescriptorSet set = descriptorSet();
+    FileDescriptorProto shadow = FileDescriptorProto.newBuilder()
+        .setName("c/shadow.proto")
+        .setPackage("a")
+        .addMessageType(DescriptorProto.newBuilder().setName("Dep"))
+        .build();
+    set = set.toBuilder()
+        // A repeated file is only indexed once.
+        .addFile(set.getFile(0))
+        .addFile(shadow)
+        .build();
+    ProtoDescriptorIndex index = ProtoDescriptorIndex.decode(
+        ByteSource.wrap(ProtoDescriptorIndex.encode(set)));
+    assertEquals(
+        ImmutableList.of("a/dep.proto", "b/main.proto", "c/shadow.proto"),
+        index.getFileNames());
+    // The first definition wins.
+    assertEquals(
+        Optional.of("a/dep.proto"), index.getFileDefiningType("a.Dep"));
+  }
+
+  @Test
+  public static void testMissingDependency() throws Exception {
+    FileDescriptorSet set = FileDescriptorSet.newBuilder()
+        .addFile(descriptorSet().getFile(1))
+        .build();
+    ProtoDescriptorIndex index = ProtoDescriptorIndex.decode(
+        ByteSource.wrap(ProtoDescriptorIndex.encode(set)));
+    assertEquals(
+        Optional.of("b/main.proto"), index.getFileDefiningType("b.Main"));
+    try {
+      index.getFileDescriptor("b/main.proto");
+      fail();
+    } catch (IOException ex) {
+      assertEquals(
+          "Proto descriptor index lacks a/dep.proto"
+          + " which is imported by b/main.proto",
+          ex.getMessage());
+    }
+  }
+
+  @Test
+  public static void testBadHeader() throws Exception {
+    byte[] good = ProtoDescriptorIndex.encode(descriptorSet());
+
+    byte[] badMagic = good.clone();
+    badMagic[0] ^= 1;
+    assertNotDecodable(badMagic, "Not a proto descriptor index");
+
+    byte[] badVersion = good.clone();
+    badVersion[7] += 1;
+    assertNotDecodable(badVersion, "Not a proto descriptor index");
+
+    // The descriptor set, not its index.
+    assertNotDecodable(
+        descriptorSet().toByteArray(), "Not a proto descriptor index");
+
+    // Truncated in the descriptors.
+    assertNotDecodable(
+        Arrays.copyOf(good, good.length - 1),
+        "Malformed proto descriptor index");
+  }
+
+  private static void assertNotDecodable(byte[] bytes, String message) {
+    try {
+      ProtoDescriptorIndex.decode(ByteSource.wrap(bytes));
+      fail();
+    } catch (IOException ex) {
+      assertEquals(message, ex.getMessage());
+    }
+  }
+}
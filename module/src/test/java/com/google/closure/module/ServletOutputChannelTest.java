@@ -0,0 +1,160 @@
+package com.google.closure.module;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.template.soy.jbcsrc.api.RenderResult;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ServletOutputChannelTest extends TestCase {
+
+  /** A non-blocking stream whose readiness the test controls. */
+  static final class FakeServletOutputStream extends ServletOutputStream {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    boolean ready;
+    WriteListener listener;
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener newListener) {
+      assertNull(listener);
+      this.listener = newListener;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      assertTrue(ready);
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      assertTrue(ready);
+      bytes.write(b, off, len);
+    }
+
+    /** Like the container's notification after isReady returned false. */
+    void becomeReady() throws IOException {
+      ready = true;
+      listener.onWritePossible();
+    }
+  }
+
+  static final class Counter implements Runnable {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public void run() {
+      count.incrementAndGet();
+    }
+  }
+
+  @Test
+  public static final void testWhenReadyWaitsForListener() throws Exception {
+    FakeServletOutputStream out = new FakeServletOutputStream();
+    ServletOutputChannel channel = ServletOutputChannel.of(out);
+    assertNotNull(out.listener);
+    assertSame(out, channel.getOutputStream());
+
+    assertFalse(channel.isReady());
+    Counter callback = new Counter();
+    channel.whenReady(callback);
+    assertEquals(0, callback.count.get());
+
+    out.becomeReady();
+    assertEquals(1, callback.count.get());
+    assertTrue(channel.isReady());
+    // Runs once.
+    out.listener.onWritePossible();
+    assertEquals(1, callback.count.get());
+  }
+
+  @Test
+  public static final void testReadyBeforeWhenReady() throws Exception {
+    FakeServletOutputStream out = new FakeServletOutputStream();
+    ServletOutputChannel channel = ServletOutputChannel.of(out);
+
+    assertFalse(channel.isReady());
+    // The container may signal before the callback is registered.
+    out.becomeReady();
+    Counter callback = new Counter();
+    channel.whenReady(callback);
+    assertEquals(1, callback.count.get());
+
+    // But a signal is forgotten once isReady is asked again.
+    out.ready = false;
+    out.listener.onWritePossible();
+    assertFalse(channel.isReady());
+    Counter callback2 = new Counter();
+    channel.whenReady(callback2);
+    assertEquals(0, callback2.count.get());
+    out.becomeReady();
+    assertEquals(1, callback2.count.get());
+  }
+
+  @Test
+  public static final void testOnError() throws Exception {
+    FakeServletOutputStream out = new FakeServletOutputStream();
+    ServletOutputChannel channel = ServletOutputChannel.of(out);
+
+    assertFalse(channel.isReady());
+    Counter callback = new Counter();
+    channel.whenReady(callback);
+    Throwable failure = new IOException("client went away");
+    out.listener.onError(failure);
+    // The waiting callback runs so that it sees the failure.
+    assertEquals(1, callback.count.get());
+    try {
+      channel.isReady();
+      fail();
+    } catch (IOException ex) {
+      assertSame(failure, ex.getCause());
+    }
+
+    // Later callbacks need not wait.
+    Counter callback2 = new Counter();
+    channel.whenReady(callback2);
+    assertEquals(1, callback2.count.get());
+  }
+
+  @Test
+  public static final void testRender() throws Exception {
+    FakeServletOutputStream out = new FakeServletOutputStream();
+    ServletOutputChannel channel = ServletOutputChannel.of(out);
+    AsyncRendererTest.QueueExecutor executor =
+        new AsyncRendererTest.QueueExecutor();
+    AsyncRendererTest.Script script = new AsyncRendererTest.Script(
+        null,
+        ImmutableList.of("foo", "bar"),
+        ImmutableList.of(RenderResult.limited(), RenderResult.done()));
+
+    ListenableFuture<Void> done = new AsyncRenderer(
+        executor, MoreExecutors.directExecutor())
+        .render(script, channel);
+    executor.runAll();
+    assertFalse(done.isDone());
+    assertEquals(0, out.bytes.size());
+
+    out.becomeReady();
+    executor.runAll();
+    assertTrue(done.isDone());
+    assertEquals(
+        "foobar", new String(out.bytes.toByteArray(), Charsets.UTF_8));
+  }
+}
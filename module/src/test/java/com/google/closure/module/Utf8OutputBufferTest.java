@@ -0,0 +1,258 @@
+package com.google.closure.module;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class Utf8OutputBufferTest extends TestCase {
+
+  /** Records whether it was closed. */
+  static final class Sink extends ByteArrayOutputStream {
+    boolean closed;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    String utf8() {
+      return new String(toByteArray(), Charsets.UTF_8);
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(Charsets.UTF_8);
+  }
+
+  @Test
+  public static final void testEncoding() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    b.append("Hi, ")
+        .append("caf\u00e9 ")                // 2 bytes
+        .append("\u20ac\uffff ")             // 3 bytes
+        .append("\ud83d\ude00")              // 4 bytes
+        .append('!');
+    b.finish();
+    assertEquals(
+        Arrays.toString(utf8("Hi, caf\u00e9 \u20ac\uffff \ud83d\ude00!")),
+        Arrays.toString(out.toByteArray()));
+    assertEquals(4 + 6 + 7 + 4 + 1, out.size());
+  }
+
+  @Test
+  public static final void testSurrogatePairSplitAcrossAppends()
+  throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    b.append("a\ud83d");
+    // Flushing does not write half a character.
+    b.flush();
+    assertEquals("a", out.utf8());
+    b.append('\ude00');
+    b.append("b\ud83dc", 0, 2);
+    b.append("\ude01x", 0, 1);
+    b.finish();
+    assertEquals("a\ud83d\ude00b\ud83d\ude01", out.utf8());
+  }
+
+  @Test
+  public static final void testUnpairedSurrogates() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    b.append("[\ud83d]");         // High followed by a non-surrogate.
+    b.append("[\ud83d\ud83d]");   // High followed by high.
+    b.append("[\ude00]");         // Lone low.
+    b.append("[\ude00\ud83d]");   // Low before high.
+    b.append("[\ud83d");          // High at the end.
+    b.finish();
+    assertEquals("[?][??][?][??][?", out.utf8());
+
+    // Same as the JDK encoder.
+    String malformed = "\ud83d.\ude00\ud83d\ud83d\ude00\ud83d";
+    Sink out2 = new Sink();
+    Utf8OutputBuffer b2 = new Utf8OutputBuffer(out2, 1024, true);
+    b2.append(malformed);
+    b2.finish();
+    assertEquals(
+        Arrays.toString(utf8(malformed)),
+        Arrays.toString(out2.toByteArray()));
+  }
+
+  @Test
+  public static final void testAppendNull() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    b.append(null).append(null, 1, 3);
+    b.finish();
+    assertEquals("nullul", out.utf8());
+  }
+
+  @Test
+  public static final void testWritesWhenFull() throws IOException {
+    int cap = Utf8OutputBuffer.POOLED_BUFFER_SIZE;
+    // Fill the buffer so that the next character does not fit.
+    String ascii = Strings.repeat("a", cap - 2);
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    b.append(ascii);
+    assertEquals(0, out.size());
+    assertEquals(cap - 2, b.bufferedByteCount());
+    b.append("\u20ac");  // 3 bytes
+    assertEquals(cap - 2, out.size());
+    assertEquals(3, b.bufferedByteCount());
+    // An ASCII run that spans the boundary.
+    b.append(Strings.repeat("b", cap));
+    assertEquals(2 * cap + 1, out.size() + b.bufferedByteCount());
+    assertTrue(out.size() >= cap + 1);
+    b.finish();
+    assertEquals(ascii + "\u20ac" + Strings.repeat("b", cap), out.utf8());
+  }
+
+  @Test
+  public static final void testGrowsWhenFull() throws IOException {
+    int cap = Utf8OutputBuffer.POOLED_BUFFER_SIZE;
+    String ascii = Strings.repeat("a", cap - 1);
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, false);
+    b.append(ascii);
+    b.append("\ud83d\ude00");
+    b.append(Strings.repeat("b", cap));
+    // Nothing is written until asked.
+    assertEquals(0, out.size());
+    assertEquals(2 * cap + 3, b.bufferedByteCount());
+    b.writeBuffered();
+    assertEquals(2 * cap + 3, out.size());
+    assertEquals(0, b.bufferedByteCount());
+    b.finish();
+    assertEquals(
+        ascii + "\ud83d\ude00" + Strings.repeat("b", cap), out.utf8());
+  }
+
+  @Test
+  public static final void testSoftLimit() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 4, true);
+    b.append("abc");
+    assertFalse(b.softLimitReached());
+    // Counts bytes, not chars.
+    b.append('\u00e9');
+    assertTrue(b.softLimitReached());
+    b.flush();
+    assertFalse(b.softLimitReached());
+    assertEquals("abc\u00e9", out.utf8());
+    b.append("abcd");
+    assertTrue(b.softLimitReached());
+    b.writeBuffered();
+    assertFalse(b.softLimitReached());
+    b.finish();
+  }
+
+  @Test
+  public static final void testRandomText() throws IOException {
+    Random rnd = new Random(0x5eed);
+    char[] alphabet = {
+      'a', '<', '\u00e9', '\u07ff', '\u0800', '\u20ac', '\uffff',
+      '\ud800', '\udbff', '\udc00', '\udfff',
+    };
+    for (int trial = 0; trial < 200; ++trial) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = rnd.nextInt(3 * Utf8OutputBuffer.POOLED_BUFFER_SIZE);
+           --i >= 0;) {
+        sb.append(alphabet[rnd.nextInt(alphabet.length)]);
+      }
+      String s = sb.toString();
+      Sink out = new Sink();
+      Utf8OutputBuffer b = new Utf8OutputBuffer(
+          out, 1 + rnd.nextInt(1024), rnd.nextBoolean());
+      for (int i = 0; i < s.length();) {
+        int end = Math.min(s.length(), i + rnd.nextInt(64));
+        if (end == i + 1 && rnd.nextBoolean()) {
+          b.append(s.charAt(i));
+        } else {
+          b.append(s, i, end);
+        }
+        i = end;
+      }
+      b.finish();
+      assertTrue(s, Arrays.equals(utf8(s), out.toByteArray()));
+    }
+  }
+
+  @Test
+  public static final void testCloseReturnsBufferAndClosesStream()
+  throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    int idle = Utf8OutputBuffer.idleBufferCount();
+    b.append("foo\ud83d");
+    b.close();
+    assertTrue(out.closed);
+    assertEquals("foo?", out.utf8());
+    assertEquals(idle + 1, Utf8OutputBuffer.idleBufferCount());
+    // Closing again is a no-op.
+    b.close();
+    assertEquals(idle + 1, Utf8OutputBuffer.idleBufferCount());
+
+    try {
+      b.append("bar");
+      fail();
+    } catch (@SuppressWarnings("unused") IOException ex) {
+      // Ok
+    }
+    try {
+      b.append('x');
+      fail();
+    } catch (@SuppressWarnings("unused") IOException ex) {
+      // Ok
+    }
+    try {
+      b.flush();
+      fail();
+    } catch (@SuppressWarnings("unused") IOException ex) {
+      // Ok
+    }
+    assertEquals("foo?", out.utf8());
+  }
+
+  @Test
+  public static final void testReleaseDiscardsContent() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(out, 1024, true);
+    int idle = Utf8OutputBuffer.idleBufferCount();
+    b.append("foo");
+    b.release();
+    b.release();
+    assertEquals(idle + 1, Utf8OutputBuffer.idleBufferCount());
+    assertEquals(0, out.size());
+    assertFalse(out.closed);
+    try {
+      b.append("bar");
+      fail();
+    } catch (@SuppressWarnings("unused") IOException ex) {
+      // Ok
+    }
+    // Finishing after release writes nothing.
+    b.finish();
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public static final void testLargeBuffersAreNotPooled() throws IOException {
+    Sink out = new Sink();
+    Utf8OutputBuffer b = new Utf8OutputBuffer(
+        out, Utf8OutputBuffer.POOLED_BUFFER_SIZE, true);
+    int idle = Utf8OutputBuffer.idleBufferCount();
+    b.close();
+    assertEquals(idle, Utf8OutputBuffer.idleBufferCount());
+  }
+}
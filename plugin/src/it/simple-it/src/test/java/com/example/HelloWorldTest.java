@@ -4,6 +4,8 @@ import com.google.common.collect.ImmutableMap;
 import java.util.Map;
 
 import com.google.closure.module.ClosureModule;
+import com.google.closure.module.PrecompiledTemplates;
+import com.google.closure.module.PrecompiledTemplatesModule;
 
 // Protos
 import com.example.Proto1.Name;
@@ -44,7 +46,8 @@ public final class HelloWorldTest extends TestCase {
   SoyCssRenamingMap cssRenamingMap;
 
   {
-    injector = Guice.createInjector(new ClosureModule());
+    injector = Guice.createInjector(
+        new ClosureModule(), new PrecompiledTemplatesModule());
     injector.injectMembers(this);
   }
 
@@ -119,4 +122,12 @@ public final class HelloWorldTest extends TestCase {
         + "Hello, <b class=\"b\">Cincinatti &lt;:-}&gt;</b>!</div>",
         output.getContent());
   }
+
+  @Test
+  public final void testTemplateIndexListsCompiledTemplates() {
+    PrecompiledTemplates templates =
+        injector.getInstance(PrecompiledTemplates.class);
+    assertTrue(templates.hasTemplate(TEMPLATE_NAME));
+    assertTrue(templates.getFactory(TEMPLATE_NAME).isPresent());
+  }
 }
@@ -33,6 +33,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.css.OutputRenamingMapFormat;
+import com.google.closure.module.ClosureModule;
+import com.google.closure.module.CssRenamingTable;
 import com.google.closure.plugin.common.Cheats;
 import com.google.closure.plugin.common.StableCssSubstitutionMapProvider;
 import com.google.closure.plugin.common.DefaultProcessRunner;
@@ -156,12 +158,24 @@ abstract class AbstractClosureMojo extends AbstractMojo {
   protected String genJavaPackageName;
 
 
+  /** Must agree with where the runtime looks for the JSON rename map. */
+  static final String CSS_RENAME_MAP_BASENAME =
+      basename(ClosureModule.CSS_RENAMING_MAP_RESOURCE_PATH);
+
+  /** Must agree with where the runtime looks for the rename table. */
+  static final String CSS_RENAME_TABLE_BASENAME =
+      basename(ClosureModule.CSS_RENAMING_TABLE_RESOURCE_PATH);
+
+  private static String basename(String resourcePath) {
+    return resourcePath.substring(resourcePath.lastIndexOf('/') + 1);
+  }
+
   @Override
   public void execute() throws MojoExecutionException {
     Log log = this.getLog();
 
     File cssRenameMapFile = new File(
-        new File(closureOutputDirectory, "css"), "css-rename-map.json");
+        new File(closureOutputDirectory, "css"), CSS_RENAME_MAP_BASENAME);
     log.info("Reading CSS rename map " + cssRenameMapFile);
     StableCssSubstitutionMapProvider substitutionMapProvider;
     try {
@@ -255,6 +269,17 @@ abstract class AbstractClosureMojo extends AbstractMojo {
       log.warn("Problem writing CSS rename map", ex);
     }
 
+    File cssRenameTableFile = new File(
+        cssRenameMapFile.getParentFile(), CSS_RENAME_TABLE_BASENAME);
+    log.debug("Writing rename table to " + cssRenameTableFile);
+    try (OutputStream out = Files.asByteSink(cssRenameTableFile)
+            .openBufferedStream()) {
+      CssRenamingTable.of(substitutionMapProvider.get().getMappings())
+          .write(out);
+    } catch (IOException ex) {
+      log.warn("Problem writing CSS rename table", ex);
+    }
+
 
     try (OutputStream pgOut =
              Files.asByteSink(planGraphFile).openBufferedStream()) {
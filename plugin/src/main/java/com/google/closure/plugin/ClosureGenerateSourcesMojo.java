@@ -6,6 +6,7 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
+import com.google.closure.plugin.compress.CompressPlanner;
 import com.google.closure.plugin.css.CssOptions;
 import com.google.closure.plugin.css.CssPlanner;
 import com.google.closure.plugin.extract.ExtractPlanner;
@@ -67,6 +68,14 @@ public final class ClosureGenerateSourcesMojo extends AbstractClosureMojo {
   @Parameter
   public ProtoOptions proto;
 
+  /**
+   * True to write a gzipped sibling, {@code foo.css.gz}, next to each compiled
+   * CSS, JS, and source-map file so that servers can serve precompressed
+   * bytes.
+   */
+  @Parameter(defaultValue="false")
+  protected boolean precompressOutputs;
+
 
   @Override
   public void execute() throws MojoExecutionException {
@@ -97,6 +106,7 @@ public final class ClosureGenerateSourcesMojo extends AbstractClosureMojo {
 
     SoyOptions soyOptions = soy != null ? soy : new SoyOptions();
     new SoyPlanner(context, joinNodes)
+        .genJavaPackageName(genJavaPackageName)
         .plan(soyOptions);
 
     new JsPlanner(context, joinNodes)
@@ -106,6 +116,10 @@ public final class ClosureGenerateSourcesMojo extends AbstractClosureMojo {
         .genJavaPackageName(genJavaPackageName)
         .plan();
 
+    if (precompressOutputs) {
+      new CompressPlanner(context, joinNodes).plan();
+    }
+
     // TODO: figure out how to thread externs through.
   }
 
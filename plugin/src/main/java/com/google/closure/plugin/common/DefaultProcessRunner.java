@@ -4,11 +4,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.maven.plugin.logging.Log;
@@ -185,14 +187,19 @@ public final class DefaultProcessRunner implements ProcessRunner{
 
       @Override
       public Integer get(long timeout, TimeUnit unit)
-      throws InterruptedException, ExecutionException {
-        while (true) {
-          synchronized (exitCode) {
-            if (exitCode[0] != null) {
-              return exitCode[0];
+      throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (exitCode) {
+          while (exitCode[0] == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              throw new TimeoutException(
+                  logPrefix + " did not exit within " + timeout + " "
+                  + unit.name().toLowerCase(Locale.ROOT));
             }
-            exitCode.wait(unit.toMillis(timeout));
+            TimeUnit.NANOSECONDS.timedWait(exitCode, remaining);
           }
+          return exitCode[0];
         }
       }
     };
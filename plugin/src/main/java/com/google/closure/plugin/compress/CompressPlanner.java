@@ -0,0 +1,66 @@
+package com.google.closure.plugin.compress;
+
+import java.io.File;
+
+import com.google.closure.module.ClosureModule;
+import com.google.closure.plugin.common.DirectoryScannerSpec;
+import com.google.closure.plugin.common.FileExt;
+import com.google.closure.plugin.common.TypedFile;
+import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Adds a step that writes gzipped siblings of compiled CSS and JS so that
+ * servers can serve them without compressing on each request.
+ */
+public final class CompressPlanner {
+
+  /**
+   * Outputs that are read by the runtime, not served, so there is no need to
+   * compress them.
+   * The CSS rename map is also written after the plan graph runs, so a
+   * compressed sibling would always be one build stale.
+   */
+  private static final ImmutableList<String> RUNTIME_ONLY_OUTPUTS =
+      ImmutableList.of(
+          "**/" + basename(ClosureModule.CSS_RENAMING_MAP_RESOURCE_PATH),
+          "**/" + basename(ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH));
+
+  private final PlanContext context;
+  private final JoinNodes joinNodes;
+
+  /** */
+  public CompressPlanner(PlanContext context, JoinNodes joinNodes) {
+    this.context = context;
+    this.joinNodes = joinNodes;
+  }
+
+  /** Adds steps to the common planner. */
+  public void plan() {
+    PrecompressOutputs precompress = new PrecompressOutputs(
+        context, compressibleOutputsSpec(context.closureOutputDirectory));
+
+    // Follow everything so that compiled CSS and JS are in place.
+    joinNodes.pipeline()
+        .require(FileExt._ANY)
+        .then(precompress)
+        .build();
+  }
+
+  static DirectoryScannerSpec compressibleOutputsSpec(
+      File closureOutputDirectory) {
+    return new DirectoryScannerSpec(
+        ImmutableList.of(new TypedFile(closureOutputDirectory)),
+        ImmutableList.of(
+            "**/*." + FileExt.CSS.extension,
+            "**/*." + FileExt.JS.extension,
+            "**/*." + FileExt.JSON.extension,
+            "**/*.map"),
+        RUNTIME_ONLY_OUTPUTS);
+  }
+
+  private static String basename(String resourcePath) {
+    return resourcePath.substring(resourcePath.lastIndexOf('/') + 1);
+  }
+}
@@ -0,0 +1,242 @@
+package com.google.closure.plugin.compress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import com.google.closure.module.PrecompressedResource;
+import com.google.closure.plugin.common.DirectoryScannerSpec;
+import com.google.closure.plugin.common.Sources;
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.closure.plugin.plan.PlanGraphNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Writes a gzipped sibling next to each compressible build output that
+ * changed since the last build, and removes siblings of outputs that no
+ * longer exist.
+ */
+final class PrecompressOutputs extends PlanGraphNode<PrecompressOutputs.SV> {
+
+  final DirectoryScannerSpec compressibleOutputsSpec;
+  /** Stamps of outputs when their compressed sibling was last written. */
+  private final Map<File, Stamp> compressed = Maps.newLinkedHashMap();
+  private final Map<File, Stamp> toCompress = Maps.newLinkedHashMap();
+  private final List<File> defunct = Lists.newArrayList();
+  private final List<File> changedFiles = Lists.newArrayList();
+
+  PrecompressOutputs(
+      PlanContext context, DirectoryScannerSpec compressibleOutputsSpec) {
+    super(context);
+    this.compressibleOutputsSpec = compressibleOutputsSpec;
+  }
+
+  @Override
+  protected void preExecute(Iterable<? extends PlanGraphNode<?>> preceders) {
+    // Nop
+  }
+
+  @Override
+  protected void filterUpdates() throws IOException, MojoExecutionException {
+    toCompress.clear();
+    defunct.clear();
+
+    Map<File, Stamp> extant = Maps.newLinkedHashMap();
+    for (Source s
+         : Sources.scan(context.log, compressibleOutputsSpec).sources) {
+      File f = s.canonicalPath;
+      Stamp stamp = Stamp.of(f);
+      extant.put(f, stamp);
+      if (!stamp.equals(compressed.get(f)) || !gzipFileFor(f).exists()) {
+        toCompress.put(f, stamp);
+      }
+    }
+    for (File f : compressed.keySet()) {
+      if (!extant.containsKey(f)) {
+        defunct.add(f);
+      }
+    }
+  }
+
+  @Override
+  protected void process() throws IOException, MojoExecutionException {
+    changedFiles.clear();
+
+    for (File f : defunct) {
+      compressed.remove(f);
+      File gz = gzipFileFor(f);
+      if (gz.exists()) {
+        if (!gz.delete()) {
+          throw new IOException("Failed to delete " + gz);
+        }
+        changedFiles.add(gz);
+      }
+    }
+
+    if (toCompress.isEmpty()) { return; }
+    context.log.debug("Compressing " + toCompress.size() + " build outputs");
+
+    int nThreads = Math.max(
+        1,
+        Math.min(
+            toCompress.size(), Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      Map<File, Future<File>> results = Maps.newLinkedHashMap();
+      for (final File f : toCompress.keySet()) {
+        results.put(f, executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws IOException {
+            return gzip(f);
+          }
+        }));
+      }
+      for (Map.Entry<File, Future<File>> e : results.entrySet()) {
+        File f = e.getKey();
+        try {
+          changedFiles.add(e.getValue().get());
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new MojoExecutionException("Interrupted compressing " + f, ex);
+        } catch (ExecutionException ex) {
+          throw new MojoExecutionException(
+              "Failed to compress " + f, ex.getCause());
+        }
+        compressed.put(f, toCompress.get(f));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  static File gzipFileFor(File f) {
+    return new File(
+        f.getParentFile(), f.getName() + PrecompressedResource.GZIP_SUFFIX);
+  }
+
+  /**
+   * Writes the gzipped content of f to a temporary file and moves it over
+   * the gzipped sibling so readers never see a partial file.
+   */
+  private static File gzip(File f) throws IOException {
+    File gz = gzipFileFor(f);
+    File tmp = File.createTempFile(gz.getName(), ".tmp", gz.getParentFile());
+    try {
+      try (OutputStream out = Files.asByteSink(tmp).openBufferedStream()) {
+        try (GZIPOutputStream gzOut = new BestCompressionGzipOutputStream(out)) {
+          Files.copy(f, gzOut);
+        }
+      }
+      java.nio.file.Files.move(
+          tmp.toPath(), gz.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (tmp.exists() && !tmp.delete()) {
+        tmp.deleteOnExit();
+      }
+    }
+    return gz;
+  }
+
+  private static final class BestCompressionGzipOutputStream
+  extends GZIPOutputStream {
+    BestCompressionGzipOutputStream(OutputStream out) throws IOException {
+      super(out);
+      def.setLevel(Deflater.BEST_COMPRESSION);
+    }
+  }
+
+  @Override
+  protected Iterable<? extends File> changedOutputFiles() {
+    return ImmutableList.copyOf(changedFiles);
+  }
+
+  @Override
+  protected SV getStateVector() {
+    return new SV(this);
+  }
+
+
+  /**
+   * Enough of a file's metadata to tell whether it changed without reading
+   * it.
+   */
+  static final class Stamp implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long lastModified;
+    final long length;
+
+    Stamp(long lastModified, long length) {
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    static Stamp of(File f) {
+      return new Stamp(f.lastModified(), f.length());
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (int) (lastModified ^ (lastModified >>> 32));
+      result = prime * result + (int) (length ^ (length >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Stamp other = (Stamp) obj;
+      return lastModified == other.lastModified && length == other.length;
+    }
+  }
+
+
+  static final class SV implements PlanGraphNode.StateVector {
+    private static final long serialVersionUID = 1L;
+
+    final DirectoryScannerSpec compressibleOutputsSpec;
+    final ImmutableMap<File, Stamp> compressed;
+
+    @SuppressWarnings("synthetic-access")
+    SV(PrecompressOutputs node) {
+      this.compressibleOutputsSpec = node.compressibleOutputsSpec;
+      this.compressed = ImmutableMap.copyOf(node.compressed);
+    }
+
+    @SuppressWarnings("synthetic-access")
+    @Override
+    public PlanGraphNode<?> reconstitute(PlanContext c, JoinNodes jn) {
+      PrecompressOutputs node = new PrecompressOutputs(
+          c, compressibleOutputsSpec);
+      node.compressed.putAll(compressed);
+      return node;
+    }
+  }
+}
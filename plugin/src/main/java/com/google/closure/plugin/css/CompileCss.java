@@ -11,6 +11,7 @@ import com.google.closure.plugin.plan.JoinNodes;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.closure.plugin.plan.Update;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
 final class CompileCss
@@ -29,14 +30,27 @@ extends CompilePlanGraphNode<CssOptions, CssBundle> {
     Update<OptionsAndBundles<CssOptions, CssBundle>> u =
         optionsAndBundles.get();
 
+    Optional<CssClassReferences> classReferences = Optional.absent();
     for (OptionsAndBundles<CssOptions, CssBundle> ob : u.allExtant()) {
+      CssOptions options = ob.optionsAndInputs.options;
+      if (Boolean.TRUE.equals(options.pruneUnreferencedClasses)
+          && !classReferences.isPresent()) {
+        // Scan once since the Soy and JS sources are shared by all bundles.
+        classReferences = Optional.of(
+            CssClassReferences.scan(context.log, context.srcfilesDirs));
+      }
       for (CssBundle b : ob.bundles) {
-        processOneBundle(ob.optionsAndInputs.options, b);
+        processOneBundle(
+            options, b,
+            Boolean.TRUE.equals(options.pruneUnreferencedClasses)
+            ? classReferences : Optional.<CssClassReferences>absent());
       }
     }
   }
 
-  void processOneBundle(CssOptions options, CssBundle bundle)
+  void processOneBundle(
+      CssOptions options, CssBundle bundle,
+      Optional<CssClassReferences> classReferences)
   throws MojoExecutionException {
 
     File cssFile = bundle.outputs.css;
@@ -50,6 +64,7 @@ extends CompilePlanGraphNode<CssOptions, CssBundle> {
           .outputFile(cssFile)
           .sourceMapFile(sourceMapFile)
           .substitutionMapProvider(context.substitutionMapProvider)
+          .classReferences(classReferences)
           .compileCss(context.buildContext, context.log);
     } catch (IOException ex) {
       context.log.error(ex);
@@ -66,6 +81,11 @@ extends CompilePlanGraphNode<CssOptions, CssBundle> {
   }
 
 
+  /** The files changed by the last call to {@link #process}. */
+  ImmutableList<File> getChangedFiles() {
+    return ImmutableList.copyOf(changedFiles);
+  }
+
   @Override
   protected SV getStateVector() {
     return new SV(this);
@@ -0,0 +1,316 @@
+package com.google.closure.plugin.css;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.closure.plugin.common.DirectoryScannerSpec;
+import com.google.closure.plugin.common.FileExt;
+import com.google.closure.plugin.common.SourceFileProperty;
+import com.google.closure.plugin.common.Sources;
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.common.SrcfilesDirs;
+import com.google.closure.plugin.common.TypedFile;
+import com.google.closure.plugin.soy.SoyFileInfo;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * The CSS class names referenced from Soy {@code {css ...}} commands and
+ * JavaScript {@code goog.getCssName(...)} calls.
+ * <p>
+ * A reference like {@code goog.getCssName(base, 'suffix')} cannot be resolved
+ * statically, so any class that ends with {@code -suffix} is considered
+ * referenced.  A reference with no literal part at all, like
+ * {@code goog.getCssName(x)}, could be anything, so its presence disables
+ * pruning entirely.
+ */
+final class CssClassReferences {
+  /** Class names referenced in their entirety. */
+  final ImmutableSet<String> names;
+  /** Suffixes appended to a dynamic base name. */
+  final ImmutableSet<String> suffixes;
+  /**
+   * True if some reference could not be resolved to a name or suffix so
+   * any class might be referenced.
+   */
+  final boolean unbounded;
+
+  private CssClassReferences(
+      ImmutableSet<String> names, ImmutableSet<String> suffixes,
+      boolean unbounded) {
+    this.names = names;
+    this.suffixes = suffixes;
+    this.unbounded = unbounded;
+  }
+
+  private static final Pattern SOY_CSS_COMMAND = Pattern.compile(
+      "\\{css(?:\\s+([^}]*)|\\(([^)]*)\\))\\}");
+
+  private static final Pattern SOY_NAMESPACE = Pattern.compile(
+      "\\{namespace\\s+([\\w.]+)");
+
+  private static final Pattern SOY_TEMPLATE = Pattern.compile(
+      "\\{(template|deltemplate)\\s+(\\.?[\\w.]+)[^}]*\\}");
+
+  private static final Pattern JS_GET_CSS_NAME = Pattern.compile(
+      "\\bgoog\\s*\\.\\s*getCssName\\s*\\(([^)]*)\\)");
+
+  private static final Pattern QUOTED = Pattern.compile(
+      "^(?:'([^'\\\\]*)'|\"([^\"\\\\]*)\")$");
+
+  /**
+   * Scans the default Soy and JS source directories for references.
+   */
+  static CssClassReferences scan(Log log, SrcfilesDirs srcfilesDirs)
+  throws IOException {
+    ImmutableList<Source> sources = findSoyAndJsSources(log, srcfilesDirs);
+    Builder b = new Builder();
+    for (Source s : sources) {
+      String content = Files.toString(s.canonicalPath, Charsets.UTF_8);
+      if (isSoy(s)) {
+        b.addSoy(content);
+      } else {
+        b.addJs(content);
+      }
+    }
+    CssClassReferences refs = b.build();
+    log.debug(
+        "Found " + refs.names.size() + " CSS class names and "
+        + refs.suffixes.size() + " suffixes referenced from "
+        + sources.size() + " Soy and JS files");
+    return refs;
+  }
+
+  /**
+   * Scans the default Soy source directories for references from the named
+   * templates and the templates they call.
+   *
+   * @param templateNames fully qualified template names like
+   *     {@code my.namespace.templateName}.
+   */
+  static CssClassReferences scanTemplates(
+      Log log, SrcfilesDirs srcfilesDirs, Set<String> templateNames)
+  throws IOException {
+    ImmutableList.Builder<String> soyContents = ImmutableList.builder();
+    for (Source s : findSoyAndJsSources(log, srcfilesDirs)) {
+      if (isSoy(s)) {
+        soyContents.add(Files.toString(s.canonicalPath, Charsets.UTF_8));
+      }
+    }
+    return fromTemplates(soyContents.build(), templateNames);
+  }
+
+  /**
+   * The references from the named templates and any templates they call
+   * directly or indirectly.
+   *
+   * @param soyContents the content of Soy files.
+   * @param templateNames fully qualified template names.
+   */
+  @VisibleForTesting
+  static CssClassReferences fromTemplates(
+      Iterable<? extends String> soyContents, Set<String> templateNames) {
+    ImmutableSetMultimap.Builder<String, String> callGraph =
+        ImmutableSetMultimap.builder();
+    for (String content : soyContents) {
+      callGraph.putAll(SoyFileInfo.callGraph(content));
+    }
+    Set<String> reachable = reachableFrom(templateNames, callGraph.build());
+
+    Builder b = new Builder();
+    for (String content : soyContents) {
+      b.addSoyTemplates(content, reachable);
+    }
+    return b.build();
+  }
+
+  /**
+   * The named templates and those reachable from them along call edges.
+   * A delegate call reaches every implementation since we do not know which
+   * delegate package will be active.
+   */
+  private static Set<String> reachableFrom(
+      Set<String> templateNames, ImmutableSetMultimap<String, String> calls) {
+    Set<String> reachable = Sets.newLinkedHashSet(templateNames);
+    Deque<String> toVisit = new ArrayDeque<>(templateNames);
+    while (!toVisit.isEmpty()) {
+      for (String callee : calls.get(toVisit.removeFirst())) {
+        if (reachable.add(callee)) {
+          toVisit.add(callee);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  private static boolean isSoy(Source s) {
+    return s.relativePath.getName().endsWith(".soy");
+  }
+
+  private static ImmutableList<Source> findSoyAndJsSources(
+      Log log, SrcfilesDirs srcfilesDirs)
+  throws IOException {
+    ImmutableList.Builder<TypedFile> roots = ImmutableList.builder();
+    for (FileExt ext : ImmutableList.of(FileExt.SOY, FileExt.JS)) {
+      roots.add(srcfilesDirs.getDefaultProjectSourceDirectory(ext));
+      roots.add(srcfilesDirs.getDefaultProjectSourceDirectory(
+          ext, SourceFileProperty.TEST_ONLY));
+    }
+    return Sources.scan(log, new DirectoryScannerSpec(
+        roots.build(),
+        ImmutableList.of("**/*.soy", "**/*.js"),
+        ImmutableList.<String>of()))
+        .sources;
+  }
+
+  /**
+   * A predicate over class names as they appear in compiled CSS that is true
+   * for those that might be referenced.
+   *
+   * @param originalToRenamed the mappings recorded by the renamer.
+   */
+  Predicate<String> isReferencedAfterRenaming(
+      Map<? extends String, ? extends String> originalToRenamed) {
+    final Map<String, String> renamedToOriginal = Maps.newHashMap();
+    for (Map.Entry<? extends String, ? extends String> e
+         : originalToRenamed.entrySet()) {
+      renamedToOriginal.put(e.getValue(), e.getKey());
+    }
+    return new Predicate<String>() {
+      @Override
+      public boolean apply(String renamed) {
+        return isReferenced(originalNameOf(renamed, renamedToOriginal));
+      }
+    };
+  }
+
+  @VisibleForTesting
+  boolean isReferenced(String originalName) {
+    if (unbounded || names.contains(originalName)) {
+      return true;
+    }
+    for (int i = originalName.indexOf('-'); i >= 0;
+         i = originalName.indexOf('-', i + 1)) {
+      if (suffixes.contains(originalName.substring(i + 1))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String originalNameOf(
+      String renamed, Map<String, String> renamedToOriginal) {
+    String original = renamedToOriginal.get(renamed);
+    if (original != null) {
+      return original;
+    }
+    // Names are renamed part-wise, so "a-b" might be the renaming of
+    // "foo-bar".
+    StringBuilder sb = new StringBuilder(renamed.length() * 2);
+    for (String part : renamed.split("-", -1)) {
+      String originalPart = renamedToOriginal.get(part);
+      if (sb.length() != 0) {
+        sb.append('-');
+      }
+      sb.append(originalPart != null ? originalPart : part);
+    }
+    return sb.toString();
+  }
+
+
+  @VisibleForTesting
+  static final class Builder {
+    private final ImmutableSet.Builder<String> names = ImmutableSet.builder();
+    private final ImmutableSet.Builder<String> suffixes =
+        ImmutableSet.builder();
+    private boolean unbounded;
+
+    Builder addSoy(String soyContent) {
+      Matcher m = SOY_CSS_COMMAND.matcher(soyContent);
+      while (m.find()) {
+        String args = m.group(1) != null ? m.group(1) : m.group(2);
+        addCall(args, true);
+      }
+      return this;
+    }
+
+    /**
+     * Adds references from the bodies of the named templates in a Soy file.
+     *
+     * @param templateNames full names of templates and names of delegate
+     *     templates.
+     */
+    Builder addSoyTemplates(String soyContent, Set<String> templateNames) {
+      Matcher ns = SOY_NAMESPACE.matcher(soyContent);
+      String namespace = ns.find() ? ns.group(1) : "";
+      Matcher m = SOY_TEMPLATE.matcher(soyContent);
+      while (m.find()) {
+        String command = m.group(1);
+        String name = m.group(2);
+        if (name.startsWith(".")) {
+          name = namespace + name;
+        }
+        if (templateNames.contains(name)) {
+          int bodyEnd = soyContent.indexOf("{/" + command + "}", m.end());
+          if (bodyEnd < 0) { bodyEnd = soyContent.length(); }
+          addSoy(soyContent.substring(m.end(), bodyEnd));
+        }
+      }
+      return this;
+    }
+
+    Builder addJs(String jsContent) {
+      Matcher m = JS_GET_CSS_NAME.matcher(jsContent);
+      while (m.find()) {
+        addCall(m.group(1), false);
+      }
+      return this;
+    }
+
+    /**
+     * @param bareWordsAreLiteral true for Soy where {@code {css foo}} refers
+     *     to the class "foo".
+     */
+    private void addCall(String args, boolean bareWordsAreLiteral) {
+      String[] parts = args.split(",");
+      String literal = literalValue(parts[parts.length - 1].trim(),
+          bareWordsAreLiteral);
+      if (literal == null || literal.isEmpty()) {
+        unbounded = true;
+      } else if (parts.length == 1) {
+        names.add(literal);
+      } else {
+        suffixes.add(literal);
+      }
+    }
+
+    private static String literalValue(String arg, boolean bareWords) {
+      Matcher m = QUOTED.matcher(arg);
+      if (m.matches()) {
+        return m.group(1) != null ? m.group(1) : m.group(2);
+      }
+      if (bareWords && arg.matches("[A-Za-z_][\\w\\-]*")) {
+        return arg;
+      }
+      return null;
+    }
+
+    CssClassReferences build() {
+      return new CssClassReferences(names.build(), suffixes.build(), unbounded);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.google.closure.plugin.css;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 import org.apache.maven.plugin.logging.Log;
 import org.sonatype.plexus.build.incremental.BuildContext;
@@ -9,8 +10,11 @@ import org.sonatype.plexus.build.incremental.BuildContext;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.css.ExitCodeHandler;
 import com.google.common.css.JobDescription;
+import com.google.common.css.RecordingSubstitutionMap;
+import com.google.common.css.SubstitutionMap;
 import com.google.common.css.SubstitutionMapProvider;
 import com.google.common.css.compiler.ast.ErrorManager;
 import com.google.common.css.compiler.ast.GssError;
@@ -26,6 +30,7 @@ final class CssCompilerWrapper {
   private Optional<File> renameFile = Optional.absent();
   private Optional<File> sourceMapFile = Optional.absent();
   private SubstitutionMapProvider substitutionMapProvider;
+  private Optional<CssClassReferences> classReferences = Optional.absent();
 
   CssCompilerWrapper cssOptions(CssOptions newCssOptions) {
     this.cssOptions = newCssOptions;
@@ -52,6 +57,11 @@ final class CssCompilerWrapper {
     this.sourceMapFile = Optional.of(newSourceMapFile);
     return this;
   }
+  CssCompilerWrapper classReferences(
+      Optional<CssClassReferences> newClassReferences) {
+    this.classReferences = newClassReferences;
+    return this;
+  }
 
   boolean compileCss(final BuildContext buildContext, Log log)
   throws IOException {
@@ -99,6 +109,20 @@ final class CssCompilerWrapper {
     if (compiledCss == null) {
       return false;
     }
+    if (classReferences.isPresent() && !classReferences.get().unbounded) {
+      SubstitutionMap substitutionMap = substitutionMapProvider != null
+          ? substitutionMapProvider.get() : null;
+      Map<String, String> mappings = substitutionMap
+          instanceof RecordingSubstitutionMap
+          ? ((RecordingSubstitutionMap) substitutionMap).getMappings()
+          : ImmutableMap.<String, String>of();
+      CssRulePruner pruner = new CssRulePruner(
+          classReferences.get().isReferencedAfterRenaming(mappings));
+      compiledCss = pruner.prune(compiledCss);
+      log.info(
+          "Pruned " + pruner.getRulesRemoved()
+          + " rules with unreferenced classes");
+    }
     if (outputFile.isPresent()) {
       Files.write(compiledCss, outputFile.get(), Charsets.UTF_8);
     }
@@ -1,8 +1,13 @@
 package com.google.closure.plugin.css;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -15,8 +20,12 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
 import com.google.common.collect.Tables;
 import com.google.common.css.SourceCode;
@@ -41,15 +50,23 @@ import com.google.common.io.Files;
 class CssDepGraph {
   /** Maps source relative paths to CssCompiler inputs. */
   final ImmutableMap<Source, SourceCode> inputs;
-  /** Maps source relative paths to ASTs. */
-  final ImmutableMap<Source, CssTree> parsed;
   /** Maps source relative paths to their dependencies. */
   final ImmutableTable<Source, DepType, ImmutableList<Dep>> deps;
+  /** Maps provided symbols to the sources that provide them. */
+  final ImmutableMultimap<String, Source> providers;
   /** Relative paths of entry style files. */
   final ImmutableList<Source> entryPoints;
   /** Dependencies based on GSS {@code @provide}/{@code @require}. */
   final TopoSort<Source, String> topoSort;
 
+  /** Position of each source in {@link TopoSort#getSortedItems}. */
+  private final ImmutableMap<Source, Integer> topoOrder;
+  /** Lazily parsed ASTs. */
+  private final Map<Source, CssTree> parsed = Maps.newHashMap();
+  /** Memoizes the transitive dependencies of each source. */
+  private final Map<Source, ImmutableSet<Source>> transitiveDeps =
+      Maps.newHashMap();
+
   private static Optional<String> getSoleStringParam(
       CssUnknownAtRuleNode node) {
     List<CssValueNode> parameters = node.getParameters();
@@ -137,36 +154,32 @@ class CssDepGraph {
     this.entryPoints = entryPointsBuilder.build();
 
     final Table<Source, DepType, List<Dep>> depsTable = HashBasedTable.create();
-    ImmutableMap.Builder<Source, CssTree> parsedBuilder =
-        ImmutableMap.builder();
     boolean parseFailed = false;
     for (Map.Entry<Source, SourceCode> input : inputs.entrySet()) {
-      GssParser parser = new GssParser(input.getValue());
-      boolean errorHandling = false;
+      final Source src = input.getKey();
+      Optional<ImmutableList<Dep>> headerDeps = scanHeader(input.getValue());
+      if (headerDeps.isPresent()) {
+        for (Dep dep : headerDeps.get()) {
+          addDep(depsTable, src, dep);
+        }
+        continue;
+      }
+
+      // The header was not conclusive, so fall back to a full parse.
       CssTree parseResult;
       try {
-         parseResult = parser.parse(errorHandling);
+        parseResult = parse(src);
       } catch (GssParserException ex) {
-        log.error("Failed to parse " + input.getKey().canonicalPath, ex);
+        log.error("Failed to parse " + src.canonicalPath, ex);
         parseFailed = true;
         continue;
       }
-      parsedBuilder.put(input.getKey(), parseResult);
-
-      final Source src = input.getKey();
-      // TODO: also take into account @require & @provide
-      // See CheckDependencyNodes pass and CssAtRuleNode.{REQUIRE,PROVIDE}.
       forEachDepRule(
           parseResult.getRoot(),
           new Function<Dep, Void> () {
             @Override
             public Void apply(Dep dep) {
-              List<Dep> depList = depsTable.get(src, dep.type);
-              if (depList == null) {
-                depList = Lists.newArrayList();
-                depsTable.put(src, dep.type, depList);
-              }
-              depList.add(dep);
+              addDep(depsTable, src, dep);
               return null;
             }
           });
@@ -175,7 +188,6 @@ class CssDepGraph {
       throw new MojoExecutionException(
           "Could not build dependency graph from malformed CSS");
     }
-    parsed = parsedBuilder.build();
     deps = ImmutableTable.copyOf(Tables.transformValues(
         depsTable,
         new Function<List<Dep>, ImmutableList<Dep>>() {
@@ -185,6 +197,18 @@ class CssDepGraph {
           }
         }));
 
+    ImmutableMultimap.Builder<String, Source> providersBuilder =
+        ImmutableMultimap.builder();
+    for (Table.Cell<Source, DepType, ImmutableList<Dep>> cell
+         : deps.cellSet()) {
+      if (cell.getColumnKey() == DepType.PROVIDE) {
+        for (Dep dep : cell.getValue()) {
+          providersBuilder.put(dep.symbol, cell.getRowKey());
+        }
+      }
+    }
+    this.providers = providersBuilder.build();
+
     try {
       this.topoSort = new TopoSort<>(
           new Function<Source, Iterable<String>>() {
@@ -208,18 +232,144 @@ class CssDepGraph {
            | TopoSort.MissingRequirementException ex) {
       throw new MojoExecutionException("Failed to order CSS/GSS files", ex);
     }
+
+    ImmutableMap.Builder<Source, Integer> topoOrderBuilder =
+        ImmutableMap.builder();
+    ImmutableList<Source> sorted = topoSort.getSortedItems();
+    for (int i = 0, n = sorted.size(); i < n; ++i) {
+      topoOrderBuilder.put(sorted.get(i), i);
+    }
+    this.topoOrder = topoOrderBuilder.build();
   }
 
+  private static void addDep(
+      Table<Source, DepType, List<Dep>> depsTable, Source src, Dep dep) {
+    List<Dep> depList = depsTable.get(src, dep.type);
+    if (depList == null) {
+      depList = Lists.newArrayList();
+      depsTable.put(src, dep.type, depList);
+    }
+    depList.add(dep);
+  }
+
+  /**
+   * The parse tree for the given source.
+   * Parsing is deferred until needed since the dependency graph can usually
+   * be built from file headers alone.
+   */
+  CssTree parse(Source s) throws GssParserException {
+    CssTree tree = parsed.get(s);
+    if (tree == null) {
+      SourceCode sc = Preconditions.checkNotNull(inputs.get(s), s);
+      boolean errorHandling = false;
+      tree = new GssParser(sc).parse(errorHandling);
+      parsed.put(s, tree);
+    }
+    return tree;
+  }
+
+  /**
+   * Scans the {@code @provide} and {@code @require} rules at the start of a
+   * file, before any other content.
+   *
+   * @return absent if the header scan is inconclusive, as when a
+   *     dependency rule follows other content, so a full parse is needed.
+   */
+  @VisibleForTesting
+  static Optional<ImmutableList<Dep>> scanHeader(SourceCode sc) {
+    String content = sc.getFileContents();
+    int n = content.length();
+    int line = 1;
+    int pos = 0;
+    ImmutableList.Builder<Dep> headerDeps = ImmutableList.builder();
+    while (pos < n) {
+      char ch = content.charAt(pos);
+      if (ch == '\n') {
+        ++line;
+        ++pos;
+      } else if (Character.isWhitespace(ch)) {
+        ++pos;
+      } else if (content.startsWith("/*", pos)) {
+        int commentEnd = content.indexOf("*/", pos + 2);
+        if (commentEnd < 0) { return Optional.absent(); }
+        for (int i = pos; i < commentEnd; ++i) {
+          if (content.charAt(i) == '\n') { ++line; }
+        }
+        pos = commentEnd + 2;
+      } else if (ch == '@') {
+        Matcher m = HEADER_DEP_RULE.matcher(content);
+        m.region(pos, n);
+        if (!m.lookingAt()) {
+          break;
+        }
+        DepType type = "provide".equals(m.group(1))
+            ? DepType.PROVIDE : DepType.REQUIRE;
+        String symbol = m.group(2) != null ? m.group(2) : m.group(3);
+        headerDeps.add(new Dep(type, symbol, sc.getFileName() + ":" + line));
+        for (int i = pos, e = m.end(); i < e; ++i) {
+          if (content.charAt(i) == '\n') { ++line; }
+        }
+        pos = m.end();
+      } else {
+        break;
+      }
+    }
+    if (content.indexOf("@provide", pos) >= 0
+        || content.indexOf("@require", pos) >= 0) {
+      return Optional.absent();
+    }
+    return Optional.of(headerDeps.build());
+  }
+
+  private static final Pattern HEADER_DEP_RULE = Pattern.compile(
+      "@(provide|require)\\s+(?:'([^'\\\\]*)'|\"([^\"\\\\]*)\")\\s*;");
+
   Dependencies transitiveClosureDeps(Source s) {
-    ImmutableList<Source> depsInOrder = ImmutableList.<Source>builder()
-        .addAll(topoSort.getDependenciesTransitive(s))
-        .add(s)
-        .build();
-    if (depsInOrder != null) {
-      return new Dependencies(true, depsInOrder);
-    } else {
-      return new Dependencies(false, ImmutableList.of(s));
+    ImmutableSet<Source> allDeps = transitiveDepsOf(s);
+    Source[] depsInOrder = allDeps.toArray(new Source[allDeps.size()]);
+    Arrays.sort(depsInOrder, new Comparator<Source>() {
+      @Override
+      public int compare(Source a, Source b) {
+        return topoOrder.get(a).compareTo(topoOrder.get(b));
+      }
+    });
+    return new Dependencies(
+        true,
+        ImmutableList.<Source>builder()
+            .add(depsInOrder)
+            .add(s)
+            .build());
+  }
+
+  /**
+   * The sources that s transitively requires, memoized so that entry points
+   * that share dependencies do not re-walk them.
+   */
+  private ImmutableSet<Source> transitiveDepsOf(Source s) {
+    ImmutableSet<Source> result = transitiveDeps.get(s);
+    if (result == null) {
+      ImmutableList<Dep> provides = deps.get(s, DepType.PROVIDE);
+      Set<String> provided = Sets.newHashSet();
+      if (provides != null) {
+        provided.addAll(Lists.transform(provides, Dep.GET_SYMBOL));
+      }
+      ImmutableSet.Builder<Source> b = ImmutableSet.builder();
+      ImmutableList<Dep> requires = deps.get(s, DepType.REQUIRE);
+      if (requires != null) {
+        for (Dep req : requires) {
+          // Consistent with TopoSort, self-satisfied requirements are ignored.
+          if (provided.contains(req.symbol)) { continue; }
+          for (Source provider : providers.get(req.symbol)) {
+            b.add(provider);
+            // TopoSort has ruled out cycles.
+            b.addAll(transitiveDepsOf(provider));
+          }
+        }
+      }
+      result = b.build();
+      transitiveDeps.put(s, result);
     }
+    return result;
   }
 
   @SuppressWarnings("static-method")  // Overridable by test harnesses.
@@ -246,9 +396,13 @@ class CssDepGraph {
     final String loc;
 
     Dep(DepType type, String symbol, SourceCodeLocation loc) {
+      this(type, symbol, str(loc));
+    }
+
+    Dep(DepType type, String symbol, String loc) {
       this.type = type;
       this.symbol = symbol;
-      this.loc = str(loc);
+      this.loc = loc;
     }
 
     @Override
@@ -16,6 +16,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.css.GssFunctionMapProvider;
 import com.google.common.css.JobDescription;
@@ -77,6 +78,19 @@ public final class CssOptions extends SourceOptions {
    * Whether to allow unrecognized properties.
    */
   public Boolean allowUnrecognizedProperties;
+  /**
+   * A fully qualified name of a Soy template, like {@code my.ns.header},
+   * that renders above-the-fold content.
+   * When any are specified, each compiled CSS file is split into a critical
+   * part, containing the rules that can apply to elements styled by these
+   * templates or by the templates they call, and a deferred remainder.
+   * The parts are listed in {@code css/critical-css-manifest.json} under the
+   * closure output directory so that the critical part can be inlined.
+   */
+  public void setCriticalTemplates(String x) {
+    criticalTemplates.add(x);
+  }
+  private final List<String> criticalTemplates = Lists.newArrayList();
   /**
    * JSON map from strings to integers that specify integer constants
    * to be used in for loops.
@@ -90,6 +104,19 @@ public final class CssOptions extends SourceOptions {
    * Whether to merge/split rules and selectors to eliminate duplicate styles.
    */
   public Boolean eliminateDeadStyles = true;
+  /**
+   * Whether to remove rules whose selectors mention classes that are never
+   * referenced from Soy {@code css} commands or JavaScript
+   * {@code goog.getCssName} calls in the default Soy and JS source
+   * directories.
+   * <p>
+   * Classes that are attached to elements by other means, e.g. from server
+   * side code or via string concatenation, need to be referenced via
+   * {@code goog.getCssName} somewhere so that they are not pruned.
+   * Pruning happens after compilation so the source map describes the
+   * unpruned output.
+   */
+  public Boolean pruneUnreferencedClasses;
   /** A list of CSS class names that shouldn't be renamed. */
   public void setExcludedClassesFromRenaming(String x) {
     excludedClassesFromRenaming.add(x);
@@ -214,6 +241,10 @@ public final class CssOptions extends SourceOptions {
    */
   public String sourceMapFile;
 
+  ImmutableSet<String> getCriticalTemplates() {
+    return ImmutableSet.copyOf(criticalTemplates);
+  }
+
   JobDescription getJobDescription(
       Log log, Iterable<? extends Sources.Source> sources,
       SubstitutionMapProvider cssSubstitutionMapProvider)
@@ -510,6 +541,7 @@ public final class CssOptions extends SourceOptions {
     result = prime * result + ((allowUnrecognizedProperties == null) ? 0 : allowUnrecognizedProperties.hashCode());
     result = prime * result + ((allowedNonStandardFunctions == null) ? 0 : allowedNonStandardFunctions.hashCode());
     result = prime * result + ((allowedUnrecognizedProperties == null) ? 0 : allowedUnrecognizedProperties.hashCode());
+    result = prime * result + ((criticalTemplates == null) ? 0 : criticalTemplates.hashCode());
     result = prime * result + ((compileConstants == null) ? 0 : compileConstants.hashCode());
     result = prime * result + ((copyrightNotice == null) ? 0 : copyrightNotice.hashCode());
     result = prime * result + ((cssRenamingPrefix == null) ? 0 : cssRenamingPrefix.hashCode());
@@ -522,6 +554,7 @@ public final class CssOptions extends SourceOptions {
     result = prime * result + ((outputFormat == null) ? 0 : outputFormat.hashCode());
     result = prime * result + ((outputOrientation == null) ? 0 : outputOrientation.hashCode());
     result = prime * result + ((outputRenamingMapFormat == null) ? 0 : outputRenamingMapFormat.hashCode());
+    result = prime * result + ((pruneUnreferencedClasses == null) ? 0 : pruneUnreferencedClasses.hashCode());
     result = prime * result + ((preserveComments == null) ? 0 : preserveComments.hashCode());
     result = prime * result + ((processDependencies == null) ? 0 : processDependencies.hashCode());
     result = prime * result + ((simplifyCss == null) ? 0 : simplifyCss.hashCode());
@@ -605,6 +638,13 @@ public final class CssOptions extends SourceOptions {
     } else if (!allowedUnrecognizedProperties.equals(other.allowedUnrecognizedProperties)) {
       return false;
     }
+    if (criticalTemplates == null) {
+      if (other.criticalTemplates != null) {
+        return false;
+      }
+    } else if (!criticalTemplates.equals(other.criticalTemplates)) {
+      return false;
+    }
     if (compileConstants == null) {
       if (other.compileConstants != null) {
         return false;
@@ -680,6 +720,13 @@ public final class CssOptions extends SourceOptions {
     } else if (!preserveComments.equals(other.preserveComments)) {
       return false;
     }
+    if (pruneUnreferencedClasses == null) {
+      if (other.pruneUnreferencedClasses != null) {
+        return false;
+      }
+    } else if (!pruneUnreferencedClasses.equals(other.pruneUnreferencedClasses)) {
+      return false;
+    }
     if (processDependencies == null) {
       if (other.processDependencies != null) {
         return false;
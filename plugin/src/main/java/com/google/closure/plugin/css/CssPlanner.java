@@ -92,6 +92,8 @@ public final class CssPlanner {
 
     CompileCss compileBundles = new CompileCss(context);
 
+    ExtractCriticalCss extractCriticalCss = new ExtractCriticalCss(context);
+
     // This pipeline takes in CSS files and produces CSS outputs along with a
     // JSON and rename map.
     joinNodes.pipeline()
@@ -99,6 +101,7 @@ public final class CssPlanner {
         .then(listOptionsNode)
         .then(findEntryPoints)
         .then(compileBundles)
+        .then(extractCriticalCss)
         .provide(FileExt.JSON)
         .build();
   }
@@ -0,0 +1,245 @@
+package com.google.closure.plugin.css;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Removes selectors from compiled CSS that mention a class for which a
+ * predicate is false, and then removes rule-sets that have no selectors left.
+ * <p>
+ * This operates on the output of the closure-stylesheets compiler which is
+ * plain CSS so does not need to understand GSS extensions.
+ * At-rules with nested rule-sets, like {@code @media}, are pruned recursively
+ * and dropped when they become empty.  Other at-rules are preserved verbatim.
+ */
+final class CssRulePruner {
+  private final Predicate<? super String> isClassReferenced;
+  private int nRulesRemoved;
+
+  CssRulePruner(Predicate<? super String> isClassReferenced) {
+    this.isClassReferenced = isClassReferenced;
+  }
+
+  /** The count of rule-sets removed so far. */
+  int getRulesRemoved() {
+    return nRulesRemoved;
+  }
+
+  String prune(String css) {
+    StringBuilder out = new StringBuilder(css.length());
+    pruneBlockContent(css, 0, css.length(), out, null);
+    return out.toString();
+  }
+
+  /**
+   * Splits css into the rules that would be kept by {@link #prune} and the
+   * remainder.
+   * The first element is the kept CSS and the second is the remainder.
+   */
+  String[] split(String css) {
+    StringBuilder kept = new StringBuilder(css.length());
+    StringBuilder removed = new StringBuilder(css.length());
+    pruneBlockContent(css, 0, css.length(), kept, removed);
+    return new String[] { kept.toString(), removed.toString() };
+  }
+
+  /**
+   * Prunes the rules in css[start:end] which is a sequence of rules.
+   *
+   * @param removed null or receives pruned selectors with their blocks.
+   */
+  private void pruneBlockContent(
+      String css, int start, int end, StringBuilder kept,
+      StringBuilder removed) {
+    int pos = start;
+    while (pos < end) {
+      int preludeEnd = scanTo(css, pos, end, "{;}");
+      if (preludeEnd == end || css.charAt(preludeEnd) != '{') {
+        // A statement like @import ...; or trailing whitespace.
+        int stmtEnd = Math.min(end, preludeEnd + 1);
+        kept.append(css, pos, stmtEnd);
+        pos = stmtEnd;
+        continue;
+      }
+      int blockEnd = matchingCloseBracket(css, preludeEnd, end);
+      String prelude = css.substring(pos, preludeEnd);
+      String trimmedPrelude = prelude.trim();
+      if (trimmedPrelude.startsWith("@")) {
+        if (isConditionalGroupRule(trimmedPrelude)) {
+          StringBuilder keptBody = new StringBuilder();
+          StringBuilder removedBody = removed != null
+              ? new StringBuilder() : null;
+          pruneBlockContent(
+              css, preludeEnd + 1, blockEnd, keptBody, removedBody);
+          if (!keptBody.toString().trim().isEmpty()) {
+            kept.append(prelude).append('{').append(keptBody).append('}');
+          }
+          if (removedBody != null
+              && !removedBody.toString().trim().isEmpty()) {
+            removed.append(prelude).append('{').append(removedBody)
+                .append('}');
+          }
+        } else {
+          kept.append(css, pos, Math.min(end, blockEnd + 1));
+        }
+      } else {
+        StringBuilder removedSelectors = new StringBuilder();
+        String selectors = pruneSelectors(prelude, removedSelectors);
+        CharSequence block = css.subSequence(
+            preludeEnd, Math.min(end, blockEnd + 1));
+        if (selectors.isEmpty()) {
+          ++nRulesRemoved;
+        } else {
+          kept.append(selectors).append(block);
+        }
+        if (removed != null && removedSelectors.length() != 0) {
+          removed.append(removedSelectors).append(block);
+        }
+      }
+      pos = Math.min(end, blockEnd + 1);
+    }
+  }
+
+  private static boolean isConditionalGroupRule(String atRulePrelude) {
+    String name = atRulePrelude.split("[\\s(]", 2)[0];
+    return "@media".equals(name) || "@supports".equals(name)
+        || "@document".equals(name) || "@-moz-document".equals(name);
+  }
+
+  private String pruneSelectors(
+      String selectorGroup, StringBuilder removedSelectors) {
+    StringBuilder out = new StringBuilder(selectorGroup.length());
+    int pos = 0;
+    int n = selectorGroup.length();
+    while (pos <= n) {
+      int comma = scanTo(selectorGroup, pos, n, ",");
+      String selector = selectorGroup.substring(pos, comma);
+      StringBuilder dest = allClassesReferenced(selector)
+          ? out : removedSelectors;
+      if (dest.length() != 0) {
+        dest.append(',');
+      }
+      dest.append(selector);
+      pos = comma + 1;
+    }
+    return out.toString();
+  }
+
+  private boolean allClassesReferenced(String selector) {
+    int n = selector.length();
+    // Classes inside brackets and parentheses, as in :not(.foo), do not
+    // constrain which elements match.
+    int bracketDepth = 0;
+    for (int i = 0; i < n; ++i) {
+      char ch = selector.charAt(i);
+      switch (ch) {
+        case '"': case '\'':
+          i = endOfString(selector, i, n) - 1;
+          break;
+        case '[': case '(':
+          ++bracketDepth;
+          break;
+        case ']': case ')':
+          --bracketDepth;
+          break;
+        case '/':
+          if (i + 1 < n && selector.charAt(i + 1) == '*') {
+            int commentEnd = selector.indexOf("*/", i + 2);
+            i = commentEnd < 0 ? n : commentEnd + 1;
+          }
+          break;
+        case '\\':
+          ++i;
+          break;
+        case '.':
+          if (bracketDepth == 0) {
+            int nameEnd = i + 1;
+            while (nameEnd < n && isNameChar(selector.charAt(nameEnd))) {
+              ++nameEnd;
+            }
+            if (nameEnd > i + 1
+                && !isClassReferenced.apply(
+                    selector.substring(i + 1, nameEnd))) {
+              return false;
+            }
+            i = nameEnd - 1;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isNameChar(char ch) {
+    return ch == '-' || ch == '_' || ('0' <= ch && ch <= '9')
+        || ('a' <= ch && ch <= 'z') || ('A' <= ch && ch <= 'Z')
+        || ch >= 0x80;
+  }
+
+  /**
+   * The index of the first character in css[start:end] in stopChars that is
+   * not inside a string, comment, or parenthetical, or end if none.
+   */
+  private static int scanTo(String css, int start, int end, String stopChars) {
+    int parenDepth = 0;
+    for (int i = start; i < end; ++i) {
+      char ch = css.charAt(i);
+      switch (ch) {
+        case '"': case '\'':
+          i = endOfString(css, i, end) - 1;
+          continue;
+        case '/':
+          if (i + 1 < end && css.charAt(i + 1) == '*') {
+            int commentEnd = css.indexOf("*/", i + 2);
+            i = commentEnd < 0 || commentEnd + 2 > end ? end : commentEnd + 1;
+            continue;
+          }
+          break;
+        case '\\':
+          ++i;
+          continue;
+        case '(':
+          ++parenDepth;
+          continue;
+        case ')':
+          if (parenDepth != 0) { --parenDepth; }
+          continue;
+        default:
+          break;
+      }
+      if (parenDepth == 0 && stopChars.indexOf(ch) >= 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  private static int matchingCloseBracket(String css, int open, int end) {
+    int depth = 0;
+    for (int i = open; i < end;) {
+      int next = scanTo(css, i, end, "{}");
+      if (next == end) { return end; }
+      if (css.charAt(next) == '{') {
+        ++depth;
+      } else if (--depth == 0) {
+        return next;
+      }
+      i = next + 1;
+    }
+    return end;
+  }
+
+  private static int endOfString(String s, int quoteIndex, int end) {
+    char quote = s.charAt(quoteIndex);
+    for (int i = quoteIndex + 1; i < end; ++i) {
+      char ch = s.charAt(i);
+      if (ch == '\\') {
+        ++i;
+      } else if (ch == quote || ch == '\n') {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+}
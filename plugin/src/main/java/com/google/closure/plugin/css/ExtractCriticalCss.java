@@ -0,0 +1,251 @@
+package com.google.closure.plugin.css;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.json.simple.JSONValue;
+
+import com.google.closure.module.ClosureModule;
+import com.google.closure.plugin.common.FileExt;
+import com.google.closure.plugin.plan.BundlingPlanGraphNode.OptionsAndBundles;
+import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.OutputPromoter;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.closure.plugin.plan.PlanGraphNode;
+import com.google.closure.plugin.plan.Update;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Splits compiled CSS into a critical part that styles the output of
+ * above-the-fold templates and a deferred remainder, and writes a manifest
+ * that lets the runtime find the critical part of each compiled CSS file.
+ *
+ * @see CssOptions#setCriticalTemplates
+ */
+final class ExtractCriticalCss extends PlanGraphNode<ExtractCriticalCss.SV> {
+
+  static final String MANIFEST_BASENAME =
+      ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH.substring(
+          ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH.lastIndexOf('/')
+          + 1);
+
+  private Optional<Update<OptionsAndBundles<CssOptions, CssBundle>>>
+      optionsAndBundles = Optional.absent();
+  private ImmutableSet<File> compiledFilesChanged = ImmutableSet.of();
+  /** Maps compiled CSS files to their critical and deferred parts. */
+  private final Map<File, ImmutableList<File>> splitOutputs =
+      Maps.newLinkedHashMap();
+  private final List<File> changedFiles = Lists.newArrayList();
+  /** Leaves alone parts and manifests whose content did not change. */
+  private final OutputPromoter promoter = new OutputPromoter();
+
+  ExtractCriticalCss(PlanContext context) {
+    super(context);
+  }
+
+  @Override
+  protected void preExecute(Iterable<? extends PlanGraphNode<?>> preceders) {
+    this.optionsAndBundles = Optional.absent();
+    this.compiledFilesChanged = ImmutableSet.of();
+    for (PlanGraphNode<?> p : preceders) {
+      if (p instanceof CompileCss) {
+        CompileCss compiler = (CompileCss) p;
+        this.optionsAndBundles = compiler.optionsAndBundles;
+        this.compiledFilesChanged = ImmutableSet.copyOf(
+            compiler.getChangedFiles());
+      }
+    }
+    Preconditions.checkState(optionsAndBundles.isPresent());
+  }
+
+  @Override
+  protected void filterUpdates() throws IOException, MojoExecutionException {
+    // Done by CompileCss
+  }
+
+  @Override
+  protected void process() throws IOException, MojoExecutionException {
+    Map<File, ImmutableSet<String>> criticalTemplatesByCss =
+        Maps.newLinkedHashMap();
+    for (OptionsAndBundles<CssOptions, CssBundle> ob
+         : optionsAndBundles.get().allExtant()) {
+      ImmutableSet<String> criticalTemplates =
+          ob.optionsAndInputs.options.getCriticalTemplates();
+      if (criticalTemplates.isEmpty()) { continue; }
+      for (CssBundle b : ob.bundles) {
+        criticalTemplatesByCss.put(b.outputs.css, criticalTemplates);
+      }
+    }
+    extract(criticalTemplatesByCss, compiledFilesChanged);
+  }
+
+  /**
+   * Splits compiled CSS files and updates the manifest.
+   *
+   * @param criticalTemplatesByCss the templates whose output is styled by
+   *     the critical part of each compiled CSS file.
+   * @param compiledChanged compiled CSS files that changed since the last
+   *     split.
+   */
+  @VisibleForTesting
+  void extract(
+      Map<File, ImmutableSet<String>> criticalTemplatesByCss,
+      Set<File> compiledChanged)
+  throws IOException, MojoExecutionException {
+    this.changedFiles.clear();
+
+    Map<File, ImmutableList<File>> extantSplits = Maps.newLinkedHashMap();
+    // Options usually share critical templates, so scan once for each set.
+    Map<ImmutableSet<String>, CssClassReferences> criticalRefs =
+        Maps.newHashMap();
+    for (Map.Entry<File, ImmutableSet<String>> e
+         : criticalTemplatesByCss.entrySet()) {
+      File css = e.getKey();
+      ImmutableSet<String> criticalTemplates = e.getValue();
+      ImmutableList<File> parts = partsFor(css);
+      extantSplits.put(css, parts);
+      boolean upToDate = !compiledChanged.contains(css)
+          && parts.equals(splitOutputs.get(css))
+          && parts.get(0).exists() && parts.get(1).exists();
+      if (upToDate || !css.exists()) { continue; }
+
+      CssClassReferences refs = criticalRefs.get(criticalTemplates);
+      if (refs == null) {
+        refs = CssClassReferences.scanTemplates(
+            context.log, context.srcfilesDirs, criticalTemplates);
+        criticalRefs.put(criticalTemplates, refs);
+      }
+      String[] criticalAndDeferred = new CssRulePruner(
+          refs.isReferencedAfterRenaming(
+              context.substitutionMapProvider.get().getMappings()))
+          .split(Files.toString(css, Charsets.UTF_8));
+      for (int i = 0; i < 2; ++i) {
+        File part = parts.get(i);
+        // Recompiling CSS often leaves one part or both unchanged.
+        if (promoter.promote(
+                criticalAndDeferred[i].getBytes(Charsets.UTF_8), part)) {
+          changedFiles.add(part);
+        }
+      }
+    }
+
+    for (Map.Entry<File, ImmutableList<File>> e : splitOutputs.entrySet()) {
+      if (!extantSplits.containsKey(e.getKey())) {
+        for (File part : e.getValue()) {
+          promoter.forget(part);
+          if (part.exists()) {
+            if (!part.delete()) {
+              throw new IOException("Failed to delete " + part);
+            }
+            changedFiles.add(part);
+          }
+        }
+      }
+    }
+    splitOutputs.clear();
+    splitOutputs.putAll(extantSplits);
+
+    File manifestFile = getManifestFile();
+    if (!splitOutputs.isEmpty() || manifestFile.exists()) {
+      writeManifest(manifestFile);
+    }
+  }
+
+  private static ImmutableList<File> partsFor(File css) {
+    String basename = css.getName().replaceFirst("[.]css\\z", "");
+    File dir = css.getParentFile();
+    return ImmutableList.of(
+        new File(dir, basename + "-critical.css"),
+        new File(dir, basename + "-deferred.css"));
+  }
+
+  private File getManifestFile() {
+    return new File(
+        context.closureOutputDirectoryForExt(FileExt.CSS), MANIFEST_BASENAME);
+  }
+
+  private void writeManifest(File manifestFile)
+  throws MojoExecutionException {
+    File cssDir = context.closureOutputDirectoryForExt(FileExt.CSS);
+    Map<String, Map<String, String>> manifest = Maps.newTreeMap();
+    for (Map.Entry<File, ImmutableList<File>> e : splitOutputs.entrySet()) {
+      Optional<String> css = relativePath(cssDir, e.getKey());
+      Optional<String> critical = relativePath(cssDir, e.getValue().get(0));
+      Optional<String> deferred = relativePath(cssDir, e.getValue().get(1));
+      if (css.isPresent() && critical.isPresent() && deferred.isPresent()) {
+        manifest.put(css.get(), ImmutableMap.of(
+            "critical", critical.get(), "deferred", deferred.get()));
+      } else {
+        context.log.warn(
+            "Not adding " + e.getKey() + " to critical CSS manifest since it"
+            + " is not under " + cssDir);
+      }
+    }
+    try {
+      if (promoter.promote(
+              JSONValue.toJSONString(manifest).getBytes(Charsets.UTF_8),
+              manifestFile)) {
+        changedFiles.add(manifestFile);
+      }
+    } catch (IOException ex) {
+      throw new MojoExecutionException(
+          "Failed to write critical CSS manifest " + manifestFile, ex);
+    }
+  }
+
+  private static Optional<String> relativePath(File dir, File f) {
+    java.nio.file.Path rel = dir.toPath().toAbsolutePath().normalize()
+        .relativize(f.toPath().toAbsolutePath().normalize());
+    String relPath = rel.toString().replace(File.separatorChar, '/');
+    if (relPath.startsWith("../") || rel.isAbsolute()) {
+      return Optional.absent();
+    }
+    return Optional.of(relPath);
+  }
+
+  @Override
+  protected Iterable<? extends File> changedOutputFiles() {
+    return ImmutableList.copyOf(changedFiles);
+  }
+
+  @Override
+  protected SV getStateVector() {
+    return new SV(this);
+  }
+
+
+  static final class SV implements PlanGraphNode.StateVector {
+    private static final long serialVersionUID = 2L;
+
+    final ImmutableMap<File, ImmutableList<File>> splitOutputs;
+    final ImmutableMap<File, OutputPromoter.PromotedFile> promotedFiles;
+
+    @SuppressWarnings("synthetic-access")
+    SV(ExtractCriticalCss node) {
+      this.splitOutputs = ImmutableMap.copyOf(node.splitOutputs);
+      this.promotedFiles = node.promoter.getPromotedFiles();
+    }
+
+    @SuppressWarnings("synthetic-access")
+    @Override
+    public PlanGraphNode<?> reconstitute(PlanContext c, JoinNodes jn) {
+      ExtractCriticalCss node = new ExtractCriticalCss(c);
+      node.splitOutputs.putAll(splitOutputs);
+      node.promoter.restore(promotedFiles);
+      return node;
+    }
+  }
+}
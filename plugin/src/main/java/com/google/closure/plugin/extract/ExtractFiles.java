@@ -1,26 +1,36 @@
 package com.google.closure.plugin.extract;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.StandardCopyOption;
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.closure.plugin.common.CStyleLexer;
 import com.google.closure.plugin.common.FileExt;
 import com.google.closure.plugin.common.GenfilesDirs;
@@ -31,6 +41,7 @@ import com.google.closure.plugin.plan.BundlingPlanGraphNode.OptionsAndBundles;
 import com.google.closure.plugin.plan.CompilePlanGraphNode;
 import com.google.closure.plugin.plan.Hash;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.OutputPromoter.PromotedFile;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.proto.ProtoPackageMap;
 import com.google.common.io.ByteStreams;
@@ -39,8 +50,25 @@ import com.google.common.io.Files;
 final class ExtractFiles
 extends CompilePlanGraphNode<Extracts, ResolvedExtract> {
 
-  /** Hash of archives so we know whether we need to re-extract. */
-  private Map<File, Hash> archiveHash = Maps.newLinkedHashMap();
+  /**
+   * The state of each extract's archive when last extracted so we know
+   * whether we need to re-extract.
+   */
+  private final Map<ResolvedExtract, ArchiveStamp> archiveStamps =
+      Maps.newLinkedHashMap();
+  /**
+   * Where each archive entry was extracted to, by the names of the entries,
+   * so that we need not reread entries that have not changed.
+   */
+  private final Map<ResolvedExtract, ImmutableMap<String, ExtractedEntry>>
+      extractedEntries = Maps.newLinkedHashMap();
+
+  /**
+   * The most archives read at once.  Extraction is bound by disk reads and
+   * inflation, so past a few threads we'd just contend for the disk.
+   */
+  static final int MAX_CONCURRENT_EXTRACTS = Math.max(
+      1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
   ExtractFiles(PlanContext context) {
     super(context);
@@ -54,88 +82,315 @@ extends CompilePlanGraphNode<Extracts, ResolvedExtract> {
     // a single unchanged/changed bundle (depending on whether the build is
     // incremental) associated with an empty input list.
 
-    // For this reason, we don't retain entries for unchanged artifacts in
-    // the archive hash.
-    // We just process everything and rehash.
-    // We also don't clear the archiveHash.  Instead of passing in an old copy
-    // we just modify in place.
-
-    // TODO: some way to find defunct entries and remove files extracted from
-    // those.
+    // For this reason, we look at all extant extracts and compare each
+    // archive against the stamp from when it was last extracted, and
+    // we find defunct extracts by comparing against those we extracted
+    // before.
 
     this.changedFiles.clear();
     this.processDefunctBundles(this.optionsAndBundles);
 
+    Set<ResolvedExtract> extant = Sets.newLinkedHashSet();
     for (OptionsAndBundles<Extracts, ResolvedExtract> ob
          : this.optionsAndBundles.get().allExtant()) {
-      for (ResolvedExtract e : ob.bundles) {
-        processOne(e);
-      }
+      extant.addAll(ob.bundles);
     }
+
+    removeDefunctExtracts(extant);
+
+    extract(ImmutableList.copyOf(extant));
   }
 
-  protected void processOne(ResolvedExtract e)
-  throws MojoExecutionException {
+  /**
+   * Extracts each archive that changed since it was last extracted.
+   *
+   * @param extracts in the order they should be applied.
+   */
+  @VisibleForTesting
+  void extract(List<ResolvedExtract> extracts) throws MojoExecutionException {
+    // Reading and inflating archives is the slow part and archives are
+    // independent, so plan extracts concurrently.  Apply them in order so
+    // that when two archives extract to the same file, the later one wins
+    // regardless of which finished first.
+    // Plans run while earlier plans are applied, so they see a snapshot of
+    // our state instead of the maps that apply modifies.
+    final ExtractState state = snapshot();
+    final GenfilesDirs gd = context.genfilesDirs;
+    List<Future<PlannedExtract>> plans = Lists.newArrayList();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(MAX_CONCURRENT_EXTRACTS, extracts.size())));
     try {
-      extract(e);
-    } catch (IOException ex) {
-      throw new MojoExecutionException(
-          "Failed to extract " + e.groupId + ":" + e.artifactId,
-          ex);
+      for (final ResolvedExtract e : extracts) {
+        plans.add(executor.submit(new Callable<PlannedExtract>() {
+          @SuppressWarnings("synthetic-access")
+          @Override
+          public PlannedExtract call() throws IOException {
+            return plan(gd, state, e);
+          }
+        }));
+      }
+
+      Map<File, ResolvedExtract> writers = Maps.newHashMap();
+      for (int i = 0, n = extracts.size(); i < n; ++i) {
+        ResolvedExtract e = extracts.get(i);
+        try {
+          apply(plans.get(i).get(), writers);
+        } catch (ExecutionException ex) {
+          throw new MojoExecutionException(
+              "Failed to extract " + e.groupId + ":" + e.artifactId,
+              ex.getCause());
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new MojoExecutionException(
+              "Interrupted while extracting " + e.groupId + ":"
+              + e.artifactId,
+              ex);
+        } catch (IOException ex) {
+          throw new MojoExecutionException(
+              "Failed to extract " + e.groupId + ":" + e.artifactId,
+              ex);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Deletes files extracted from archives that are no longer extracted, as
+   * when a dependency is removed or its version changes.
+   */
+  private void removeDefunctExtracts(Set<ResolvedExtract> extant)
+  throws IOException {
+    Set<ResolvedExtract> defunct = Sets.newLinkedHashSet();
+    defunct.addAll(bundleToOutputs.keySet());
+    defunct.addAll(extractedEntries.keySet());
+    defunct.addAll(archiveStamps.keySet());
+    defunct.removeAll(extant);
+    if (defunct.isEmpty()) {
+      return;
+    }
+
+    Set<File> stillExtracted = Sets.newHashSet();
+    for (ResolvedExtract e : extant) {
+      ImmutableList<File> outputs = bundleToOutputs.get(e);
+      if (outputs != null) {
+        stillExtracted.addAll(outputs);
+      }
+    }
+
+    for (ResolvedExtract e : defunct) {
+      context.log.debug("Removing files extracted from " + e);
+      ImmutableList<File> outputs = bundleToOutputs.remove(e);
+      if (outputs != null) {
+        for (File f : outputs) {
+          if (!stillExtracted.contains(f)) {
+            deleteIfExists(f);
+          }
+        }
+      }
+      extractedEntries.remove(e);
+      archiveStamps.remove(e);
+    }
+  }
+
+  /** An immutable copy of what plans need to know about past extracts. */
+  private ExtractState snapshot() {
+    return new ExtractState(
+        ImmutableMap.copyOf(archiveStamps),
+        ImmutableMap.copyOf(extractedEntries),
+        ImmutableSet.copyOf(bundleToOutputs.keySet()),
+        promoter.getPromotedFiles());
+  }
+
+  /**
+   * Reads the archive and works out where entries go without writing to
+   * the file system or touching this node, so it is safe to call
+   * concurrently with other plans and with {@link #apply}.
+   *
+   * @param state a snapshot taken before any later extract was applied.
+   */
+  private static PlannedExtract plan(
+      GenfilesDirs gd, ExtractState state, ResolvedExtract e)
+  throws IOException {
+    ArchiveStamp stamp = state.stamp(e);
+    if (state.isUpToDate(e, stamp)) {
+      return new PlannedExtract(
+          e, stamp, true, ImmutableList.<PlannedEntry>of(),
+          ImmutableList.<String>of());
+    }
+
+    ImmutableMap<String, ExtractedEntry> previous =
+        state.extractedEntries.get(e);
+    if (previous == null) {
+      previous = ImmutableMap.of();
+    }
+
+    ImmutableList.Builder<PlannedEntry> planned = ImmutableList.builder();
+    ImmutableList.Builder<String> unlocatable = ImmutableList.builder();
+    // ZipFile reads the central directory so we can skip entries without
+    // inflating them.
+    try (ZipFile zipFile = new ZipFile(e.archive)) {
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements();) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory()) {
+          continue;
+        }
+        String name = entry.getName();
+        String ext = FilenameUtils.getExtension(name);
+        if (!e.suffixes.contains(ext)) {
+          continue;
+        }
+
+        // The location of some files depends on their content, so go by
+        // where the entry went last time.
+        ExtractedEntry last = previous.get(name);
+        if (last != null && last.matches(entry)
+            && state.hasPromotedContent(last.outFile, last.contentHash)) {
+          planned.add(new PlannedEntry(name, last, null));
+          continue;
+        }
+
+        byte[] bytes;
+        try (InputStream in = zipFile.getInputStream(entry)) {
+          bytes = ByteStreams.toByteArray(in);
+        }
+        Optional<File> extractedLocation = locationFor(
+            gd, name, e.props, bytes);
+        if (extractedLocation.isPresent()) {
+          planned.add(new PlannedEntry(
+              name,
+              new ExtractedEntry(
+                  entry.getCrc(), entry.getSize(), extractedLocation.get(),
+                  Hash.hashBytes(bytes)),
+              bytes));
+        } else {
+          unlocatable.add(name);
+        }
+      }
     }
+    return new PlannedExtract(
+        e, stamp, false, planned.build(), unlocatable.build());
   }
 
-  private void extract(ResolvedExtract e) throws IOException {
-    GenfilesDirs gd = context.genfilesDirs;
+  /**
+   * Writes planned extractions to the file system.
+   *
+   * @param writers the extract that last wrote each file this build so that
+   *     we can warn about conflicts.
+   */
+  private void apply(PlannedExtract p, Map<File, ResolvedExtract> writers)
+  throws IOException {
     Log log = context.log;
+    ResolvedExtract e = p.extract;
+
+    if (!stillValid(p)) {
+      // An extract applied earlier in this build overwrote a file that the
+      // plan assumed was up-to-date.  Replan so that this extract, which
+      // comes later, wins as it would had we extracted in sequence.
+      p = plan(context.genfilesDirs, snapshot(), e);
+    }
+
+    for (String name : p.unlocatable) {
+      log.warn("Cannot find location for extract " + name);
+    }
+
+    if (p.upToDate) {
+      log.debug("Skipping unchanged " + e.groupId + ":" + e.artifactId);
+      // Keep the new size and modification time so we need not rehash an
+      // archive that was touched but not changed.
+      archiveStamps.put(e, p.stamp);
+      for (ExtractedEntry entry : extractedEntries.get(e).values()) {
+        noteWriter(entry, e, writers);
+      }
+      return;
+    }
 
+    ImmutableMap.Builder<String, ExtractedEntry> extracted =
+        ImmutableMap.builder();
     ImmutableList.Builder<File> filesForBundle = ImmutableList.builder();
-    byte[] archiveBytes = Files.toByteArray(e.archive);
-    try (InputStream in = new ByteArrayInputStream(archiveBytes)) {
-      try (ZipInputStream zipIn = new ZipInputStream(in)) {
-        for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null;) {
-          if (!entry.isDirectory()) {
-            String name = entry.getName();
-            String ext = FilenameUtils.getExtension(name);
-            if (e.suffixes.contains(ext)) {
-              // Suffix matches.
-              byte[] bytes = ByteStreams.toByteArray(zipIn);
-              Optional<File> extractedLocation = locationFor(
-                  gd, name, e.props, bytes);
-              if (extractedLocation.isPresent()) {
-                File outFile = extractedLocation.get();
-                Files.createParentDirs(outFile);
-                filesForBundle.add(outFile);
-
-                File tmpFile = File.createTempFile("extract", ext);
-                Files.write(bytes, tmpFile);
-                if (outFile.exists() && Files.equal(outFile, tmpFile)) {
-                  // Don't generate unnecessary churn in timestamps or
-                  // file-system watcher by copying equivalent content into a
-                  // file.
-                  @SuppressWarnings("unused")
-                  boolean deleted = tmpFile.delete();  // best effort
-                } else {
-                  log.debug(
-                      "Extracting " + e.groupId + ":" + e.artifactId
-                      + " : " + name + " to " + outFile);
-                  // The nio.file version works across physical partitions
-                  java.nio.file.Files.move(
-                      tmpFile.toPath(), outFile.toPath(),
-                      StandardCopyOption.REPLACE_EXISTING);
-                  this.changedFiles.add(outFile);
-                }
-              } else {
-                log.warn("Cannot find location for extract " + name);
-              }
-            }
-          }
-          zipIn.closeEntry();
+    for (PlannedEntry pe : p.entries) {
+      File outFile = pe.extracted.outFile;
+      filesForBundle.add(outFile);
+      extracted.put(pe.name, pe.extracted);
+      noteWriter(pe.extracted, e, writers);
+      // Don't generate unnecessary churn in timestamps or
+      // file-system watcher by copying equivalent content into a
+      // file.
+      if (pe.content != null && promoter.promote(pe.content, outFile)) {
+        log.debug(
+            "Extracting " + e.groupId + ":" + e.artifactId
+            + " : " + pe.name + " to " + outFile);
+        this.changedFiles.add(outFile);
+      }
+    }
+
+    ImmutableList<File> outputs = filesForBundle.build();
+    ImmutableList<File> oldOutputs = this.bundleToOutputs.put(e, outputs);
+    if (oldOutputs != null) {
+      // Delete files for entries that are no longer in the archive unless
+      // another archive also extracts to the same location.
+      Set<File> stillExtracted = Sets.newHashSet();
+      for (ImmutableList<File> files : bundleToOutputs.values()) {
+        stillExtracted.addAll(files);
+      }
+      for (File f : oldOutputs) {
+        if (!stillExtracted.contains(f)) {
+          deleteIfExists(f);
+        }
+      }
+    }
+    this.archiveStamps.put(e, p.stamp);
+    this.extractedEntries.put(e, extracted.build());
+  }
+
+  /**
+   * False if a file that the plan assumed was up-to-date has since been
+   * overwritten.
+   */
+  private boolean stillValid(PlannedExtract p) {
+    Iterable<ExtractedEntry> reused;
+    if (p.upToDate) {
+      reused = extractedEntries.get(p.extract).values();
+    } else {
+      List<ExtractedEntry> reusedEntries = Lists.newArrayList();
+      for (PlannedEntry pe : p.entries) {
+        if (pe.content == null) {
+          reusedEntries.add(pe.extracted);
+        }
+      }
+      reused = reusedEntries;
+    }
+    for (ExtractedEntry entry : reused) {
+      if (!promoter.hasPromotedContent(entry.outFile, entry.contentHash)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void noteWriter(
+      ExtractedEntry entry, ResolvedExtract e,
+      Map<File, ResolvedExtract> writers) {
+    ResolvedExtract previousWriter = writers.put(entry.outFile, e);
+    if (previousWriter != null && !previousWriter.equals(e)) {
+      ExtractedEntry previousEntry = null;
+      for (ExtractedEntry pe
+           : extractedEntries.get(previousWriter).values()) {
+        if (pe.outFile.equals(entry.outFile)) {
+          previousEntry = pe;
         }
       }
+      if (previousEntry == null
+          || !previousEntry.contentHash.equals(entry.contentHash)) {
+        context.log.warn(
+            previousWriter.groupId + ":" + previousWriter.artifactId
+            + " and " + e.groupId + ":" + e.artifactId
+            + " both extract different content to " + entry.outFile
+            + ".  Using the latter.");
+      }
     }
-    this.archiveHash.put(e.archive, Hash.hashBytes(archiveBytes));
-    this.bundleToOutputs.put(e, filesForBundle.build());
   }
 
   private static Optional<File> locationFor(
@@ -164,24 +419,172 @@ extends CompilePlanGraphNode<Extracts, ResolvedExtract> {
       ImmutableMap.<FileExt, PathChooser>of(
           FileExt.PROTO, new FindProtoPackageStmt());
 
+  /**
+   * What plans need to know about earlier extracts.
+   * This is immutable so that plans may run while extracts are applied.
+   */
+  static final class ExtractState {
+    final ImmutableMap<ResolvedExtract, ArchiveStamp> archiveStamps;
+    final ImmutableMap<ResolvedExtract, ImmutableMap<String, ExtractedEntry>>
+        extractedEntries;
+    /** Extracts that have outputs. */
+    final ImmutableSet<ResolvedExtract> extracted;
+    final ImmutableMap<File, PromotedFile> promotedFiles;
+
+    ExtractState(
+        ImmutableMap<ResolvedExtract, ArchiveStamp> archiveStamps,
+        ImmutableMap<ResolvedExtract, ImmutableMap<String, ExtractedEntry>>
+            extractedEntries,
+        ImmutableSet<ResolvedExtract> extracted,
+        ImmutableMap<File, PromotedFile> promotedFiles) {
+      this.archiveStamps = archiveStamps;
+      this.extractedEntries = extractedEntries;
+      this.extracted = extracted;
+      this.promotedFiles = promotedFiles;
+    }
+
+    /**
+     * Stamps the archive, reusing the last stamp's hash if the archive's
+     * size and modification time have not changed.
+     */
+    ArchiveStamp stamp(ResolvedExtract e) throws IOException {
+      File archive = e.archive;
+      long length = archive.length();
+      long lastModified = archive.lastModified();
+      ArchiveStamp last = archiveStamps.get(e);
+      if (last != null && last.length == length
+          && last.lastModified == lastModified) {
+        return last;
+      }
+      return new ArchiveStamp(length, lastModified, Hash.hashFile(archive));
+    }
+
+    /**
+     * True if the archive has the same content as when last extracted and
+     * all the extracted files are still as we left them.
+     */
+    boolean isUpToDate(ResolvedExtract e, ArchiveStamp stamp) {
+      ArchiveStamp last = archiveStamps.get(e);
+      ImmutableMap<String, ExtractedEntry> entries = extractedEntries.get(e);
+      if (last == null || entries == null || !extracted.contains(e)
+          || !last.hash.equals(stamp.hash)) {
+        return false;
+      }
+      for (ExtractedEntry entry : entries.values()) {
+        if (!hasPromotedContent(entry.outFile, entry.contentHash)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Like {@link com.google.closure.plugin.plan.OutputPromoter#hasPromotedContent}.
+     */
+    boolean hasPromotedContent(File f, Hash hash) {
+      PromotedFile pf = promotedFiles.get(f);
+      return pf != null && pf.hash.equals(hash) && pf.matches(f);
+    }
+  }
+
+  /** What extracting an archive would do. */
+  static final class PlannedExtract {
+    final ResolvedExtract extract;
+    final ArchiveStamp stamp;
+    /** True if nothing needs to be written. */
+    final boolean upToDate;
+    final ImmutableList<PlannedEntry> entries;
+    /** Names of entries for which no location could be found. */
+    final ImmutableList<String> unlocatable;
+
+    PlannedExtract(
+        ResolvedExtract extract, ArchiveStamp stamp, boolean upToDate,
+        ImmutableList<PlannedEntry> entries,
+        ImmutableList<String> unlocatable) {
+      this.extract = extract;
+      this.stamp = stamp;
+      this.upToDate = upToDate;
+      this.entries = entries;
+      this.unlocatable = unlocatable;
+    }
+  }
+
+  /** An archive entry to extract. */
+  static final class PlannedEntry {
+    final String name;
+    final ExtractedEntry extracted;
+    /** Null if the file extracted last time is reused. */
+    final byte[] content;
+
+    PlannedEntry(String name, ExtractedEntry extracted, byte[] content) {
+      this.name = name;
+      this.extracted = extracted;
+      this.content = content;
+    }
+  }
+
+  /** Identifies the content of an archive. */
+  static final class ArchiveStamp implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long length;
+    final long lastModified;
+    final Hash hash;
+
+    ArchiveStamp(long length, long lastModified, Hash hash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  /** Where an archive entry was extracted to. */
+  static final class ExtractedEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** From the archive's central directory. */
+    final long crc;
+    /** Uncompressed size from the archive's central directory. */
+    final long size;
+    final File outFile;
+    /** Hash of the extracted content. */
+    final Hash contentHash;
+
+    ExtractedEntry(long crc, long size, File outFile, Hash contentHash) {
+      this.crc = crc;
+      this.size = size;
+      this.outFile = outFile;
+      this.contentHash = contentHash;
+    }
+
+    boolean matches(ZipEntry entry) {
+      return crc != -1 && size != -1
+          && crc == entry.getCrc() && size == entry.getSize();
+    }
+  }
+
   static final class SV
   extends CompilePlanGraphNode.CompileStateVector<Extracts, ResolvedExtract> {
-    /** Hash of archives so we know whether we need to re-extract. */
-    final ImmutableMap<File, Hash> archiveHash;
+    /** Stamps of archives so we know whether we need to re-extract. */
+    final ImmutableMap<ResolvedExtract, ArchiveStamp> archiveStamps;
+    final ImmutableMap<ResolvedExtract, ImmutableMap<String, ExtractedEntry>>
+        extractedEntries;
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
 
     @SuppressWarnings("synthetic-access")
     SV(ExtractFiles node) {
       super(node);
-      this.archiveHash = ImmutableMap.copyOf(node.archiveHash);
+      this.archiveStamps = ImmutableMap.copyOf(node.archiveStamps);
+      this.extractedEntries = ImmutableMap.copyOf(node.extractedEntries);
     }
 
     @SuppressWarnings("synthetic-access")
     @Override
     public ExtractFiles reconstitute(PlanContext context, JoinNodes jn) {
       ExtractFiles ef = apply(new ExtractFiles(context));
-      ef.archiveHash.putAll(archiveHash);
+      ef.archiveStamps.putAll(archiveStamps);
+      ef.extractedEntries.putAll(extractedEntries);
       return ef;
     }
 
@@ -2,6 +2,7 @@ package com.google.closure.plugin.genjava;
 
 import java.io.File;
 
+import com.google.closure.module.PrecompressedResource;
 import com.google.closure.plugin.common.DirectoryScannerSpec;
 import com.google.closure.plugin.common.FileExt;
 import com.google.closure.plugin.common.TypedFile;
@@ -37,7 +38,8 @@ public final class GenSymbolsPlanner {
     DirectoryScannerSpec outputFilesSpec = new DirectoryScannerSpec(
         ImmutableList.of(new TypedFile(context.closureOutputDirectory)),
         ImmutableList.of("**"),
-        ImmutableList.<String>of());
+        // Precompressed siblings are served in place of the originals.
+        ImmutableList.of("**/*" + PrecompressedResource.GZIP_SUFFIX));
 
     File webFilesJava = javaSourcePath("WebFiles.java");
 
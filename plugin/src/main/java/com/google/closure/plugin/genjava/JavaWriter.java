@@ -2,12 +2,21 @@ package com.google.closure.plugin.genjava;
 
 import com.google.common.base.Preconditions;
 
-final class JavaWriter {
+/**
+ * Builds Java source code, indenting based on brackets.
+ */
+public final class JavaWriter {
   private final StringBuilder sb = new StringBuilder();
   private int indent = 0;
   private boolean atLineStart = true;
 
-  JavaWriter appendCode(String code) {
+  /** An empty writer. */
+  public JavaWriter() {
+    // Nothing written.
+  }
+
+  /** Appends code, indenting lines by bracket depth. */
+  public JavaWriter appendCode(String code) {
     int written = 0, n = code.length();
     char quotes = 0;
     for (int i = 0; i < n; ++i) {
@@ -58,7 +67,8 @@ final class JavaWriter {
     return this;
   }
 
-  JavaWriter appendStringLiteral(String plainText) {
+  /** Appends a quoted string literal with the given value. */
+  public JavaWriter appendStringLiteral(String plainText) {
     sb.append('"');
     int written = 0;
     int n = plainText.length();
@@ -95,15 +105,18 @@ final class JavaWriter {
     return this;
   }
 
-  JavaWriter nl() {
+  /** Appends a newline. */
+  public JavaWriter nl() {
     return appendCode("\n");
   }
 
-  JavaWriter appendCommentPart(String text) {
+  /** Appends text that can appear inside a block comment. */
+  public JavaWriter appendCommentPart(String text) {
     return appendCode(text.replace("*/", "*\\u200c/"));
   }
 
-  String toJava() {
+  /** The code written so far. */
+  public String toJava() {
     return sb.toString();
   }
 }
\ No newline at end of file
@@ -16,7 +16,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.io.Files;
 
 /**
  * A plan node that receives bundles from a {@link BundlingPlanGraphNode} and
@@ -35,6 +34,8 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
   protected final Map<B, ImmutableList<File>> bundleToOutputs =
       Maps.newLinkedHashMap();
   protected final List<File> changedFiles = Lists.newArrayList();
+  /** Promotes outputs into place, avoiding churn for unchanged outputs. */
+  protected final OutputPromoter promoter = new OutputPromoter();
 
   protected CompilePlanGraphNode(PlanContext context) {
     super(context);
@@ -95,6 +96,9 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
 
   /** Deletes the file and notifies the build context of that. */
   protected void deleteIfExists(File f) throws IOException {
+    if (f != null) {
+      promoter.forget(f);
+    }
     if (f != null && f.exists()) {
       if (!f.delete()) {
         throw new IOException("Failed to delete " + f);
@@ -109,6 +113,8 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
    * Typically this is used to allow building files to a temp directory and,
    * on success, copying over to the final output directory.
    * <p>
+   * Files whose content is unchanged are left alone so that timestamps and
+   * file-system watchers don't see churn.
    * In addition to manipulating the file system, this updates
    * {@link #changedFiles} list.
    *
@@ -130,8 +136,7 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
         }
       }
     } else {
-      if (!(to.exists() && Files.equal(from, to))) {
-        java.nio.file.Files.move(from.toPath(), to.toPath());
+      if (promoter.promote(from, to)) {
         changedFiles.add(to);
       }
       out.add(to);
@@ -144,16 +149,18 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
       O extends Serializable & StructurallyComparable & Identifiable,
       B extends BundlingPlanGraphNode.Bundle>
   implements PlanGraphNode.StateVector {
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
 
     final Optional<Update<OptionsAndBundles<O, B>>> optionsAndBundles;
     final ImmutableMap<B, ImmutableList<File>> bundleToOutputs;
     final ImmutableList<File> changedFiles;
+    final ImmutableMap<File, OutputPromoter.PromotedFile> promotedFiles;
 
     protected CompileStateVector(CompilePlanGraphNode<O, B> node) {
       this.optionsAndBundles = node.optionsAndBundles;
       this.bundleToOutputs = ImmutableMap.copyOf(node.bundleToOutputs);
       this.changedFiles = ImmutableList.copyOf(node.changedFiles);
+      this.promotedFiles = node.promoter.getPromotedFiles();
     }
 
     protected <N extends CompilePlanGraphNode<O, B>>
@@ -161,6 +168,7 @@ extends PlanGraphNode<CompilePlanGraphNode.CompileStateVector<O, B>> {
       node.changedFiles.clear();
       node.bundleToOutputs.putAll(bundleToOutputs);
       node.optionsAndBundles = optionsAndBundles;
+      node.promoter.restore(promotedFiles);
       return node;
     }
   }
@@ -2,7 +2,9 @@ package com.google.closure.plugin.plan;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.NotSerializableException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -209,6 +211,21 @@ public final class Hash implements Serializable {
     return new Hash(md.digest());
   }
 
+  /**
+   * A hash of the file's content that, unlike {@link #hash(Source)}, does
+   * not depend on its path and does not load the whole file into memory.
+   */
+  public static Hash hashFile(File file) throws IOException {
+    MessageDigest md = newDigest();
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buf = new byte[8192];
+      for (int n; (n = in.read(buf)) >= 0;) {
+        md.update(buf, 0, n);
+      }
+    }
+    return new Hash(md.digest());
+  }
+
   /**
    * True iff the two inputs hash to the same value.
    */
@@ -18,6 +18,7 @@ import com.google.closure.plugin.common.Sources;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.common.StructurallyComparable;
 import com.google.closure.plugin.common.TypedFile;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -204,7 +205,8 @@ extends PlanGraphNode<OptionPlanGraphNode.OptionStateVector<O>> {
     /** Sources for the compile specified by options. */
     public final ImmutableList<Source> sources;
 
-    OptionsAndInputs(O options, Iterable<? extends Source> sources) {
+    @VisibleForTesting
+    public OptionsAndInputs(O options, Iterable<? extends Source> sources) {
       this.options = options;
       this.sources = ImmutableList.copyOf(sources);
     }
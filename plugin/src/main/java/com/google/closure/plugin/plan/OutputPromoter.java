@@ -0,0 +1,235 @@
+package com.google.closure.plugin.plan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Moves freshly built content into output directories without touching
+ * outputs whose content is unchanged.
+ * <p>
+ * Rather than rereading an output to see whether it differs from the new
+ * content, this remembers the hash of what it last wrote along with the
+ * size and modification time it left the file with.  If the file still has
+ * that size and time then the hash is trusted.
+ * Otherwise, as when an output was left by a build whose state was lost,
+ * the output is compared to the new content and left alone if they match.
+ * <p>
+ * New content is written to a temporary file beside the output and renamed
+ * over it so readers never see a partially written output.
+ * Content identical to that of another output is hard-linked where the file
+ * system allows.
+ * Since outputs are only ever replaced by renaming, never rewritten in place,
+ * replacing one link does not affect the other.
+ */
+public final class OutputPromoter {
+  private final Map<File, PromotedFile> promoted = Maps.newLinkedHashMap();
+  /** Lazily built index of {@link #promoted} by hash. */
+  private Map<Hash, File> byHash;
+
+  /** An empty promoter. */
+  public OutputPromoter() {
+    // No outputs known.
+  }
+
+  /**
+   * Moves from to to unless to already has the same content in which case
+   * from is deleted.
+   *
+   * @return true if to changed.
+   */
+  public boolean promote(File from, File to) throws IOException {
+    Hash hash = Hash.hashBytes(Files.toByteArray(from));
+    if (isUpToDate(to, hash, from.length())) {
+      deleteBestEffort(from);
+      return false;
+    }
+    Files.createParentDirs(to);
+    try {
+      java.nio.file.Files.move(
+          from.toPath(), to.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException ex) {
+      // from is on a different file system, so copy to the same file system
+      // as to, and rename there.
+      Path tmp = tempSibling(to);
+      try {
+        java.nio.file.Files.copy(
+            from.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        renameOver(tmp, to);
+      } finally {
+        java.nio.file.Files.deleteIfExists(tmp);
+      }
+      deleteBestEffort(from);
+    }
+    record(to, hash);
+    return true;
+  }
+
+  /**
+   * Writes content to to unless to already has that content.
+   *
+   * @return true if to changed.
+   */
+  public boolean promote(byte[] content, File to) throws IOException {
+    Hash hash = Hash.hashBytes(content);
+    if (isUpToDate(to, hash, content.length)) {
+      return false;
+    }
+    Files.createParentDirs(to);
+    Path tmp = tempSibling(to);
+    try {
+      if (!linkToSameContent(hash, to, tmp)) {
+        java.nio.file.Files.write(tmp, content);
+      }
+      renameOver(tmp, to);
+    } finally {
+      java.nio.file.Files.deleteIfExists(tmp);
+    }
+    record(to, hash);
+    return true;
+  }
+
+  /**
+   * True if f still has the content this promoter last promoted into it.
+   */
+  public boolean isUnchangedSincePromoted(File f) {
+    PromotedFile pf = promoted.get(f);
+    return pf != null && pf.matches(f);
+  }
+
+  /**
+   * True if f still has the content with the given hash that this promoter
+   * last promoted into it.
+   */
+  public boolean hasPromotedContent(File f, Hash hash) {
+    PromotedFile pf = promoted.get(f);
+    return pf != null && pf.hash.equals(hash) && pf.matches(f);
+  }
+
+  /** Called when an output is deleted. */
+  public void forget(File f) {
+    PromotedFile pf = promoted.remove(f);
+    if (pf != null && byHash != null && f.equals(byHash.get(pf.hash))) {
+      byHash.remove(pf.hash);
+    }
+  }
+
+  /** A snapshot for a state vector. */
+  public ImmutableMap<File, PromotedFile> getPromotedFiles() {
+    return ImmutableMap.copyOf(promoted);
+  }
+
+  /** Restores from {@link #getPromotedFiles}. */
+  public void restore(Map<File, PromotedFile> files) {
+    promoted.putAll(files);
+    byHash = null;
+  }
+
+  private boolean isUpToDate(File f, Hash hash, long length)
+  throws IOException {
+    if (hasPromotedContent(f, hash)) {
+      return true;
+    }
+    // If it was modified behind our back we can't trust the hash.
+    forget(f);
+    // We may not know what is in f, so compare content unless the size
+    // alone tells us it differs.
+    if (f.isFile() && f.length() == length && Hash.hashFile(f).equals(hash)) {
+      record(f, hash);
+      return true;
+    }
+    return false;
+  }
+
+  private void record(File f, Hash hash) {
+    forget(f);
+    promoted.put(f, new PromotedFile(hash, f.length(), f.lastModified()));
+    if (byHash != null) {
+      byHash.put(hash, f);
+    }
+  }
+
+  /**
+   * Tries to hard-link tmp to an existing output with the given content.
+   */
+  private boolean linkToSameContent(Hash hash, File to, Path tmp)
+  throws IOException {
+    if (byHash == null) {
+      byHash = Maps.newHashMap();
+      for (Map.Entry<File, PromotedFile> e : promoted.entrySet()) {
+        byHash.put(e.getValue().hash, e.getKey());
+      }
+    }
+    File existing = byHash.get(hash);
+    if (existing == null || existing.equals(to)
+        || !promoted.get(existing).matches(existing)) {
+      return false;
+    }
+    java.nio.file.Files.deleteIfExists(tmp);
+    try {
+      java.nio.file.Files.createLink(tmp, existing.toPath());
+      return true;
+    } catch (UnsupportedOperationException | FileSystemException ex) {
+      // Fall back to copying when the file system does not support links
+      // or the files are on different devices.
+      return false;
+    }
+  }
+
+  private static Path tempSibling(File f) throws IOException {
+    return java.nio.file.Files.createTempFile(
+        f.getParentFile().toPath(), "." + f.getName(), ".tmp");
+  }
+
+  private static void renameOver(Path from, File to) throws IOException {
+    try {
+      java.nio.file.Files.move(
+          from, to.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException ex) {
+      java.nio.file.Files.move(
+          from, to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void deleteBestEffort(File f) {
+    @SuppressWarnings("unused")
+    boolean deleted = f.delete();
+  }
+
+
+  /** What we know about an output we wrote. */
+  public static final class PromotedFile implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Hash of the content written. */
+    public final Hash hash;
+    /** Size of the file after writing. */
+    public final long length;
+    /** Modification time of the file after writing. */
+    public final long lastModified;
+
+    PromotedFile(Hash hash, long length, long lastModified) {
+      this.hash = Preconditions.checkNotNull(hash);
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    /** True if f looks like it has not changed since it was written. */
+    public boolean matches(File f) {
+      return f.length() == length && f.lastModified() == lastModified
+          && lastModified != 0L;
+    }
+  }
+}
@@ -6,26 +6,41 @@ import java.io.IOException;
 import org.apache.maven.plugin.MojoExecutionException;
 
 import com.google.closure.module.ClosureModule;
+import com.google.closure.module.ProtoDescriptorIndex;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.OutputPromoter;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
 
 final class CopyProtosToJar extends PlanGraphNode<CopyProtosToJar.SV> {
 
   private static final String DESCRIPTORS_FILE_BASENAME =
-      ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH.substring(
-          ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH.lastIndexOf('/') + 1);
+      basename(ClosureModule.PROTO_DESCRIPTORS_RESOURCE_PATH);
+
+  private static final String DESCRIPTOR_INDEX_FILE_BASENAME =
+      basename(ClosureModule.PROTO_DESCRIPTOR_INDEX_RESOURCE_PATH);
 
   private Optional<File> toCopy = Optional.absent();
-  private Optional<File> descriptorOutputFile = Optional.absent();
+  private ImmutableList<File> changedOutputs = ImmutableList.of();
+  /**
+   * Avoids rewriting outputs when the descriptor set is byte-identical to the
+   * last one so that the JAR need not be repackaged.
+   */
+  private final OutputPromoter promoter = new OutputPromoter();
 
   CopyProtosToJar(PlanContext context) {
     super(context);
   }
 
+  private static String basename(String resourcePath) {
+    return resourcePath.substring(resourcePath.lastIndexOf('/') + 1);
+  }
+
   @Override
   protected void preExecute(Iterable<? extends PlanGraphNode<?>> preceders) {
     // Nop
@@ -44,37 +59,49 @@ final class CopyProtosToJar extends PlanGraphNode<CopyProtosToJar.SV> {
 
   @Override
   protected Iterable<? extends File> changedOutputFiles() {
-    if (descriptorOutputFile.isPresent()) {
-      return ImmutableList.of(descriptorOutputFile.get());
-    }
-    return ImmutableList.of();
+    return changedOutputs;
   }
 
   @Override
   protected void process() throws IOException, MojoExecutionException {
-    this.descriptorOutputFile = Optional.absent();
+    this.changedOutputs = ImmutableList.of();
 
     if (!this.toCopy.isPresent()) {
       return;
     }
 
     File descriptorSetFile = toCopy.get();
+    // Not generated if protoc is not run.
     if (descriptorSetFile.exists()) {
       File outputFile = new File(
           context.closureOutputDirectory,
           DESCRIPTORS_FILE_BASENAME);
-      // Not generated if protoc is not run.
+      File indexFile = new File(
+          context.closureOutputDirectory,
+          DESCRIPTOR_INDEX_FILE_BASENAME);
+      ImmutableList.Builder<File> changed = ImmutableList.builder();
       try {
-        Files.createParentDirs(outputFile);
-        Files.copy(
-            descriptorSetFile,
-            outputFile);
+        byte[] descriptorBytes = Files.toByteArray(descriptorSetFile);
+        boolean descriptorsChanged = promoter.promote(
+            descriptorBytes, outputFile);
+        if (descriptorsChanged) {
+          changed.add(outputFile);
+        }
+        // The index is derived from the descriptors alone.
+        if (descriptorsChanged
+            || !promoter.isUnchangedSincePromoted(indexFile)) {
+          byte[] indexBytes = ProtoDescriptorIndex.encode(
+              FileDescriptorSet.parseFrom(descriptorBytes));
+          if (promoter.promote(indexBytes, indexFile)) {
+            changed.add(indexFile);
+          }
+        }
       } catch (IOException ex) {
         throw new MojoExecutionException(
             "Failed to copy proto descriptors to build output", ex);
       }
 
-      this.descriptorOutputFile = Optional.of(outputFile);
+      this.changedOutputs = changed.build();
     }
   }
 
@@ -85,20 +112,23 @@ final class CopyProtosToJar extends PlanGraphNode<CopyProtosToJar.SV> {
 
 
   static final class SV implements PlanGraphNode.StateVector {
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
 
-    final Optional<File> descriptorOutputFile;
+    final ImmutableList<File> changedOutputs;
+    final ImmutableMap<File, OutputPromoter.PromotedFile> promotedFiles;
 
     @SuppressWarnings("synthetic-access")
     SV(CopyProtosToJar node) {
-      this.descriptorOutputFile = node.descriptorOutputFile;
+      this.changedOutputs = node.changedOutputs;
+      this.promotedFiles = node.promoter.getPromotedFiles();
     }
 
     @SuppressWarnings("synthetic-access")
     @Override
     public PlanGraphNode<?> reconstitute(PlanContext c, JoinNodes jn) {
       CopyProtosToJar node = new CopyProtosToJar(c);
-      node.descriptorOutputFile = this.descriptorOutputFile;
+      node.changedOutputs = this.changedOutputs;
+      node.promoter.restore(this.promotedFiles);
       return node;
     }
   }
@@ -13,6 +13,7 @@ import com.google.closure.plugin.plan.JoinNodes;
 import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.SourceMetadataMapBuilder;
+import com.google.closure.plugin.proto.ProtoPackageMap.ProtoFileInfo;
 
 
 final class GenerateProtoPackageMap
@@ -37,16 +38,16 @@ extends BundlingPlanGraphNode<ProtoFinalOptions, ProtoPackageMap> {
     try {
       newProtoPackageMap = new ProtoPackageMap(
           SourceMetadataMapBuilder.updateFromSources(
-              oldMap.protoPackages,
+              oldMap.protoFiles,
               SourceMetadataMapBuilder.REAL_FILE_LOADER,
-              new SourceMetadataMapBuilder.Extractor<Optional<String>>() {
+              new SourceMetadataMapBuilder.Extractor<ProtoFileInfo>() {
                 @Override
                 public
-                Optional<String> extractMetadata(Source s, byte[] content)
+                ProtoFileInfo extractMetadata(Source s, byte[] content)
                 throws IOException {
                   CStyleLexer lexer = new CStyleLexer(
                       new String(content, "UTF-8"));
-                  return ProtoPackageMap.getPackage(lexer);
+                  return ProtoFileInfo.of(lexer);
                 }
               },
               protoSources));
@@ -10,14 +10,17 @@ import com.google.closure.plugin.common.SourceFileProperty;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.plan.JoinNodes;
 import com.google.closure.plugin.plan.Metadata;
+import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.closure.plugin.plan.RebundlingPlanGraphNode;
+import com.google.closure.plugin.proto.ProtoPackageMap.ProtoFileInfo;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 
@@ -63,13 +66,12 @@ extends RebundlingPlanGraphNode<ProtoFinalOptions, ProtoPackageMap, ProtoBundle>
     Predicate<Source> inJavaOnlySet = new Predicate<Source>() {
       @Override
       public boolean apply(Source source) {
-        Metadata<Optional<String>> packageMd = packageMap.protoPackages.get(
-            source);
-        if (packageMd == null) {
+        Metadata<ProtoFileInfo> fileMd = packageMap.protoFiles.get(source);
+        if (fileMd == null) {
           log.warn("Missing package metadata for " + source.canonicalPath);
           return false;  // Leave in all set.
         }
-        Optional<String> packageName = packageMd.metadata;
+        Optional<String> packageName = fileMd.metadata.packageName;
         return packageName.isPresent()
             && javaOnly.contains(packageName.get());
       }
@@ -77,12 +79,11 @@ extends RebundlingPlanGraphNode<ProtoFinalOptions, ProtoPackageMap, ProtoBundle>
     Predicate<Source> inJsOnlySet = new Predicate<Source>() {
       @Override
       public boolean apply(Source source) {
-        Metadata<Optional<String>> packageMd = packageMap.protoPackages.get(
-            source);
-        if (packageMd == null) {
+        Metadata<ProtoFileInfo> fileMd = packageMap.protoFiles.get(source);
+        if (fileMd == null) {
           return false;  // Leave in all set.
         }
-        Optional<String> packageName = packageMd.metadata;
+        Optional<String> packageName = fileMd.metadata.packageName;
         return packageName.isPresent()
             && jsOnly.contains(packageName.get());
       }
@@ -146,6 +147,42 @@ extends RebundlingPlanGraphNode<ProtoFinalOptions, ProtoPackageMap, ProtoBundle>
     return protoBundles.build();
   }
 
+  /**
+   * The package map for each set of options and inputs.
+   * <p>
+   * The package map describes every proto source, so compilers look it up
+   * here instead of it being part of each bundle.  That way a change to one
+   * file does not change the identity of every bundle.
+   */
+  ImmutableMap<OptionsAndInputs<ProtoFinalOptions>, ProtoPackageMap>
+      getPackageMaps() {
+    ImmutableMap.Builder<OptionsAndInputs<ProtoFinalOptions>, ProtoPackageMap>
+        b = ImmutableMap.builder();
+    if (inputBundles.isPresent()) {
+      for (OptionsAndBundles<ProtoFinalOptions, ProtoPackageMap> ob
+           : inputBundles.get().allExtant()) {
+        Preconditions.checkState(ob.bundles.size() == 1);
+        b.put(ob.optionsAndInputs, ob.bundles.get(0));
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * The package maps from the bundler among preceders.
+   *
+   * @see #getPackageMaps
+   */
+  static ImmutableMap<OptionsAndInputs<ProtoFinalOptions>, ProtoPackageMap>
+      packageMapsFrom(Iterable<? extends PlanGraphNode<?>> preceders) {
+    for (PlanGraphNode<?> p : preceders) {
+      if (p instanceof ProtoBundler) {
+        return ((ProtoBundler) p).getPackageMaps();
+      }
+    }
+    throw new IllegalStateException("No ProtoBundler among preceders");
+  }
+
   @Override
   protected SV getStateVector() {
     return new SV(this);
@@ -18,7 +18,7 @@ import com.google.closure.plugin.common.StructurallyComparable;
 public final class ProtoFinalOptions
 implements Serializable, StructurallyComparable, Identifiable {
 
-  private static final long serialVersionUID = -8936056156839617489L;
+  private static final long serialVersionUID = 3017254863410947123L;
 
   /** {@link Options#getId()}. */
   final String id;
@@ -66,6 +66,15 @@ implements Serializable, StructurallyComparable, Identifiable {
    */
   final ImmutableSet<String> javaOnly;
 
+  /** The default for {@link #protocTimeoutCeilingSeconds}. */
+  static final int DEFAULT_PROTOC_TIMEOUT_CEILING_SECONDS = 600;
+
+  /**
+   * The most seconds to wait for a single protoc process regardless of how
+   * many inputs it compiles.
+   */
+  final int protocTimeoutCeilingSeconds;
+
   ProtoFinalOptions(
       String id,
       DirectoryScannerSpec sources,
@@ -74,7 +83,8 @@ implements Serializable, StructurallyComparable, Identifiable {
       File descriptorSetFile,
       File testDescriptorSetFile,
       ImmutableSet<String> jsOnly,
-      ImmutableSet<String> javaOnly) {
+      ImmutableSet<String> javaOnly,
+      int protocTimeoutCeilingSeconds) {
     this.id = Preconditions.checkNotNull(id);
     this.sources = Preconditions.checkNotNull(sources);
     this.protobufVersion = Preconditions.checkNotNull(protobufVersion);
@@ -84,6 +94,8 @@ implements Serializable, StructurallyComparable, Identifiable {
         Preconditions.checkNotNull(testDescriptorSetFile);
     this.jsOnly = Preconditions.checkNotNull(jsOnly);
     this.javaOnly = Preconditions.checkNotNull(javaOnly);
+    Preconditions.checkArgument(protocTimeoutCeilingSeconds > 0);
+    this.protocTimeoutCeilingSeconds = protocTimeoutCeilingSeconds;
   }
 
   @Override
@@ -96,6 +108,7 @@ implements Serializable, StructurallyComparable, Identifiable {
     result = prime * result + ((jsOnly == null) ? 0 : jsOnly.hashCode());
     result = prime * result + ((protobufVersion == null) ? 0 : protobufVersion.hashCode());
     result = prime * result + ((protocExec == null) ? 0 : protocExec.hashCode());
+    result = prime * result + protocTimeoutCeilingSeconds;
     result = prime * result + ((sources == null) ? 0 : sources.hashCode());
     result = prime * result + ((testDescriptorSetFile == null) ? 0 : testDescriptorSetFile.hashCode());
     return result;
@@ -155,6 +168,9 @@ implements Serializable, StructurallyComparable, Identifiable {
     } else if (!protocExec.equals(other.protocExec)) {
       return false;
     }
+    if (protocTimeoutCeilingSeconds != other.protocTimeoutCeilingSeconds) {
+      return false;
+    }
     if (sources == null) {
       if (other.sources != null) {
         return false;
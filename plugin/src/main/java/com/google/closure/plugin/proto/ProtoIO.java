@@ -6,6 +6,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 
 import com.google.closure.plugin.common.ToolFinder;
 import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
@@ -34,6 +35,12 @@ public final class ProtoIO {
     return testDescriptorSetFile;
   }
 
+  /** Stands in for the proto planner when testing other planners. */
+  @VisibleForTesting
+  public void setMainDescriptorSetFile(File f) {
+    this.mainDescriptorSetFile = Optional.of(f);
+  }
+
   ImmutableList<File> getProtoc(
       PlanContext context, ProtoFinalOptions options)
   throws MojoExecutionException {
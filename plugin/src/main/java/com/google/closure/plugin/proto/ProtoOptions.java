@@ -57,6 +57,14 @@ public final class ProtoOptions extends SourceOptions {
    */
   public String[] javaOnly;
 
+  /**
+   * The most seconds to wait for a single protoc process.
+   * Each process is given time in proportion to the number and size of its
+   * inputs up to this limit.  Defaults to
+   * {@value ProtoFinalOptions#DEFAULT_PROTOC_TIMEOUT_CEILING_SECONDS}.
+   */
+  public Integer protocTimeoutCeilingSeconds;
+
   @Override
   public ProtoOptions clone() throws CloneNotSupportedException {
     return (ProtoOptions) super.clone();
@@ -99,7 +107,10 @@ public final class ProtoOptions extends SourceOptions {
          ? testDescriptorSetFile
          : defaultTestDescriptorSetFile),
         ImmutableSet.copyOf(jsOnly),
-        ImmutableSet.copyOf(javaOnly));
+        ImmutableSet.copyOf(javaOnly),
+        (protocTimeoutCeilingSeconds != null
+         ? protocTimeoutCeilingSeconds.intValue()
+         : ProtoFinalOptions.DEFAULT_PROTOC_TIMEOUT_CEILING_SECONDS));
   }
 
   @Override
@@ -111,6 +122,7 @@ public final class ProtoOptions extends SourceOptions {
     result = prime * result + Arrays.hashCode(jsOnly);
     result = prime * result + ((protobufVersion == null) ? 0 : protobufVersion.hashCode());
     result = prime * result + ((protocExec == null) ? 0 : protocExec.hashCode());
+    result = prime * result + ((protocTimeoutCeilingSeconds == null) ? 0 : protocTimeoutCeilingSeconds.hashCode());
     result = prime * result + ((testDescriptorSetFile == null) ? 0 : testDescriptorSetFile.hashCode());
     return result;
   }
@@ -154,6 +166,14 @@ public final class ProtoOptions extends SourceOptions {
     } else if (!protocExec.equals(other.protocExec)) {
       return false;
     }
+    if (protocTimeoutCeilingSeconds == null) {
+      if (other.protocTimeoutCeilingSeconds != null) {
+        return false;
+      }
+    } else if (!protocTimeoutCeilingSeconds.equals(
+        other.protocTimeoutCeilingSeconds)) {
+      return false;
+    }
     if (testDescriptorSetFile == null) {
       if (other.testDescriptorSetFile != null) {
         return false;
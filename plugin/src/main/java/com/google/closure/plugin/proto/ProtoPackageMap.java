@@ -1,31 +1,37 @@
 package com.google.closure.plugin.proto;
 
+import java.io.Serializable;
 import java.util.Iterator;
 import java.util.Map;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.closure.plugin.common.CStyleLexer;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode.Bundle;
+import com.google.closure.plugin.common.StructurallyComparable;
 import com.google.closure.plugin.plan.Metadata;
 
-/** Relates proto input files to their package declarations. */
+/**
+ * Relates proto input files to their package declarations and the files
+ * they import.
+ */
 public final class ProtoPackageMap implements Bundle {
-  private static final long serialVersionUID = 7002905141041309585L;
+  private static final long serialVersionUID = -1576047733497226934L;
 
   /** Empty instance. */
   public static final ProtoPackageMap EMPTY = new ProtoPackageMap(
-      ImmutableMap.<Source, Metadata<Optional<String>>>of());
+      ImmutableMap.<Source, Metadata<ProtoFileInfo>>of());
 
-  /** Relates proto input files to their package declarations. */
-  public final ImmutableMap<Source, Metadata<Optional<String>>> protoPackages;
+  /** Relates proto input files to their package declarations and imports. */
+  public final ImmutableMap<Source, Metadata<ProtoFileInfo>> protoFiles;
 
   ProtoPackageMap(
-      Map<? extends Source, ? extends Metadata<Optional<String>>>
-          protoPackages) {
-    this.protoPackages = ImmutableMap.copyOf(protoPackages);
+      Map<? extends Source, ? extends Metadata<ProtoFileInfo>> protoFiles) {
+    this.protoFiles = ImmutableMap.copyOf(protoFiles);
   }
 
   /**
@@ -60,16 +66,55 @@ public final class ProtoPackageMap implements Bundle {
     return Optional.fromNullable(packageName);
   }
 
+  /**
+   * Extracts the paths imported by a .proto definition.
+   * These are relative to the proto search path.
+   */
+  public static ImmutableList<String> getImports(CStyleLexer lex) {
+    ImmutableList.Builder<String> imports = ImmutableList.builder();
+    Iterator<CStyleLexer.Token> it = lex.iterator();
+    while (it.hasNext()) {
+      CStyleLexer.Token t = it.next();
+      if (t.type == CStyleLexer.TokenType.WORD && t.hasText("import")
+          && it.hasNext()) {
+        t = it.next();
+        if (t.type == CStyleLexer.TokenType.WORD
+            && (t.hasText("public") || t.hasText("weak"))
+            && it.hasNext()) {
+          t = it.next();
+        }
+        if (t.type == CStyleLexer.TokenType.STRING) {
+          imports.add(unquote(t.toString()));
+        }
+      }
+    }
+    return imports.build();
+  }
+
+  private static String unquote(String quoted) {
+    int n = quoted.length();
+    int end = n >= 2 && quoted.charAt(n - 1) == quoted.charAt(0) ? n - 1 : n;
+    StringBuilder sb = new StringBuilder(end);
+    for (int i = 1; i < end; ++i) {
+      char ch = quoted.charAt(i);
+      if (ch == '\\' && i + 1 < end) {
+        ch = quoted.charAt(++i);
+      }
+      sb.append(ch);
+    }
+    return sb.toString();
+  }
+
   @Override
   public ImmutableSet<Source> getInputs() {
-    return protoPackages.keySet();
+    return protoFiles.keySet();
   }
 
   @Override
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + ((protoPackages == null) ? 0 : protoPackages.hashCode());
+    result = prime * result + ((protoFiles == null) ? 0 : protoFiles.hashCode());
     return result;
   }
 
@@ -85,13 +130,80 @@ public final class ProtoPackageMap implements Bundle {
       return false;
     }
     ProtoPackageMap other = (ProtoPackageMap) obj;
-    if (protoPackages == null) {
-      if (other.protoPackages != null) {
+    if (protoFiles == null) {
+      if (other.protoFiles != null) {
         return false;
       }
-    } else if (!protoPackages.equals(other.protoPackages)) {
+    } else if (!protoFiles.equals(other.protoFiles)) {
       return false;
     }
     return true;
   }
+
+
+  /** The declarations in a .proto file that affect how it is compiled. */
+  public static final class ProtoFileInfo
+  implements Serializable, StructurallyComparable {
+    private static final long serialVersionUID = 2471530294154311837L;
+
+    /** The package declared, if any. */
+    public final Optional<String> packageName;
+    /** Paths of imported files relative to the proto search path. */
+    public final ImmutableList<String> imports;
+
+    /** */
+    public ProtoFileInfo(
+        Optional<String> packageName, ImmutableList<String> imports) {
+      this.packageName = Preconditions.checkNotNull(packageName);
+      this.imports = Preconditions.checkNotNull(imports);
+    }
+
+    /** Extracts declarations from the content of a .proto file. */
+    public static ProtoFileInfo of(CStyleLexer lex) {
+      return new ProtoFileInfo(getPackage(lex), getImports(lex));
+    }
+
+    @Override
+    public String toString() {
+      return "{package " + packageName.orNull() + ", imports " + imports + "}";
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + ((imports == null) ? 0 : imports.hashCode());
+      result = prime * result + ((packageName == null) ? 0 : packageName.hashCode());
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null) {
+        return false;
+      }
+      if (getClass() != obj.getClass()) {
+        return false;
+      }
+      ProtoFileInfo other = (ProtoFileInfo) obj;
+      if (imports == null) {
+        if (other.imports != null) {
+          return false;
+        }
+      } else if (!imports.equals(other.imports)) {
+        return false;
+      }
+      if (packageName == null) {
+        if (other.packageName != null) {
+          return false;
+        }
+      } else if (!packageName.equals(other.packageName)) {
+        return false;
+      }
+      return true;
+    }
+  }
 }
@@ -2,6 +2,12 @@ package com.google.closure.plugin.proto;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
@@ -9,17 +15,23 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.sonatype.plexus.build.incremental.BuildContext;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
@@ -29,9 +41,16 @@ import com.google.closure.plugin.common.SourceFileProperty;
 import com.google.closure.plugin.common.TypedFile;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode.OptionsAndBundles;
 import com.google.closure.plugin.plan.CompilePlanGraphNode;
+import com.google.closure.plugin.plan.Hash;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.Metadata;
+import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
 import com.google.closure.plugin.plan.PlanContext;
+import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.closure.plugin.plan.Update;
+import com.google.closure.plugin.proto.ProtoPackageMap.ProtoFileInfo;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
 
 final class RunProtoc
 extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
@@ -40,32 +59,344 @@ extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
     super(context);
   }
 
+  /**
+   * The most protoc processes that may run at once.
+   * The default process runner drains each process's stdout and stderr on a
+   * shared pool of eight threads, so more than four concurrent processes
+   * would just wait on one another's output.
+   */
+  static final int MAX_CONCURRENT_PROTOC_PROCESSES = Math.max(
+      1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * The most changed inputs that are compiled by separate protoc processes.
+   * Running protoc once per input lets us attribute outputs to the input
+   * that generated them, but past this many it is cheaper to run protoc
+   * once over all changed inputs.
+   */
+  static final int MAX_SEPARATELY_COMPILED_INPUTS = 16;
+
+  /** Time allowed any protoc process regardless of its inputs. */
+  static final long PROTOC_BASE_TIMEOUT_MILLIS = 30000L;
+
+  /**
+   * Additional time allowed per input.  protoc parses each input's imports
+   * and writes a Java and JS file or more per input.
+   */
+  static final long PROTOC_TIMEOUT_MILLIS_PER_INPUT = 1000L;
+
+  /** Additional time allowed per {@link #PROTOC_TIMEOUT_BYTES_UNIT}. */
+  static final long PROTOC_TIMEOUT_MILLIS_PER_UNIT = 2000L;
+
+  /** Input bytes per {@link #PROTOC_TIMEOUT_MILLIS_PER_UNIT}. */
+  static final long PROTOC_TIMEOUT_BYTES_UNIT = 16384L;
+
+  /**
+   * How long to wait for a protoc process that compiles the given inputs
+   * before giving up on it.
+   *
+   * @param nInputs the number of files passed to protoc.
+   * @param inputBytes the total size of those files.
+   * @param ceilingSeconds the most time to allow.
+   */
+  static long protocTimeoutMillis(
+      int nInputs, long inputBytes, int ceilingSeconds) {
+    long units =
+        (inputBytes + PROTOC_TIMEOUT_BYTES_UNIT - 1) / PROTOC_TIMEOUT_BYTES_UNIT;
+    long timeout = PROTOC_BASE_TIMEOUT_MILLIS
+        + nInputs * PROTOC_TIMEOUT_MILLIS_PER_INPUT
+        + units * PROTOC_TIMEOUT_MILLIS_PER_UNIT;
+    return Math.min(timeout, TimeUnit.SECONDS.toMillis(ceilingSeconds));
+  }
+
+  /**
+   * What protoc last produced for each root and language set, so that
+   * we only regenerate outputs for inputs affected by a change.
+   */
+  private final Map<BundleKey, CompiledBundle> compiled =
+      Maps.newLinkedHashMap();
+
+  private ImmutableMap<OptionsAndInputs<ProtoFinalOptions>, ProtoPackageMap>
+      packageMaps = ImmutableMap.of();
+
+  @Override
+  protected void preExecute(Iterable<? extends PlanGraphNode<?>> preceders) {
+    super.preExecute(preceders);
+    this.packageMaps = ProtoBundler.packageMapsFrom(preceders);
+  }
+
   @Override
   protected void process() throws IOException, MojoExecutionException {
     this.changedFiles.clear();
-    this.processDefunctBundles(this.optionsAndBundles);
+
+    long startNanos = System.nanoTime();
+    long startCpuNanos = currentThreadCpuNanos();
 
     Update<OptionsAndBundles<ProtoFinalOptions, ProtoBundle>> u =
         this.optionsAndBundles.get();
 
+    // Adding or removing a file makes the old bundles defunct.
+    // Their outputs are pruned by mergeOutputs when a bundle with the same
+    // root and language set replaces them so that we need not regenerate
+    // the outputs of unaffected inputs.
+    Set<BundleKey> recompiled = Sets.newHashSet();
     for (OptionsAndBundles<ProtoFinalOptions, ProtoBundle> c : u.changed) {
       for (ProtoBundle b : c.bundles) {
-        processOne(c.optionsAndInputs.options, b);
+        recompiled.add(BundleKey.of(b));
+      }
+    }
+    for (OptionsAndBundles<ProtoFinalOptions, ProtoBundle> d : u.defunct) {
+      for (ProtoBundle b : d.bundles) {
+        BundleKey key = BundleKey.of(b);
+        if (recompiled.contains(key)) {
+          this.bundleToOutputs.remove(b);
+        } else {
+          this.compiled.remove(key);
+        }
+      }
+    }
+    this.processDefunctBundles(this.optionsAndBundles);
+
+    List<BundleCompilation> compilations = Lists.newArrayList();
+    List<ProtocInvocation> invocations = Lists.newArrayList();
+    try {
+      for (OptionsAndBundles<ProtoFinalOptions, ProtoBundle> c : u.changed) {
+        for (ProtoBundle b : c.bundles) {
+          BundleCompilation compilation = prepare(
+              c.optionsAndInputs.options, b,
+              Preconditions.checkNotNull(
+                  packageMaps.get(c.optionsAndInputs)));
+          compilations.add(compilation);
+          invocations.addAll(compilation.invocations);
+        }
+      }
+
+      runAll(context, invocations);
+
+      // Merge in bundle order so that the outputs do not depend on which
+      // process happened to finish first.
+      for (BundleCompilation compilation : compilations) {
+        mergeOutputs(compilation);
+      }
+    } finally {
+      for (ProtocInvocation invocation : invocations) {
+        invocation.deleteTempFiles();
+      }
+    }
+
+    if (!invocations.isEmpty()) {
+      int nInputs = 0;
+      long inputBytes = 0, generatedBytes = 0;
+      for (ProtocInvocation invocation : invocations) {
+        nInputs += invocation.inputs.size();
+        inputBytes += invocation.inputBytes;
+        generatedBytes += invocation.generatedBytes;
+      }
+      long wallMillis = TimeUnit.NANOSECONDS.toMillis(
+          System.nanoTime() - startNanos);
+      StringBuilder summary = new StringBuilder()
+          .append("protoc: ").append(invocations.size())
+          .append(" process(es) compiled ").append(nInputs)
+          .append(" input(s) of ").append(inputBytes)
+          .append("B into ").append(generatedBytes)
+          .append("B in ").append(wallMillis).append("ms");
+      long cpuNanos = currentThreadCpuNanos();
+      if (startCpuNanos >= 0 && cpuNanos >= 0) {
+        summary.append(", ")
+            .append(TimeUnit.NANOSECONDS.toMillis(cpuNanos - startCpuNanos))
+            .append("ms plugin CPU");
+      }
+      context.log.info(summary.toString());
+    }
+  }
+
+  /**
+   * Runs the invocations with at most {@link #MAX_CONCURRENT_PROTOC_PROCESSES}
+   * in flight at once, and cancels those still running if one fails.
+   * Invocations write to distinct temporary directories and descriptor set
+   * files so their protoc processes are independent of one another.
+   */
+  @VisibleForTesting
+  static void runAll(
+      PlanContext context, List<ProtocInvocation> invocations)
+  throws MojoExecutionException {
+    int nLaunched = 0;
+    boolean allExited = false;
+    try {
+      int nAwaited = 0;
+      for (ProtocInvocation invocation : invocations) {
+        if (nLaunched - nAwaited >= MAX_CONCURRENT_PROTOC_PROCESSES) {
+          invocations.get(nAwaited++).awaitSuccessfulExit();
+        }
+        invocation.launch(context);
+        ++nLaunched;
+      }
+      for (; nAwaited < nLaunched; ++nAwaited) {
+        invocations.get(nAwaited).awaitSuccessfulExit();
+      }
+      allExited = true;
+    } finally {
+      if (!allExited) {
+        for (ProtocInvocation invocation : invocations.subList(0, nLaunched)) {
+          invocation.exitCodeFuture.cancel(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * CPU time used by the current thread or -1 if unavailable.
+   * Java offers no way to measure the CPU time of child processes, so this
+   * covers only the work of preparing inputs and merging outputs.
+   */
+  private static long currentThreadCpuNanos() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads.isCurrentThreadCpuTimeSupported()) {
+      try {
+        return threads.getCurrentThreadCpuTime();
+      } catch (UnsupportedOperationException ex) {
+        // Disabled.
       }
     }
+    return -1;
   }
 
-  protected void processOne(ProtoFinalOptions options, ProtoBundle bundle)
+  /**
+   * Figures out which of the bundle's inputs need to be recompiled and
+   * prepares protoc invocations for them.
+   *
+   * @param packageMap describes all proto sources including those outside
+   *     the bundle that its inputs may import.
+   */
+  BundleCompilation prepare(
+      ProtoFinalOptions options, ProtoBundle bundle,
+      ProtoPackageMap packageMap)
   throws IOException, MojoExecutionException {
-    ImmutableList<Source> sources = bundle.inputs;
+    CompiledBundle previous = null;
+    if (context.buildContext.isIncremental()) {
+      previous = compiled.get(BundleKey.of(bundle));
+      if (previous != null && !previous.options.equals(options)) {
+        previous = null;
+      }
+    }
 
-    if (Iterables.isEmpty(sources)) {
-      // We're done.
-      // TODO: Is it a problem that we will not generate
-      // an empty descriptor set file?
-      return;
+    ImmutableMap<String, Hash> hashes = hashesByImportPath(packageMap);
+
+    ImmutableList<Source> dirty;
+    if (previous == null) {
+      dirty = bundle.inputs;
+    } else {
+      Set<String> changedPaths = Sets.newHashSet();
+      for (Map.Entry<String, Hash> e : hashes.entrySet()) {
+        if (!e.getValue().equals(previous.hashes.get(e.getKey()))) {
+          changedPaths.add(e.getKey());
+        }
+      }
+      // Removing a file can change how an import resolves.
+      changedPaths.addAll(
+          Sets.difference(previous.hashes.keySet(), hashes.keySet()));
+
+      ImmutableMap<String, ProtoFileInfo> infos =
+          infosByImportPath(packageMap);
+      ImmutableList.Builder<Source> dirtyBuilder = ImmutableList.builder();
+      for (Source input : bundle.inputs) {
+        if (!previous.outputsByInput.containsKey(input.canonicalPath)
+            || importsAnyOf(importPath(input), infos, changedPaths)) {
+          dirtyBuilder.add(input);
+        }
+      }
+      dirty = dirtyBuilder.build();
     }
 
+    List<ProtocInvocation> invocations = Lists.newArrayList();
+    if (!dirty.isEmpty()) {
+      boolean prepared = false;
+      try {
+        if (previous == null
+            || dirty.size() > MAX_SEPARATELY_COMPILED_INPUTS) {
+          invocations.add(newInvocation(options, bundle, dirty));
+        } else {
+          for (Source input : dirty) {
+            invocations.add(
+                newInvocation(options, bundle, ImmutableList.of(input)));
+          }
+        }
+        prepared = true;
+      } finally {
+        if (!prepared) {
+          for (ProtocInvocation invocation : invocations) {
+            invocation.deleteTempFiles();
+          }
+        }
+      }
+      context.log.debug(
+          "Running protoc over " + dirty.size() + " of "
+          + bundle.inputs.size() + " inputs for " + BundleKey.of(bundle));
+    }
+    return new BundleCompilation(
+        options, bundle, previous, hashes, ImmutableList.copyOf(invocations));
+  }
+
+  /**
+   * True if the file at the given import path transitively imports, or is,
+   * one of the given paths.
+   */
+  private static boolean importsAnyOf(
+      String importPath, Map<String, ProtoFileInfo> infos,
+      Set<String> changedPaths) {
+    Set<String> seen = Sets.newHashSet();
+    List<String> toVisit = Lists.newArrayList(importPath);
+    while (!toVisit.isEmpty()) {
+      String p = toVisit.remove(toVisit.size() - 1);
+      if (!seen.add(p)) { continue; }
+      if (changedPaths.contains(p)) { return true; }
+      ProtoFileInfo info = infos.get(p);
+      if (info != null) {
+        toVisit.addAll(info.imports);
+      }
+    }
+    return false;
+  }
+
+  /** The path by which other files import the source. */
+  static String importPath(Source s) {
+    return FilenameUtils.separatorsToUnix(s.relativePath.getPath());
+  }
+
+  private static ImmutableMap<String, Hash> hashesByImportPath(
+      ProtoPackageMap packageMap) {
+    Map<String, Hash> hashes = Maps.newLinkedHashMap();
+    for (Map.Entry<Source, Metadata<ProtoFileInfo>> e
+         : packageMap.protoFiles.entrySet()) {
+      String p = importPath(e.getKey());
+      if (!hashes.containsKey(p)) {
+        hashes.put(p, e.getValue().hash);
+      }
+    }
+    return ImmutableMap.copyOf(hashes);
+  }
+
+  private static ImmutableMap<String, ProtoFileInfo> infosByImportPath(
+      ProtoPackageMap packageMap) {
+    Map<String, ProtoFileInfo> infos = Maps.newLinkedHashMap();
+    for (Map.Entry<Source, Metadata<ProtoFileInfo>> e
+         : packageMap.protoFiles.entrySet()) {
+      String p = importPath(e.getKey());
+      if (!infos.containsKey(p)) {
+        infos.put(p, e.getValue().metadata);
+      }
+    }
+    return ImmutableMap.copyOf(infos);
+  }
+
+  /**
+   * Builds, but does not start, a protoc command that compiles the given
+   * inputs from the bundle.
+   */
+  ProtocInvocation newInvocation(
+      ProtoFinalOptions options, ProtoBundle bundle,
+      ImmutableList<Source> inputs)
+  throws IOException, MojoExecutionException {
     ImmutableList<File> protocs = context.protoIO.getProtoc(context, options);
     if (protocs.isEmpty()) {
       throw new MojoExecutionException(
@@ -75,131 +406,470 @@ extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
     }
     File protoc = protocs.get(0);
 
-    ImmutableList.Builder<String> argv = ImmutableList.builder();
-    ProtoPathBuilder protoPathBuilder = new ProtoPathBuilder(argv);
-    argv.add(protoc.getPath());
+    // Temporary outputs are deleted by the caller once merged, or here if
+    // we fail before handing them off.
+    File descriptorSetTempFile = null;
+    File javaTempDir = null;
+    File jsTempDir = null;
+    boolean built = false;
+    try {
+      ImmutableList.Builder<String> argv = ImmutableList.builder();
+      ProtoPathBuilder protoPathBuilder = new ProtoPathBuilder(argv);
+      argv.add(protoc.getPath());
+
+      // Descriptors for each input and its imports are cached so that the
+      // bundle's descriptor set can be rebuilt without recompiling every
+      // input.
+      if (writesDescriptorSet(bundle)) {
+        descriptorSetTempFile = File.createTempFile("protoc", ".pd");
+        argv.add("--include_imports");
+        argv.add("--descriptor_set_out")
+            .add(descriptorSetTempFile.getPath());
+      }
 
-    if (bundle.langSet == LangSet.ALL && bundle.descriptorSetFile.isPresent()) {
-      File descriptorSetFile = bundle.descriptorSetFile.get();
-      argv.add("--include_imports");
-      argv.add("--descriptor_set_out")
-          .add(descriptorSetFile.getPath());
-      Files.createParentDirs(descriptorSetFile);
-      changedFiles.add(descriptorSetFile);
+      File javaDestDir = bundle.rootSet == RootSet.TEST
+          ? context.genfilesDirs.javaTestGenfiles
+          : context.genfilesDirs.javaGenfiles;
+      File jsDestDir = bundle.rootSet == RootSet.TEST
+          ? context.genfilesDirs.jsTestGenfiles
+          : context.genfilesDirs.jsGenfiles;
+
+      // Protoc is a little finicky about requiring that output directories
+      // exist, though it will happily create directories for the packages.
+      if (bundle.langSet.emitJava) {
+        javaTempDir = Files.createTempDir();
+        argv.add("--java_out").add(javaTempDir.getPath());
+      }
+      if (bundle.langSet.emitJs) {
+        String jsOutFlagPrefix = "";
+        switch (bundle.rootSet) {
+          case MAIN:
+            jsOutFlagPrefix = "--js_out=";
+            break;
+          case TEST:
+            // github.com/google/protobuf/blob/master/js/README.md#the---js_out-flag
+            jsOutFlagPrefix += "--js_out=testonly:";
+            break;
+        }
+        jsTempDir = Files.createTempDir();
+        argv.add(jsOutFlagPrefix + ensureDirExists(jsTempDir));
+      }
+
+      // Build a proto search path.
+      for (TypedFile root : options.sources.roots) {
+        if (bundle.rootSet == RootSet.TEST
+             || !root.ps.contains(SourceFileProperty.TEST_ONLY)) {
+          protoPathBuilder.withRoot(root.f);
+        }
+      }
+
+      for (Source input : bundle.inputs) {
+        TypedFile root = input.root;
+        if (root.f.exists()) {
+          protoPathBuilder.withRoot(root.f);
+          // We're not guarding against ambiguity here.
+          // We warn on it below.
+        }
+      }
+
+      // Inputs shouldn't start with "-", but just in case.
+      //argv.add("--");  // protoc does not recognize "--".
+
+      // Check for obvious sources of ambiguity due to two inputs with the
+      // same relative path.  We pass absolute paths to protoc, but the
+      // paths resolved by `import "<relative-path>";` directives are still
+      // a potential source of ambiguity.
+      Map<File, Source> relPathToSource = Maps.newHashMap();
+      long inputBytes = 0;
+      for (Source input : inputs) {
+        inputBytes += input.canonicalPath.length();
+        Source ambig = relPathToSource.put(input.relativePath, input);
+        if (ambig == null) {
+          // Instead of using canonicalPath, we concat these two paths
+          // because protoc insists that each input appear under a
+          // search path element as determined by string comparison.
+          File inputFile = new File(FilenameUtils.concat(
+              input.root.f.getPath(),
+              input.relativePath.getPath()));
+          argv.add(inputFile.getPath());
+          context.buildContext.removeMessages(inputFile);
+        } else {
+          context.log.warn(
+              "Ambiguous proto input " + input.relativePath
+              + " appears on search path twice: "
+              + ambig.root + " and " + input.root);
+        }
+      }
+
+      ProtocInvocation invocation = new ProtocInvocation(
+          "protoc " + BundleKey.of(bundle), inputs, inputBytes,
+          protocTimeoutMillis(
+              inputs.size(), inputBytes, options.protocTimeoutCeilingSeconds),
+          argv.build(),
+          javaTempDir, javaDestDir, jsTempDir, jsDestDir,
+          Optional.fromNullable(descriptorSetTempFile));
+      built = true;
+      return invocation;
+    } finally {
+      if (!built) {
+        deleteTempFiles(descriptorSetTempFile, javaTempDir, jsTempDir);
+      }
     }
+  }
 
-    File javaDestDir = bundle.rootSet == RootSet.TEST
-        ? context.genfilesDirs.javaTestGenfiles
-        : context.genfilesDirs.javaGenfiles;
-    File jsDestDir = bundle.rootSet == RootSet.TEST
-        ? context.genfilesDirs.jsTestGenfiles
-        : context.genfilesDirs.jsGenfiles;
+  private static void deleteTempFiles(
+      File descriptorSetTempFile, File javaTempDir, File jsTempDir) {
+    for (File f
+         : new File[] { descriptorSetTempFile, javaTempDir, jsTempDir }) {
+      if (f != null && !FileUtils.deleteQuietly(f)) {
+        f.deleteOnExit();
+      }
+    }
+  }
 
-    File javaTempDir = null;
-    // Protoc is a little finicky about requiring that output directories
-    // exist, though it will happily create directories for the packages.
-    if (bundle.langSet.emitJava) {
-      javaTempDir = Files.createTempDir();
-      argv.add("--java_out").add(javaTempDir.getPath());
+  /**
+   * Copies the outputs of successful protoc runs into the genfiles
+   * directories, deletes any previously generated for the same root and
+   * language set that are no longer generated, and rebuilds the descriptor
+   * set.
+   */
+  void mergeOutputs(BundleCompilation compilation) throws IOException {
+    ProtoBundle bundle = compilation.bundle;
+    BundleKey key = BundleKey.of(bundle);
+    CompiledBundle previous = compilation.previous;
+
+    Map<File, ImmutableSet<File>> outputsByInput = Maps.newLinkedHashMap();
+    Map<String, FileDescriptorProto> descriptors = Maps.newLinkedHashMap();
+    if (previous != null) {
+      outputsByInput.putAll(previous.outputsByInput);
+      for (FileDescriptorProto fd
+           : FileDescriptorSet.parseFrom(previous.descriptorSetBytes)
+             .getFileList()) {
+        descriptors.put(fd.getName(), fd);
+      }
     }
-    File jsTempDir = null;
-    if (bundle.langSet.emitJs) {
-      String jsOutFlagPrefix = "";
-      switch (bundle.rootSet) {
-        case MAIN:
-          jsOutFlagPrefix = "--js_out=";
-          break;
-        case TEST:
-          // github.com/google/protobuf/blob/master/js/README.md#the---js_out-flag
-          jsOutFlagPrefix += "--js_out=testonly:";
-          break;
+    Set<File> inputPaths = Sets.newHashSet();
+    for (Source input : bundle.inputs) {
+      inputPaths.add(input.canonicalPath);
+    }
+    outputsByInput.keySet().retainAll(inputPaths);
+
+    for (ProtocInvocation invocation : compilation.invocations) {
+      ImmutableSet.Builder<File> outputsBuilder = ImmutableSet.builder();
+      if (invocation.javaTempDir != null) {
+        copyFilesOver(
+            invocation.javaTempDir, invocation.javaDestDir, outputsBuilder);
+      }
+      if (invocation.jsTempDir != null) {
+        copyFilesOver(
+            invocation.jsTempDir, invocation.jsDestDir, outputsBuilder);
+      }
+      // When protoc ran over several inputs, we can't tell which produced
+      // which output, so each is credited with all.  Those outputs are only
+      // deleted once no input claims them.
+      ImmutableSet<File> outputs = outputsBuilder.build();
+      for (Source input : invocation.inputs) {
+        outputsByInput.put(input.canonicalPath, outputs);
+      }
+
+      if (invocation.descriptorSetTempFile.isPresent()) {
+        File tmp = invocation.descriptorSetTempFile.get();
+        for (FileDescriptorProto fd
+             : FileDescriptorSet.parseFrom(Files.toByteArray(tmp))
+               .getFileList()) {
+          descriptors.put(fd.getName(), fd);
+        }
       }
-      jsTempDir = Files.createTempDir();
-      argv.add(jsOutFlagPrefix + ensureDirExists(jsTempDir));
     }
 
-    // Build a proto search path.
-    for (TypedFile root : options.sources.roots) {
-      if (bundle.rootSet == RootSet.TEST
-           || !root.ps.contains(SourceFileProperty.TEST_ONLY)) {
-        protoPathBuilder.withRoot(root.f);
+    ImmutableSet.Builder<File> filesForBundleBuilder = ImmutableSet.builder();
+    for (ImmutableSet<File> outputs : outputsByInput.values()) {
+      filesForBundleBuilder.addAll(outputs);
+    }
+    ImmutableSet<File> filesForBundle = filesForBundleBuilder.build();
+
+    Set<File> oldFiles = Sets.newLinkedHashSet();
+    CompiledBundle lastCompiled = compiled.get(key);
+    if (lastCompiled != null) {
+      for (ImmutableSet<File> outputs : lastCompiled.outputsByInput.values()) {
+        oldFiles.addAll(outputs);
       }
     }
+    for (Iterator<Map.Entry<ProtoBundle, ImmutableList<File>>> it
+         = bundleToOutputs.entrySet().iterator();
+         it.hasNext();) {
+      Map.Entry<ProtoBundle, ImmutableList<File>> e = it.next();
+      if (key.equals(BundleKey.of(e.getKey()))) {
+        oldFiles.addAll(e.getValue());
+        it.remove();
+      }
+    }
+    for (File f : oldFiles) {
+      if (!filesForBundle.contains(f)) {
+        this.deleteIfExists(f);
+      }
+    }
+    this.bundleToOutputs.put(bundle, ImmutableList.copyOf(filesForBundle));
 
-    for (Source input : bundle.inputs) {
-      TypedFile root = input.root;
-      if (root.f.exists()) {
-        protoPathBuilder.withRoot(root.f);
-        // We're not guarding against ambiguity here.
-        // We warn on it below.
+    FileDescriptorSet descriptorSet = FileDescriptorSet.getDefaultInstance();
+    if (writesDescriptorSet(bundle)) {
+      descriptorSet = FileDescriptorSet.newBuilder()
+          .addAllFile(descriptorsInDependencyOrder(bundle, descriptors))
+          .build();
+      File descriptorSetFile = bundle.descriptorSetFile.get();
+      byte[] bytes = descriptorSet.toByteArray();
+      if (!(descriptorSetFile.exists()
+            && Arrays.equals(bytes, Files.toByteArray(descriptorSetFile)))) {
+        Files.createParentDirs(descriptorSetFile);
+        Files.write(bytes, descriptorSetFile);
+        changedFiles.add(descriptorSetFile);
       }
     }
 
-    // Inputs shouldn't start with "-", but just in case.
-    //argv.add("--");  // protoc does not recognize "--".
+    compiled.put(key, new CompiledBundle(
+        compilation.options, compilation.hashes,
+        ImmutableMap.copyOf(outputsByInput),
+        descriptorSet.toByteArray()));
+  }
+
+  /** True if protoc writes a descriptor set for the bundle. */
+  static boolean writesDescriptorSet(ProtoBundle bundle) {
+    return bundle.langSet == LangSet.ALL
+        && bundle.descriptorSetFile.isPresent();
+  }
 
-    // Check for obvious sources of ambiguity due to two inputs with the
-    // same relative path.  We pass absolute paths to protoc, but the
-    // paths resolved by `import "<relative-path>";` directives are still
-    // a potential source of ambiguity.
-    Map<File, Source> relPathToSource = Maps.newHashMap();
+  /**
+   * The descriptors of the bundle's inputs and their transitive imports with
+   * each file's dependencies before it as protoc's
+   * {@code --include_imports} would produce.
+   */
+  private ImmutableList<FileDescriptorProto> descriptorsInDependencyOrder(
+      ProtoBundle bundle, Map<String, FileDescriptorProto> descriptors) {
+    Set<String> seen = Sets.newHashSet();
+    ImmutableList.Builder<FileDescriptorProto> ordered =
+        ImmutableList.builder();
     for (Source input : bundle.inputs) {
-      Source ambig = relPathToSource.put(input.relativePath, input);
-      if (ambig == null) {
-        // Instead of using canonicalPath, we concat these two paths
-        // because protoc insists that each input appear under a
-        // search path element as determined by string comparison.
-        File inputFile = new File(FilenameUtils.concat(
-            input.root.f.getPath(),
-            input.relativePath.getPath()));
-        argv.add(inputFile.getPath());
-        context.buildContext.removeMessages(inputFile);
-      } else {
-        context.log.warn(
-            "Ambiguous proto input " + input.relativePath
-            + " appears on search path twice: "
-            + ambig.root + " and " + input.root);
-      }
+      addWithDependencies(importPath(input), descriptors, seen, ordered);
     }
+    return ordered.build();
+  }
 
-    // Feed errors and warnings back to the buildContext
-    Future<Integer> exitCodeFuture = context.processRunner.run(
-        context.log, "protoc", argv.build(),
-        new ProtocOutputReader(context.log, context.buildContext));
-    try {
-      Integer exitCode = exitCodeFuture.get(30, TimeUnit.SECONDS);
+  private void addWithDependencies(
+      String name, Map<String, FileDescriptorProto> descriptors,
+      Set<String> seen, ImmutableList.Builder<FileDescriptorProto> ordered) {
+    if (!seen.add(name)) { return; }
+    FileDescriptorProto fd = descriptors.get(name);
+    if (fd == null) {
+      context.log.warn("No cached proto descriptor for " + name);
+      return;
+    }
+    for (String dep : fd.getDependencyList()) {
+      addWithDependencies(dep, descriptors, seen, ordered);
+    }
+    ordered.add(fd);
+  }
 
-      if (exitCode.intValue() != 0) {
+  /** The protoc invocations needed to bring a bundle's outputs up-to-date. */
+  static final class BundleCompilation {
+    final ProtoFinalOptions options;
+    final ProtoBundle bundle;
+    /** Null if all inputs are being compiled afresh. */
+    final CompiledBundle previous;
+    final ImmutableMap<String, Hash> hashes;
+    final ImmutableList<ProtocInvocation> invocations;
+
+    BundleCompilation(
+        ProtoFinalOptions options, ProtoBundle bundle,
+        CompiledBundle previous, ImmutableMap<String, Hash> hashes,
+        ImmutableList<ProtocInvocation> invocations) {
+      this.options = options;
+      this.bundle = bundle;
+      this.previous = previous;
+      this.hashes = hashes;
+      this.invocations = invocations;
+    }
+  }
+
+  /** A protoc process that compiles some of a bundle's inputs. */
+  static final class ProtocInvocation {
+    /** Identifies the invocation in log messages. */
+    final String label;
+    final ImmutableList<Source> inputs;
+    /** The total size of inputs. */
+    final long inputBytes;
+    /** How long to wait for protoc to exit after launching it. */
+    final long timeoutMillis;
+    final ImmutableList<String> argv;
+    /** Null if not generating Java. */
+    final File javaTempDir;
+    final File javaDestDir;
+    /** Null if not generating JS. */
+    final File jsTempDir;
+    final File jsDestDir;
+    final Optional<File> descriptorSetTempFile;
+    /** Null until launched. */
+    Future<Integer> exitCodeFuture;
+    /** Null until launched. */
+    ProtocOutputReader outputReader;
+    /** Null until launched. */
+    Log log;
+    /** When launched according to {@link System#nanoTime}. */
+    long launchNanos;
+    /** The size of the files protoc generated once it exits successfully. */
+    long generatedBytes;
+
+    /** Deletes protoc's temporary outputs once merged or abandoned. */
+    void deleteTempFiles() {
+      RunProtoc.deleteTempFiles(
+          descriptorSetTempFile.orNull(), javaTempDir, jsTempDir);
+    }
+
+    ProtocInvocation(
+        String label, ImmutableList<Source> inputs, long inputBytes,
+        long timeoutMillis, ImmutableList<String> argv,
+        File javaTempDir, File javaDestDir, File jsTempDir, File jsDestDir,
+        Optional<File> descriptorSetTempFile) {
+      this.label = label;
+      this.inputs = inputs;
+      this.inputBytes = inputBytes;
+      this.timeoutMillis = timeoutMillis;
+      this.argv = argv;
+      this.javaTempDir = javaTempDir;
+      this.javaDestDir = javaDestDir;
+      this.jsTempDir = jsTempDir;
+      this.jsDestDir = jsDestDir;
+      this.descriptorSetTempFile = descriptorSetTempFile;
+    }
+
+    void launch(PlanContext context) {
+      // Feed errors and warnings back to the buildContext
+      log = context.log;
+      outputReader = new ProtocOutputReader(
+          label, context.log, context.buildContext);
+      launchNanos = System.nanoTime();
+      exitCodeFuture = context.processRunner.run(
+          context.log, label, argv, outputReader);
+    }
+
+    void awaitSuccessfulExit() throws MojoExecutionException {
+      // The timeout runs from launch, not from when we start waiting, so
+      // time spent waiting on earlier invocations counts against it.
+      long deadlineNanos =
+          launchNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      try {
+        Integer exitCode = exitCodeFuture.get(
+            Math.max(0, deadlineNanos - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(
+            System.nanoTime() - launchNanos);
+
+        if (exitCode.intValue() != 0) {
+          throw new MojoExecutionException(
+              label + " failed with exit code " + exitCode
+              + " after " + wallMillis + "ms with "
+              + outputReader.getErrorCount() + " error(s)");
+        }
+
+        if (javaTempDir != null) {
+          generatedBytes += FileUtils.sizeOfDirectory(javaTempDir);
+        }
+        if (jsTempDir != null) {
+          generatedBytes += FileUtils.sizeOfDirectory(jsTempDir);
+        }
+        if (descriptorSetTempFile.isPresent()) {
+          generatedBytes += descriptorSetTempFile.get().length();
+        }
+        log.info(
+            label + ": compiled " + inputs.size() + " input(s) of "
+            + inputBytes + "B into " + generatedBytes + "B in "
+            + wallMillis + "ms with "
+            + outputReader.getWarningCount() + " warning(s)");
+      } catch (TimeoutException ex) {
+        exitCodeFuture.cancel(true);
+        throw new MojoExecutionException(
+            label + " timed out after " + timeoutMillis + "ms compiling "
+            + inputs.size() + " input(s) of " + inputBytes + "B."
+            + "  Maybe raise"
+            + " <proto><protocTimeoutCeilingSeconds>...",
+            ex);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
         throw new MojoExecutionException(
-            "protoc execution failed with exit code " + exitCode);
+            "protoc execution was interrupted", ex);
+      } catch (ExecutionException ex) {
+        throw new MojoExecutionException("protoc execution failed", ex);
+      } catch (CancellationException ex) {
+        throw new MojoExecutionException("protoc execution was cancelled", ex);
       }
-    } catch (TimeoutException ex) {
-      throw new MojoExecutionException("protoc execution timed out", ex);
-    } catch (InterruptedException ex) {
-      throw new MojoExecutionException("protoc execution was interrupted", ex);
-    } catch (ExecutionException ex) {
-      throw new MojoExecutionException("protoc execution failed", ex);
-    } catch (CancellationException ex) {
-      throw new MojoExecutionException("protoc execution was cancelled", ex);
     }
+  }
 
-    ImmutableSet.Builder<File> filesForBundleBuilder = ImmutableSet.builder();
-    if (javaTempDir != null) {
-      copyFilesOver(javaTempDir, javaDestDir, filesForBundleBuilder);
+  /** Identifies bundles that compile the same kinds of inputs the same way. */
+  static final class BundleKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final RootSet rootSet;
+    final LangSet langSet;
+
+    private BundleKey(RootSet rootSet, LangSet langSet) {
+      this.rootSet = rootSet;
+      this.langSet = langSet;
     }
-    if (jsTempDir != null) {
-      copyFilesOver(jsTempDir, jsDestDir, filesForBundleBuilder);
+
+    static BundleKey of(ProtoBundle b) {
+      return new BundleKey(b.rootSet, b.langSet);
     }
 
-    ImmutableSet<File> filesForBundle = filesForBundleBuilder.build();
-    ImmutableList<File> oldFiles = this.bundleToOutputs.put(
-        bundle, ImmutableList.copyOf(filesForBundle));
-    if (oldFiles != null) {
-      for (File f : oldFiles) {
-        if (!filesForBundle.contains(f)) {
-          this.deleteIfExists(f);
-        }
+    @Override
+    public String toString() {
+      return rootSet + "/" + langSet;
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + ((langSet == null) ? 0 : langSet.hashCode());
+      result = prime * result + ((rootSet == null) ? 0 : rootSet.hashCode());
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
       }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      BundleKey other = (BundleKey) obj;
+      return langSet == other.langSet && rootSet == other.rootSet;
+    }
+  }
+
+  /** The result of compiling a bundle. */
+  static final class CompiledBundle implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final ProtoFinalOptions options;
+    /** Hashes of all proto sources by import path when compiled. */
+    final ImmutableMap<String, Hash> hashes;
+    /** Generated files by the canonical path of the input. */
+    final ImmutableMap<File, ImmutableSet<File>> outputsByInput;
+    /**
+     * A serialized FileDescriptorSet with descriptors for the inputs and
+     * their imports.
+     */
+    final byte[] descriptorSetBytes;
+
+    CompiledBundle(
+        ProtoFinalOptions options, ImmutableMap<String, Hash> hashes,
+        ImmutableMap<File, ImmutableSet<File>> outputsByInput,
+        byte[] descriptorSetBytes) {
+      this.options = options;
+      this.hashes = hashes;
+      this.outputsByInput = outputsByInput;
+      this.descriptorSetBytes = descriptorSetBytes;
     }
   }
 
@@ -270,15 +940,22 @@ extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
   static final class SV
   extends CompileStateVector<ProtoFinalOptions, ProtoBundle> {
 
-    private static final long serialVersionUID = 6399733844048652746L;
+    private static final long serialVersionUID = -1829386432711205433L;
 
+    final ImmutableMap<BundleKey, CompiledBundle> compiled;
+
+    @SuppressWarnings("synthetic-access")
     protected SV(RunProtoc node) {
       super(node);
+      this.compiled = ImmutableMap.copyOf(node.compiled);
     }
 
+    @SuppressWarnings("synthetic-access")
     @Override
     public RunProtoc reconstitute(PlanContext c, JoinNodes jn) {
-      return apply(new RunProtoc(c));
+      RunProtoc node = apply(new RunProtoc(c));
+      node.compiled.putAll(compiled);
+      return node;
     }
   }
 
@@ -291,14 +968,26 @@ extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
         + "|No syntax specified for file: (.*?)[.] Please"
         );
 
+    private final String label;
     private final Log log;
     private final BuildContext buildContext;
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final AtomicInteger warningCount = new AtomicInteger();
 
-    ProtocOutputReader(Log log, BuildContext buildContext) {
+    ProtocOutputReader(String label, Log log, BuildContext buildContext) {
+      this.label = label;
       this.log = log;
       this.buildContext = buildContext;
     }
 
+    int getErrorCount() {
+      return errorCount.get();
+    }
+
+    int getWarningCount() {
+      return warningCount.get();
+    }
+
     @Override
     public void processLine(String line) {
       Matcher m = MESSAGE.matcher(line);
@@ -315,13 +1004,20 @@ extends CompilePlanGraphNode<ProtoFinalOptions, ProtoBundle> {
           lineno = column = 1;
           message = line;
         }
+        boolean isWarning = message.startsWith("warning:")
+            || line.startsWith("[libprotobuf WARNING");
+        (isWarning ? warningCount : errorCount).incrementAndGet();
         // Assumes buildContext is internally synchronized.
         buildContext.addMessage(
             new File(file), lineno, column, message,
-            BuildContext.SEVERITY_ERROR,
+            isWarning
+            ? BuildContext.SEVERITY_WARNING
+            : BuildContext.SEVERITY_ERROR,
             null);
       } else {
-        log.info("protoc: " + line);
+        // Stream anything else as progress so that long runs are visibly
+        // making progress.
+        log.info(label + ": " + line);
       }
     }
 
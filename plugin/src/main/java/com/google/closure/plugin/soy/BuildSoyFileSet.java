@@ -1,18 +1,29 @@
 package com.google.closure.plugin.soy;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.Metadata;
 import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
+import com.google.closure.plugin.plan.SourceMetadataMapBuilder;
 import com.google.closure.plugin.plan.Update;
 
 
@@ -39,8 +50,42 @@ extends BundlingPlanGraphNode<SoyOptions, SoyBundle> {
       return ImmutableList.of();
     }
 
+    ImmutableMap<Source, Metadata<SoyFileInfo>> oldFileInfo =
+        ImmutableMap.of();
+    if (oldBundles.isPresent() && !oldBundles.get().isEmpty()) {
+      oldFileInfo = oldBundles.get().get(0).fileInfo;
+    }
+
+    // Read each source once and share the content with the file set
+    // supplier so it need not reread them.
+    final Map<Source, byte[]> contents = Maps.newHashMap();
+    ImmutableMap<Source, Metadata<SoyFileInfo>> fileInfo =
+        SourceMetadataMapBuilder.updateFromSources(
+            oldFileInfo,
+            new Function<Source, ByteSource>() {
+              @Override
+              public ByteSource apply(final Source s) {
+                return new ByteSource() {
+                  @Override
+                  public InputStream openStream() throws IOException {
+                    byte[] content = Files.toByteArray(s.canonicalPath);
+                    contents.put(s, content);
+                    return new ByteArrayInputStream(content);
+                  }
+                };
+              }
+            },
+            new SourceMetadataMapBuilder.Extractor<SoyFileInfo>() {
+              @Override
+              public SoyFileInfo extractMetadata(Source s, byte[] content) {
+                return SoyFileInfo.of(new String(content, Charsets.UTF_8));
+              }
+            },
+            sources);
+
     SoyFileSetSupplier sfsSupplier = new SoyFileSetSupplier(oi);
     sfsSupplier.init(context);
+    sfsSupplier.cacheContent(contents);
 
 
     File outputJar = new File(
@@ -49,7 +94,7 @@ extends BundlingPlanGraphNode<SoyOptions, SoyBundle> {
 
     return ImmutableList.of(
         new SoyBundle(
-            sources, sfsSupplier, outputJar, jsOutDir));
+            sources, fileInfo, sfsSupplier, outputJar, jsOutDir));
   }
 
   @Override
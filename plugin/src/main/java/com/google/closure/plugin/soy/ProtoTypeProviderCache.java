@@ -0,0 +1,58 @@
+package com.google.closure.plugin.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.closure.plugin.plan.Hash;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.template.soy.types.proto.SoyProtoTypeProvider;
+
+/**
+ * Shares proto type providers between Soy file sets, and between builds
+ * when the plugin stays loaded as in an IDE, so that we only parse and
+ * validate proto descriptors when they change.
+ */
+final class ProtoTypeProviderCache {
+  private ProtoTypeProviderCache() {
+    // Static API
+  }
+
+  /**
+   * A few entries so that projects in a reactor build with different
+   * descriptors don't evict one another.
+   */
+  private static final Cache<Hash, SoyProtoTypeProvider> CACHE =
+      CacheBuilder.newBuilder()
+      .maximumSize(4)
+      .build();
+
+  /**
+   * A type provider for the descriptors in the given descriptor set file.
+   */
+  static SoyProtoTypeProvider forDescriptorSetFile(final File descriptorSetFile)
+  throws IOException, DescriptorValidationException {
+    Hash hash = Hash.hashFile(descriptorSetFile);
+    try {
+      return CACHE.get(hash, new Callable<SoyProtoTypeProvider>() {
+        @Override
+        public SoyProtoTypeProvider call()
+        throws IOException, DescriptorValidationException {
+          return new SoyProtoTypeProvider.Builder()
+              .addFileDescriptorSetFromFile(descriptorSetFile)
+              .build();
+        }
+      });
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      Throwables.propagateIfPossible(
+          cause, IOException.class, DescriptorValidationException.class);
+      throw new IOException(
+          "Failed to load descriptors from " + descriptorSetFile, cause);
+    }
+  }
+}
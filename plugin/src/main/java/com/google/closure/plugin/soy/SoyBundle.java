@@ -4,20 +4,27 @@ import java.io.File;
 
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode.Bundle;
+import com.google.closure.plugin.plan.Metadata;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 final class SoyBundle implements Bundle {
-  private static final long serialVersionUID = 7321380130637611252L;
+  private static final long serialVersionUID = -2961419633516416218L;
 
   final ImmutableList<Source> inputs;
+  /** Dependency metadata for inputs. */
+  final ImmutableMap<Source, Metadata<SoyFileInfo>> fileInfo;
   final SoyFileSetSupplier sfsSupplier;
   final File outputJar;
   final File jsOutDir;
 
   SoyBundle(
-      ImmutableList<Source> inputs, SoyFileSetSupplier sfsSupplier,
+      ImmutableList<Source> inputs,
+      ImmutableMap<Source, Metadata<SoyFileInfo>> fileInfo,
+      SoyFileSetSupplier sfsSupplier,
       File outputJar, File jsOutDir) {
     this.inputs = inputs;
+    this.fileInfo = fileInfo;
     this.sfsSupplier = sfsSupplier;
     this.outputJar = outputJar;
     this.jsOutDir = jsOutDir;
@@ -32,6 +39,7 @@ final class SoyBundle implements Bundle {
   public int hashCode() {
     final int prime = 31;
     int result = 1;
+    result = prime * result + ((fileInfo == null) ? 0 : fileInfo.hashCode());
     result = prime * result + ((inputs == null) ? 0 : inputs.hashCode());
     result = prime * result + ((jsOutDir == null) ? 0 : jsOutDir.hashCode());
     result = prime * result + ((outputJar == null) ? 0 : outputJar.hashCode());
@@ -51,6 +59,13 @@ final class SoyBundle implements Bundle {
       return false;
     }
     SoyBundle other = (SoyBundle) obj;
+    if (fileInfo == null) {
+      if (other.fileInfo != null) {
+        return false;
+      }
+    } else if (!fileInfo.equals(other.fileInfo)) {
+      return false;
+    }
     if (inputs == null) {
       if (other.inputs != null) {
         return false;
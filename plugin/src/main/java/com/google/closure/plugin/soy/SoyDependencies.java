@@ -0,0 +1,108 @@
+package com.google.closure.plugin.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.plan.Hash;
+import com.google.closure.plugin.plan.Metadata;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Figures out which Soy files need to be recompiled after a change.
+ */
+final class SoyDependencies {
+  private SoyDependencies() {
+    // Static API
+  }
+
+  /**
+   * The sources that need to be recompiled: those whose content changed,
+   * those that use proto types if the proto descriptors changed, and,
+   * transitively, those that call templates defined or previously defined by
+   * any of those.
+   *
+   * @param current metadata for all the bundle's sources.
+   * @param previous metadata for sources when last compiled by canonical
+   *     path.
+   * @param typesChanged true if the proto descriptors changed since the
+   *     last compile.
+   */
+  static ImmutableSet<Source> sourcesToRecompile(
+      Map<Source, Metadata<SoyFileInfo>> current,
+      Map<File, Metadata<SoyFileInfo>> previous,
+      boolean typesChanged) {
+    Set<Source> dirty = Sets.newLinkedHashSet();
+    List<SoyFileInfo> affected = Lists.newArrayList();
+
+    Set<File> currentPaths = Sets.newHashSet();
+    for (Map.Entry<Source, Metadata<SoyFileInfo>> e : current.entrySet()) {
+      Source s = e.getKey();
+      Metadata<SoyFileInfo> md = e.getValue();
+      currentPaths.add(s.canonicalPath);
+      Metadata<SoyFileInfo> old = previous.get(s.canonicalPath);
+      if (old == null || !old.hash.equals(md.hash)) {
+        dirty.add(s);
+        affected.add(md.metadata);
+        if (old != null) {
+          // Callers of templates that were removed need to be recompiled so
+          // that we report the missing callee.
+          affected.add(old.metadata);
+        }
+      } else if (typesChanged && !md.metadata.typeNames.isEmpty()) {
+        dirty.add(s);
+        affected.add(md.metadata);
+      }
+    }
+    for (Map.Entry<File, Metadata<SoyFileInfo>> e : previous.entrySet()) {
+      if (!currentPaths.contains(e.getKey())) {
+        affected.add(e.getValue().metadata);
+      }
+    }
+
+    // Propagate to callers until we reach a fixed point.
+    Set<String> affectedTemplates = Sets.newHashSet();
+    Set<String> affectedDelTemplates = Sets.newHashSet();
+    while (!affected.isEmpty()) {
+      for (SoyFileInfo info : affected) {
+        affectedTemplates.addAll(info.templates);
+        affectedDelTemplates.addAll(info.delTemplates);
+      }
+      affected.clear();
+      for (Map.Entry<Source, Metadata<SoyFileInfo>> e : current.entrySet()) {
+        Source s = e.getKey();
+        SoyFileInfo info = e.getValue().metadata;
+        if (!dirty.contains(s)
+            && (!Sets.intersection(info.calls, affectedTemplates).isEmpty()
+                || !Sets.intersection(info.delCalls, affectedDelTemplates)
+                    .isEmpty())) {
+          dirty.add(s);
+          affected.add(info);
+        }
+      }
+    }
+
+    return ImmutableSet.copyOf(dirty);
+  }
+
+  /**
+   * A hash of the proto descriptors that Soy resolves types against so that
+   * we can tell when sources that use proto types need to be recompiled.
+   */
+  static Optional<Hash> hashDescriptors(PlanContext context)
+  throws IOException {
+    Optional<File> descriptorSetFile =
+        context.protoIO.getMainDescriptorSetFile();
+    if (descriptorSetFile.isPresent() && descriptorSetFile.get().exists()) {
+      return Optional.of(Hash.hashFile(descriptorSetFile.get()));
+    }
+    return Optional.absent();
+  }
+}
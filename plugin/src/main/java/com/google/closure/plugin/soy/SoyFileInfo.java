@@ -0,0 +1,238 @@
+package com.google.closure.plugin.soy;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * What a Soy file defines and what it depends upon so that we can tell which
+ * files need to be recompiled when another changes.
+ * <p>
+ * This is derived by scanning for commands rather than by parsing so is
+ * conservative: names that appear in commands that Soy would reject are
+ * still reported.
+ */
+public final class SoyFileInfo implements Serializable {
+  private static final long serialVersionUID = 4021797512826658541L;
+
+  /** The file's namespace or the empty string if none. */
+  final String namespace;
+  /** Full names of templates defined by the file. */
+  final ImmutableSet<String> templates;
+  /** Names of delegate templates that the file provides. */
+  final ImmutableSet<String> delTemplates;
+  /** Full names of templates called by the file. */
+  final ImmutableSet<String> calls;
+  /** Names of delegate templates called by the file. */
+  final ImmutableSet<String> delCalls;
+  /**
+   * Dotted type names used in param and inject declarations.
+   * These are typically proto message and enum names.
+   */
+  final ImmutableSet<String> typeNames;
+
+  SoyFileInfo(
+      String namespace,
+      ImmutableSet<String> templates, ImmutableSet<String> delTemplates,
+      ImmutableSet<String> calls, ImmutableSet<String> delCalls,
+      ImmutableSet<String> typeNames) {
+    this.namespace = Preconditions.checkNotNull(namespace);
+    this.templates = Preconditions.checkNotNull(templates);
+    this.delTemplates = Preconditions.checkNotNull(delTemplates);
+    this.calls = Preconditions.checkNotNull(calls);
+    this.delCalls = Preconditions.checkNotNull(delCalls);
+    this.typeNames = Preconditions.checkNotNull(typeNames);
+  }
+
+  private static final Pattern BLOCK_COMMENT = Pattern.compile(
+      "/[*].*?[*]/", Pattern.DOTALL);
+  /** Soy line comments must be preceded by whitespace. */
+  private static final Pattern LINE_COMMENT = Pattern.compile(
+      "(^|\\s)//[^\\r\\n]*", Pattern.MULTILINE);
+
+  private static final Pattern COMMAND = Pattern.compile(
+      "\\{(namespace|alias|template|deltemplate|call|delcall)\\s+"
+      + "(\\.?[\\w.]+)(?:\\s+as\\s+(\\w+))?");
+
+  private static final Pattern DECLARATION = Pattern.compile(
+      "\\{@(?:param|inject)[?]?\\s+\\w+\\s*:([^}]*)\\}");
+
+  private static final Pattern DOTTED_NAME = Pattern.compile(
+      "[A-Za-z_]\\w*(?:\\.[A-Za-z_]\\w*)+");
+
+  /** Scans Soy source code. */
+  static SoyFileInfo of(String content) {
+    String code = stripComments(content);
+
+    String namespace = "";
+    Map<String, String> aliases = Maps.newHashMap();
+    ImmutableSet.Builder<String> templates = ImmutableSet.builder();
+    ImmutableSet.Builder<String> delTemplates = ImmutableSet.builder();
+    ImmutableSet.Builder<String> calls = ImmutableSet.builder();
+    ImmutableSet.Builder<String> delCalls = ImmutableSet.builder();
+    ImmutableSet.Builder<String> typeNames = ImmutableSet.builder();
+
+    Matcher m = COMMAND.matcher(code);
+    while (m.find()) {
+      String command = m.group(1);
+      String name = m.group(2);
+      switch (command) {
+        case "namespace":
+          namespace = name;
+          break;
+        case "alias":
+          String alias = m.group(3);
+          if (alias == null) {
+            alias = name.substring(name.lastIndexOf('.') + 1);
+          }
+          aliases.put(alias, name);
+          break;
+        case "template":
+          templates.add(qualify(namespace, aliases, name));
+          break;
+        case "deltemplate":
+          delTemplates.add(name);
+          break;
+        case "call":
+          calls.add(qualify(namespace, aliases, name));
+          break;
+        case "delcall":
+          delCalls.add(name);
+          break;
+        default:
+          throw new AssertionError(command);
+      }
+    }
+
+    Matcher d = DECLARATION.matcher(code);
+    while (d.find()) {
+      Matcher n = DOTTED_NAME.matcher(d.group(1));
+      while (n.find()) {
+        typeNames.add(n.group());
+      }
+    }
+
+    return new SoyFileInfo(
+        namespace, templates.build(), delTemplates.build(), calls.build(),
+        delCalls.build(), typeNames.build());
+  }
+
+  /**
+   * Scans Soy source code for the templates called from each template.
+   *
+   * @return a map from the full names of templates, and the names of delegate
+   *     templates, defined in content to the full names of templates and
+   *     names of delegate templates they call.
+   */
+  public static ImmutableSetMultimap<String, String> callGraph(
+      String content) {
+    String code = stripComments(content);
+
+    String namespace = "";
+    Map<String, String> aliases = Maps.newHashMap();
+    String caller = null;
+    ImmutableSetMultimap.Builder<String, String> graph =
+        ImmutableSetMultimap.builder();
+
+    Matcher m = COMMAND.matcher(code);
+    while (m.find()) {
+      String command = m.group(1);
+      String name = m.group(2);
+      switch (command) {
+        case "namespace":
+          namespace = name;
+          break;
+        case "alias":
+          String alias = m.group(3);
+          if (alias == null) {
+            alias = name.substring(name.lastIndexOf('.') + 1);
+          }
+          aliases.put(alias, name);
+          break;
+        case "template":
+          caller = qualify(namespace, aliases, name);
+          break;
+        case "deltemplate":
+          caller = name;
+          break;
+        case "call":
+          if (caller != null) {
+            graph.put(caller, qualify(namespace, aliases, name));
+          }
+          break;
+        case "delcall":
+          if (caller != null) {
+            graph.put(caller, name);
+          }
+          break;
+        default:
+          throw new AssertionError(command);
+      }
+    }
+    return graph.build();
+  }
+
+  private static String stripComments(String content) {
+    return LINE_COMMENT.matcher(
+        BLOCK_COMMENT.matcher(content).replaceAll(" "))
+        .replaceAll("$1");
+  }
+
+  private static String qualify(
+      String namespace, Map<String, String> aliases, String name) {
+    if (name.startsWith(".")) {
+      return namespace + name;
+    }
+    int dot = name.indexOf('.');
+    String first = dot < 0 ? name : name.substring(0, dot);
+    String aliased = aliases.get(first);
+    if (aliased != null) {
+      return aliased + name.substring(first.length());
+    }
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return "{namespace " + namespace + "}";
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ((calls == null) ? 0 : calls.hashCode());
+    result = prime * result + ((delCalls == null) ? 0 : delCalls.hashCode());
+    result = prime * result + ((delTemplates == null) ? 0 : delTemplates.hashCode());
+    result = prime * result + ((namespace == null) ? 0 : namespace.hashCode());
+    result = prime * result + ((templates == null) ? 0 : templates.hashCode());
+    result = prime * result + ((typeNames == null) ? 0 : typeNames.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    SoyFileInfo other = (SoyFileInfo) obj;
+    return calls.equals(other.calls)
+        && delCalls.equals(other.delCalls)
+        && delTemplates.equals(other.delTemplates)
+        && namespace.equals(other.namespace)
+        && templates.equals(other.templates)
+        && typeNames.equals(other.typeNames);
+  }
+}
@@ -1,8 +1,15 @@
 package com.google.closure.plugin.soy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
@@ -11,13 +18,18 @@ import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.common.StructurallyComparable;
 import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
 import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSink;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.SoyToJbcSrcCompiler;
 import com.google.template.soy.base.internal.SoyFileKind;
 import com.google.template.soy.types.SoyTypeProvider;
 import com.google.template.soy.types.SoyTypeRegistry;
@@ -28,12 +40,22 @@ import com.google.template.soy.types.proto.SoyProtoTypeProvider;
  * a single run, the file set is shared between all compiles that need it
  * so that we don't generate duplicate error messages and warnings when we
  * apply different backends to the inputs.
+ * <p>
+ * Compiling a file set is not thread-safe, so backends that compile
+ * concurrently get their own file sets built from the same source content.
  */
 final class SoyFileSetSupplier implements Serializable, StructurallyComparable {
   private static final long serialVersionUID = 1L;
 
   private transient PlanContext context;
   private transient SoyFileSet sfs;
+  /** Sources compiled by {@link #partialSfs}. */
+  private transient ImmutableSet<Source> partialSrcs;
+  private transient SoyFileSet partialSfs;
+  /** Content of sources read while building the bundle. */
+  private transient Map<Source, byte[]> contentCache;
+  /** Java bytecode compiled in the background this run. */
+  private transient Future<JavaBytecode> javaBytecode;
   private final OptionsAndInputs<SoyOptions> optionsAndInputs;
 
   SoyFileSetSupplier(OptionsAndInputs<SoyOptions> optionsAndInputs) {
@@ -44,20 +66,176 @@ final class SoyFileSetSupplier implements Serializable, StructurallyComparable {
   SoyFileSetSupplier init(PlanContext context) {
     if (context != this.context) {
       this.sfs = null;
+      this.partialSrcs = null;
+      this.partialSfs = null;
+      this.contentCache = null;
+      if (this.javaBytecode != null) {
+        this.javaBytecode.cancel(true);
+        this.javaBytecode = null;
+      }
       this.context = context;
     }
     return this;
   }
 
+  /**
+   * Makes source content that has already been read available so that
+   * building the file set need not reread it.
+   */
+  void cacheContent(Map<Source, byte[]> content) {
+    this.contentCache = ImmutableMap.copyOf(content);
+  }
+
   @SuppressWarnings("hiding")
   synchronized SoyFileSet getSoyFileSet(PlanContext context)
   throws MojoExecutionException{
     init(context);
 
-    if (sfs != null) {
-      return sfs;
+    if (sfs == null) {
+      sfs = build(null);
+    }
+    return sfs;
+  }
+
+  /**
+   * A file set that only generates code for the given sources.
+   * Other sources are still parsed so that calls and types resolve.
+   */
+  @SuppressWarnings("hiding")
+  synchronized SoyFileSet getSoyFileSet(
+      PlanContext context, ImmutableSet<Source> compiledSources)
+  throws MojoExecutionException{
+    init(context);
+
+    if (compiledSources.containsAll(optionsAndInputs.sources)) {
+      return getSoyFileSet(context);
+    }
+    if (partialSfs == null || !compiledSources.equals(partialSrcs)) {
+      partialSfs = build(compiledSources);
+      partialSrcs = compiledSources;
+    }
+    return partialSfs;
+  }
+
+  /**
+   * A file set that is not shared with other callers.
+   * Compiling a file set is not thread-safe, so each of several concurrent
+   * compiles needs its own.
+   */
+  @SuppressWarnings("hiding")
+  synchronized SoyFileSet newSoyFileSet(
+      PlanContext context, ImmutableSet<Source> compiledSources)
+  throws MojoExecutionException{
+    init(context);
+
+    return build(
+        compiledSources.containsAll(optionsAndInputs.sources)
+        ? null : compiledSources);
+  }
+
+  /**
+   * Starts compiling all sources to Java bytecode in the background unless
+   * that was already started this run, so that it overlaps with compiling
+   * other backends.
+   */
+  @SuppressWarnings("hiding")
+  synchronized void startJavaCompile(PlanContext context)
+  throws MojoExecutionException {
+    init(context);
+
+    if (javaBytecode == null) {
+      final SoyFileSet javaSfs = build(null);
+      final boolean needSrcJar = optionsAndInputs.options.shouldWriteJars();
+      javaBytecode = BACKGROUND_COMPILE_EXECUTOR.submit(
+          new Callable<JavaBytecode>() {
+            @Override
+            public JavaBytecode call() throws IOException {
+              ByteArrayOutputStream classJar = new ByteArrayOutputStream();
+              ByteArrayOutputStream srcJar = new ByteArrayOutputStream();
+              SoyToJbcSrcCompiler.compile(
+                  javaSfs, asByteSink(classJar),
+                  needSrcJar
+                  ? Optional.of(asByteSink(srcJar))
+                  : Optional.<ByteSink>absent());
+              return new JavaBytecode(
+                  classJar.toByteArray(),
+                  needSrcJar
+                  ? Optional.of(srcJar.toByteArray())
+                  : Optional.<byte[]>absent());
+            }
+          });
+    }
+  }
+
+  /**
+   * The Java bytecode for all sources, starting the compile if it was not
+   * started this run.
+   */
+  @SuppressWarnings("hiding")
+  synchronized Future<JavaBytecode> getJavaBytecode(PlanContext context)
+  throws MojoExecutionException {
+    startJavaCompile(context);
+    return javaBytecode;
+  }
+
+  /** Called when the Java bytecode will not be needed this run. */
+  synchronized void cancelJavaCompile() {
+    if (javaBytecode != null) {
+      javaBytecode.cancel(true);
+      javaBytecode = null;
     }
+  }
 
+  /** The background Java compile if one was started and not cancelled. */
+  @VisibleForTesting
+  synchronized Optional<Future<JavaBytecode>> getStartedJavaCompile() {
+    return Optional.fromNullable(javaBytecode);
+  }
+
+  private static ByteSink asByteSink(final ByteArrayOutputStream out) {
+    return new ByteSink() {
+      @Override
+      public OutputStream openStream() {
+        out.reset();
+        return out;
+      }
+    };
+  }
+
+  /**
+   * The sources that a file set returned by
+   * {@link #getSoyFileSet(PlanContext, ImmutableSet)} generates code for in
+   * the order code is generated.
+   */
+  ImmutableList<Source> compiledSources(
+      Optional<ImmutableSet<Source>> compiledSources) {
+    ImmutableList.Builder<Source> b = ImmutableList.builder();
+    for (Source source : optionsAndInputs.sources) {
+      if (kindOf(source, compiledSources) == SoyFileKind.SRC) {
+        b.add(source);
+      }
+    }
+    return b.build();
+  }
+
+  private static SoyFileKind kindOf(
+      Source source, Optional<ImmutableSet<Source>> compiledSources) {
+    if (source.root.ps.contains(SourceFileProperty.LOAD_AS_NEEDED)) {
+      return SoyFileKind.DEP;
+    }
+    if (compiledSources.isPresent()
+        && !compiledSources.get().contains(source)) {
+      return SoyFileKind.DEP;
+    }
+    return SoyFileKind.SRC;
+  }
+
+  /**
+   * @param compiledSources null to generate code for all sources that are
+   *     not loaded as needed.
+   */
+  private SoyFileSet build(ImmutableSet<Source> compiledSources)
+  throws MojoExecutionException {
     SoyOptions options = optionsAndInputs.options;
     ImmutableList<Source> sources = optionsAndInputs.sources;
 
@@ -65,13 +243,13 @@ final class SoyFileSetSupplier implements Serializable, StructurallyComparable {
 
     for (Source source : sources) {
       String relPath = source.relativePath.getPath();
-      SoyFileKind kind =
-          source.root.ps.contains(SourceFileProperty.LOAD_AS_NEEDED)
-          ? SoyFileKind.DEP
-              : SoyFileKind.SRC;
+      SoyFileKind kind = kindOf(
+          source, Optional.fromNullable(compiledSources));
       try {
-        CharSequence content = Files.toString(
-            source.canonicalPath, Charsets.UTF_8);
+        byte[] cached = contentCache != null ? contentCache.get(source) : null;
+        CharSequence content = cached != null
+            ? new String(cached, Charsets.UTF_8)
+            : Files.toString(source.canonicalPath, Charsets.UTF_8);
         sfsBuilder.addWithKind(content, kind, relPath);
       } catch (IOException ex) {
         throw new MojoExecutionException(
@@ -96,11 +274,10 @@ final class SoyFileSetSupplier implements Serializable, StructurallyComparable {
     SoyProtoTypeProvider protoTypeProvider = null;
     try {
       if (mainDescriptorSetFile.exists()) {
-        protoTypeProvider = new SoyProtoTypeProvider.Builder()
-            // TODO: do we need to extract descriptor set files from
-            // <extract>ed dependencies and include them here?
-            .addFileDescriptorSetFromFile(mainDescriptorSetFile)
-            .build();
+        // TODO: do we need to extract descriptor set files from
+        // <extract>ed dependencies and include them here?
+        protoTypeProvider = ProtoTypeProviderCache.forDescriptorSetFile(
+            mainDescriptorSetFile);
       } else {
         context.log.info(
             "soy skipping missing descriptor file "
@@ -117,15 +294,45 @@ final class SoyFileSetSupplier implements Serializable, StructurallyComparable {
           ex);
     }
     if (protoTypeProvider != null) {
+      // The provider, which holds the parsed descriptors, is shared.
+      // Registries are cheap and are mutated as compiles intern types, so
+      // each file set, which may be compiled concurrently, gets its own.
       SoyTypeRegistry typeRegistry = new SoyTypeRegistry(
           ImmutableSet.<SoyTypeProvider>of(protoTypeProvider));
       sfsBuilder.setLocalTypeRegistry(typeRegistry);
     }
 
-    this.sfs = sfsBuilder.build();
-    return sfs;
+    return sfsBuilder.build();
+  }
+
+  /** Compiled Java classes and their sources. */
+  static final class JavaBytecode {
+    /** A JAR containing class files. */
+    final byte[] classJar;
+    /**
+     * A JAR containing the Java source corresponding to the classes if
+     * requested.
+     */
+    final Optional<byte[]> srcJar;
+
+    JavaBytecode(byte[] classJar, Optional<byte[]> srcJar) {
+      this.classJar = classJar;
+      this.srcJar = srcJar;
+    }
   }
 
+  /**
+   * Runs compiles that overlap with the plan graph's execution of other
+   * nodes.  Daemon threads so an abandoned compile does not keep the JVM
+   * alive.
+   */
+  private static final ExecutorService BACKGROUND_COMPILE_EXECUTOR =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("soy-compile-%d")
+          .build());
+
   @Override
   public int hashCode() {
     return optionsAndInputs.hashCode();
@@ -1,5 +1,6 @@
 package com.google.closure.plugin.soy;
 
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,13 @@ public final class SoyOptions extends SourceOptions {
    */
   public Boolean strictAutoescapingRequired;
 
+  /**
+   * true to also package the classes generated from templates, and their
+   * Java source, into JARs in the output directory.
+   * The classes are always written to the classes directory.
+   */
+  public Boolean writeJars;
+
   /** Add JS backend-specific options to the soy compiler. */
   public void setJs(Js js) {
     this.js.add(js);
@@ -43,6 +51,21 @@ public final class SoyOptions extends SourceOptions {
     return ImmutableList.copyOf(js);
   }
 
+  /**
+   * Adds an XLIFF message bundle.  For each bundle, we generate a localized
+   * version of each JS output in addition to the untranslated version.
+   * The locale comes from the bundle's target-language.
+   */
+  public void setTranslation(File translation) {
+    this.translations.add(translation);
+  }
+  private final List<File> translations = Lists.newArrayList();
+
+  /** XLIFF message bundles used to generate localized JS. */
+  public ImmutableList<File> getTranslations() {
+    return ImmutableList.copyOf(translations);
+  }
+
 
   @Override
   public SoyOptions clone() throws CloneNotSupportedException {
@@ -50,6 +73,12 @@ public final class SoyOptions extends SourceOptions {
   }
 
 
+  /** True if {@link #writeJars} was set to true. */
+  boolean shouldWriteJars() {
+    return writeJars != null && writeJars.booleanValue();
+  }
+
+
   /**
    * Creates a soy file set builder from this option sets fields.
    */
@@ -112,6 +141,8 @@ public final class SoyOptions extends SourceOptions {
     result = prime * result + ((compileTimeGlobals == null) ? 0 : compileTimeGlobals.hashCode());
     result = prime * result + ((js == null) ? 0 : js.hashCode());
     result = prime * result + ((strictAutoescapingRequired == null) ? 0 : strictAutoescapingRequired.hashCode());
+    result = prime * result + ((translations == null) ? 0 : translations.hashCode());
+    result = prime * result + ((writeJars == null) ? 0 : writeJars.hashCode());
     return result;
   }
 
@@ -148,6 +179,20 @@ public final class SoyOptions extends SourceOptions {
     } else if (!strictAutoescapingRequired.equals(other.strictAutoescapingRequired)) {
       return false;
     }
+    if (translations == null) {
+      if (other.translations != null) {
+        return false;
+      }
+    } else if (!translations.equals(other.translations)) {
+      return false;
+    }
+    if (writeJars == null) {
+      if (other.writeJars != null) {
+        return false;
+      }
+    } else if (!writeJars.equals(other.writeJars)) {
+      return false;
+    }
     return true;
   }
 }
@@ -2,6 +2,7 @@ package com.google.closure.plugin.soy;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.closure.plugin.common.FileExt;
 import com.google.closure.plugin.common.OptionsUtils;
@@ -14,6 +15,7 @@ import com.google.closure.plugin.plan.PlanContext;
 public final class SoyPlanner {
   private final PlanContext context;
   private final JoinNodes joinNodes;
+  private String genJavaPackageName = "";
 
   /** */
   public SoyPlanner(PlanContext context, JoinNodes joinNodes) {
@@ -21,6 +23,12 @@ public final class SoyPlanner {
     this.joinNodes = joinNodes;
   }
 
+  /** Sets the package name of the generated template index class. */
+  public SoyPlanner genJavaPackageName(String newPackageName) {
+    this.genJavaPackageName = Preconditions.checkNotNull(newPackageName);
+    return this;
+  }
+
   /** Adds steps to the common planner to compiler soy. */
   public void plan(SoyOptions unprepared) throws MojoExecutionException {
     SoyOptions opts = OptionsUtils.prepareOne(unprepared);
@@ -36,7 +44,9 @@ public final class SoyPlanner {
             FileExt.PD)
         .then(soyPlanRoot)
         .then(new BuildSoyFileSet(context))
-        .then(new SoyToJs(context), new SoyToJava(context))
+        .then(
+            new SoyToJs(context),
+            new SoyToJava(context, genJavaPackageName))
         .provide(FileExt.CLASS, FileExt.JS)
         .build();
   }
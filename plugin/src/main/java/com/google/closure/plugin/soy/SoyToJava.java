@@ -1,35 +1,60 @@
 package com.google.closure.plugin.soy;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import javax.annotation.Generated;
+
 import org.apache.commons.io.FilenameUtils;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.genjava.JavaWriter;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode.OptionsAndBundles;
 import com.google.closure.plugin.plan.CompilePlanGraphNode;
+import com.google.closure.plugin.plan.Hash;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.Metadata;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.closure.plugin.plan.Update;
-import com.google.common.io.ByteSink;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.FileWriteMode;
 import com.google.common.io.Files;
-import com.google.template.soy.SoyFileSet;
-import com.google.template.soy.SoyToJbcSrcCompiler;
 
 final class SoyToJava extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
 
-  SoyToJava(PlanContext context) {
+  /** The runtime module that loads the generated template index. */
+  static final String RUNTIME_MODULE_GROUP_ID = "com.google.closure";
+  /** @see #RUNTIME_MODULE_GROUP_ID */
+  static final String RUNTIME_MODULE_ARTIFACT_ID = "soy-juice";
+  /** The interface implemented by the generated template index. */
+  static final String TEMPLATE_INDEX_INTERFACE =
+      "com.google.closure.module.PrecompiledTemplateIndex";
+  /** The simple name of the generated template index class. */
+  static final String TEMPLATE_INDEX_CLASS_NAME = "SoyTemplateIndex";
+
+  final String genJavaPackageName;
+
+  SoyToJava(PlanContext context, String genJavaPackageName) {
     super(context);
+    this.genJavaPackageName = genJavaPackageName;
   }
 
   private static File getSrcJarPath(SoyBundle b) {
@@ -39,49 +64,126 @@ final class SoyToJava extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
             b.outputJar.getName()) + "-src.jar");
   }
 
+  /**
+   * What was last compiled for each set of options by options id so that
+   * we can skip compiling when no source is affected by a change.
+   */
+  private final Map<String, CompiledJar> compiled = Maps.newLinkedHashMap();
+
   @Override
   protected void process() throws IOException, MojoExecutionException {
-    processDefunctBundles(optionsAndBundles);
-
     Update<OptionsAndBundles<SoyOptions, SoyBundle>> u =
         optionsAndBundles.get();
 
     this.changedFiles.clear();
+
+    // Changing a source makes the old bundle defunct.
+    // Leave its outputs to processOne when a bundle with the same options
+    // replaces it since the change may not affect any template.
+    Set<String> recompiled = Sets.newHashSet();
+    for (OptionsAndBundles<SoyOptions, SoyBundle> c : u.changed) {
+      recompiled.add(c.optionsAndInputs.options.getId());
+    }
+    for (OptionsAndBundles<SoyOptions, SoyBundle> d : u.defunct) {
+      String id = d.optionsAndInputs.options.getId();
+      for (SoyBundle b : d.bundles) {
+        if (recompiled.contains(id)) {
+          this.bundleToOutputs.remove(b);
+        } else {
+          this.compiled.remove(id);
+        }
+      }
+    }
+    processDefunctBundles(optionsAndBundles);
+
     for (OptionsAndBundles<SoyOptions, SoyBundle> c : u.changed) {
       for (SoyBundle b : c.bundles) {
-        processOne(b);
+        processOne(c.optionsAndInputs.options, b);
       }
     }
   }
 
-  protected void processOne(SoyBundle bundle)
-  throws MojoExecutionException {
+  protected void processOne(SoyOptions options, SoyBundle bundle)
+  throws IOException, MojoExecutionException {
     final File classJarOutFile = bundle.outputJar;
     final File srcJarOutFile = getSrcJarPath(bundle);
 
-    SoyFileSet sfs = bundle.sfsSupplier.getSoyFileSet(context);
+    String id = options.getId();
+    CompiledJar previous = compiled.get(id);
+    Optional<Hash> descriptorHash = SoyDependencies.hashDescriptors(context);
 
-    // Compile To Jar
-    final FileWriteMode[] writeModes = new FileWriteMode[0];
-    ByteSink classJarOut = Files.asByteSink(classJarOutFile, writeModes);
-    Optional<ByteSink> srcJarOut = Optional.of(
-        Files.asByteSink(srcJarOutFile, writeModes));
+    ImmutableMap.Builder<File, Metadata<SoyFileInfo>> filesBuilder =
+        ImmutableMap.builder();
+    for (Map.Entry<Source, Metadata<SoyFileInfo>> e
+         : bundle.fileInfo.entrySet()) {
+      filesBuilder.put(e.getKey().canonicalPath, e.getValue());
+    }
+    ImmutableMap<File, Metadata<SoyFileInfo>> files = filesBuilder.build();
+
+    // jbcsrc compiles all templates together, so if any source is affected,
+    // we recompile all of them.  Classes whose bytes don't change are not
+    // rewritten below.
+    // The template index is written when compiling, so recompile when the
+    // dependency on the runtime module was added or removed.
+    if (context.buildContext.isIncremental() && previous != null
+        && previous.options.equals(options)
+        && allExist(previous.outputs)
+        && (previous.outputs.containsAll(templateIndexFiles())
+            == dependsOnRuntimeModule())
+        && bundle.sfsSupplier.compiledSources(
+            Optional.of(SoyDependencies.sourcesToRecompile(
+                bundle.fileInfo, previous.files,
+                !previous.descriptorHash.equals(descriptorHash))))
+           .isEmpty()) {
+      context.log.debug("soy skipping java compile for " + id);
+      bundle.sfsSupplier.cancelJavaCompile();
+      compiled.put(id, new CompiledJar(
+          options, files, descriptorHash, previous.outputs));
+      this.bundleToOutputs.put(bundle, previous.outputs);
+      return;
+    }
+
+    // Compile To Jar.
+    // SoyToJs usually started this in the background.
+    SoyFileSetSupplier.JavaBytecode bytecode;
     try {
       // TODO: relay errors and warnings via build context.
-      SoyToJbcSrcCompiler.compile(sfs, classJarOut, srcJarOut);
-    } catch (IOException ex) {
+      bytecode = bundle.sfsSupplier.getJavaBytecode(context).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
       throw new MojoExecutionException(
-          "Failed to write compiled Soy output to a JAR", ex);
+          "Interrupted compiling Soy to Java bytecode", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      Throwables.propagateIfPossible(cause);
+      throw new MojoExecutionException(
+          "Failed to write compiled Soy output to a JAR", cause);
     }
 
     ImmutableList.Builder<File> outputsThisBundleBuilder =
         ImmutableList.builder();
-    outputsThisBundleBuilder.add(classJarOutFile).add(srcJarOutFile);
+    // Binary names of compiled classes.
+    Set<String> classNames = Sets.newHashSet();
 
-    // Unpack JAR into classes directory.
+    // The JARs are only written on request since the classes directory
+    // is what the rest of the build uses.
+    if (options.shouldWriteJars()) {
+      try {
+        promoteOutput(bytecode.classJar, classJarOutFile);
+        promoteOutput(bytecode.srcJar.get(), srcJarOutFile);
+      } catch (IOException ex) {
+        throw new MojoExecutionException(
+            "Failed to write compiled Soy output to a JAR", ex);
+      }
+      outputsThisBundleBuilder.add(classJarOutFile).add(srcJarOutFile);
+    }
+
+    // Write classes straight to the classes directory, leaving alone those
+    // whose bytes did not change so that downstream steps don't see them as
+    // changed.
     File projectBuildOutputDirectory = context.projectBuildOutputDirectory;
     try {
-      try (InputStream in = new FileInputStream(classJarOutFile)) {
+      try (InputStream in = new ByteArrayInputStream(bytecode.classJar)) {
         try (ZipInputStream zipIn = new ZipInputStream(in)) {
           for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null;
               zipIn.closeEntry()) {
@@ -91,28 +193,210 @@ final class SoyToJava extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
             String name = Files.simplifyPath(
                 entry.getName().replace('/', File.separatorChar));
             if (name.startsWith("META-INF")) { continue; }
-            context.log.debug("Unpacking " + name + " from soy generated jar");
+            if (name.endsWith(".class")) {
+              classNames.add(
+                  entry.getName().substring(0, entry.getName().length() - 6)
+                  .replace('/', '.'));
+            }
             File outputFile = new File(FilenameUtils.concat(
                 projectBuildOutputDirectory.getPath(), name));
-            Files.createParentDirs(outputFile);
             outputsThisBundleBuilder.add(outputFile);
-            try (FileOutputStream dest = new FileOutputStream(outputFile)) {
-              ByteStreams.copy(zipIn, dest);
+            if (promoteOutput(ByteStreams.toByteArray(zipIn), outputFile)) {
+              context.log.debug("Wrote soy generated " + name);
             }
           }
         }
       }
     } catch (IOException ex) {
       throw new MojoExecutionException(
-          "Failed to unpack " + classJarOutFile
-          + " to " + projectBuildOutputDirectory,
+          "Failed to write Soy generated classes to "
+          + projectBuildOutputDirectory,
           ex);
     }
 
+    if (dependsOnRuntimeModule()) {
+      outputsThisBundleBuilder.addAll(
+          writeTemplateIndex(bundle, classNames));
+    }
+
     ImmutableList<File> outputsThisBundle = outputsThisBundleBuilder.build();
+
+    // Delete classes for templates that no longer exist.
+    if (previous != null) {
+      Set<File> extant = ImmutableSet.copyOf(outputsThisBundle);
+      for (File output : previous.outputs) {
+        if (!extant.contains(output)) {
+          deleteIfExists(output);
+        }
+      }
+    }
+
+    compiled.put(id, new CompiledJar(
+        options, files, descriptorHash, outputsThisBundle));
     this.bundleToOutputs.put(bundle, outputsThisBundle);
-    // TODO: We could hash before compiling to filter this down.
-    this.changedFiles.addAll(outputsThisBundle);
+  }
+
+  /**
+   * Writes content to f unless f already has that content.
+   *
+   * @return true if f changed.
+   */
+  private boolean promoteOutput(byte[] content, File f) throws IOException {
+    if (promoter.promote(content, f)) {
+      this.changedFiles.add(f);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean dependsOnRuntimeModule() {
+    for (Artifact a : context.artifacts) {
+      if (RUNTIME_MODULE_GROUP_ID.equals(a.getGroupId())
+          && RUNTIME_MODULE_ARTIFACT_ID.equals(a.getArtifactId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Generates a class that maps template names to compiled factory classes
+   * and registers it as a service so the runtime can find templates without
+   * searching the class path.
+   * <p>
+   * Nothing reads the index unless the application opts in:
+   * {@code ClosureModule} does not bind it, and {@code SoySauce} resolves
+   * templates by name whether or not it was loaded.  Installing
+   * {@code PrecompiledTemplatesModule} loads the listed classes when the
+   * injector is created, which only warms up the class loader.
+   *
+   * @return the generated source file and service registration.
+   */
+  private ImmutableList<File> writeTemplateIndex(
+      SoyBundle bundle, Set<String> classNames)
+  throws MojoExecutionException {
+    // We know template names and jbcsrc knows how to derive class names from
+    // them, so match them up by suffix instead of assuming a naming scheme.
+    // All template classes share a package prefix, so when templates a.b and
+    // x.a.b both exist, the shorter class name is the one for a.b.
+    Map<String, String> classNameBySuffix = Maps.newHashMap();
+    for (String className : classNames) {
+      if (className.indexOf('$') >= 0) { continue; }
+      for (int dot = className.indexOf('.'); dot >= 0;
+           dot = className.indexOf('.', dot + 1)) {
+        String suffix = className.substring(dot + 1);
+        String other = classNameBySuffix.get(suffix);
+        if (other == null || className.length() < other.length()) {
+          classNameBySuffix.put(suffix, className);
+        }
+      }
+    }
+    Map<String, String> factoryClassNames = Maps.newTreeMap();
+    for (Metadata<SoyFileInfo> md : bundle.fileInfo.values()) {
+      for (String templateName : md.metadata.templates) {
+        String templateClassName = classNameBySuffix.get(templateName);
+        if (templateClassName != null
+            && classNames.contains(templateClassName + "$Factory")) {
+          factoryClassNames.put(
+              templateName, templateClassName + "$Factory");
+        }
+      }
+    }
+
+    String qualifiedName = templateIndexClassName();
+
+    JavaWriter jw = new JavaWriter();
+    jw.appendCode("// Generated by ").appendCode(getClass().getName()).nl();
+    if (!genJavaPackageName.isEmpty()) {
+      jw.appendCode("package ").appendCode(genJavaPackageName)
+          .appendCode(";\n");
+      jw.nl();
+    }
+    jw.appendCode("import ").appendCode(TEMPLATE_INDEX_INTERFACE)
+        .appendCode(";\n");
+    jw.appendCode("import ").appendCode(ImmutableMap.class.getName())
+        .appendCode(";\n");
+    jw.appendCode("import ").appendCode(Generated.class.getName())
+        .appendCode(";\n");
+    jw.nl();
+    jw.appendCode("/**\n");
+    jw.appendCode(" * Compiled template factory classes by template name.\n");
+    jw.appendCode(
+        " * Only read when PrecompiledTemplatesModule is installed.\n");
+    jw.appendCode(" */\n");
+    jw.appendCode("@").appendCode(Generated.class.getSimpleName())
+        .appendCode("(value=").appendStringLiteral(getClass().getName())
+        .appendCode(")\n");
+    jw.appendCode("public final class ").appendCode(TEMPLATE_INDEX_CLASS_NAME)
+        .appendCode(" implements ")
+        .appendCode(
+            TEMPLATE_INDEX_INTERFACE.substring(
+                TEMPLATE_INDEX_INTERFACE.lastIndexOf('.') + 1))
+        .appendCode(" {\n");
+    jw.appendCode("private static final ImmutableMap<String, String>")
+        .appendCode(" FACTORY_CLASS_NAMES =\n");
+    jw.appendCode("    ImmutableMap.<String, String>builder()\n");
+    for (Map.Entry<String, String> e : factoryClassNames.entrySet()) {
+      jw.appendCode("    .put(").appendStringLiteral(e.getKey())
+          .appendCode(", ").appendStringLiteral(e.getValue())
+          .appendCode(")\n");
+    }
+    jw.appendCode("    .build();\n");
+    jw.nl();
+    jw.appendCode("@Override\n");
+    jw.appendCode("public ImmutableMap<String, String>")
+        .appendCode(" getFactoryClassNames() {\n");
+    jw.appendCode("return FACTORY_CLASS_NAMES;\n");
+    jw.appendCode("}\n");
+    jw.appendCode("}\n");
+
+    ImmutableList<File> indexFiles = templateIndexFiles();
+    File javaFile = indexFiles.get(0);
+    File serviceFile = indexFiles.get(1);
+
+    try {
+      promoteOutput(jw.toJava().getBytes(Charsets.UTF_8), javaFile);
+      promoteOutput(
+          (qualifiedName + "\n").getBytes(Charsets.UTF_8), serviceFile);
+    } catch (IOException ex) {
+      throw new MojoExecutionException(
+          "Failed to write Soy template index " + javaFile, ex);
+    }
+    return indexFiles;
+  }
+
+  private String templateIndexClassName() {
+    return genJavaPackageName.isEmpty()
+        ? TEMPLATE_INDEX_CLASS_NAME
+        : genJavaPackageName + "." + TEMPLATE_INDEX_CLASS_NAME;
+  }
+
+  /**
+   * The generated source file for the template index and its service
+   * registration.
+   */
+  private ImmutableList<File> templateIndexFiles() {
+    File javaFile = context.genfilesDirs.javaGenfiles;
+    for (String part : templateIndexClassName().split("[.]")) {
+      javaFile = new File(javaFile, part);
+    }
+    javaFile = new File(javaFile.getPath() + ".java");
+
+    File serviceFile = new File(FilenameUtils.concat(
+        context.projectBuildOutputDirectory.getPath(),
+        "META-INF" + File.separator + "services" + File.separator
+        + TEMPLATE_INDEX_INTERFACE));
+
+    return ImmutableList.of(javaFile, serviceFile);
+  }
+
+  private static boolean allExist(Iterable<? extends File> files) {
+    for (File f : files) {
+      if (!f.exists()) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -120,18 +404,49 @@ final class SoyToJava extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
     return new SV(this);
   }
 
+  /** What was generated for a set of options. */
+  static final class CompiledJar implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final SoyOptions options;
+    /** Metadata for all sources by canonical path when compiled. */
+    final ImmutableMap<File, Metadata<SoyFileInfo>> files;
+    /** Hash of the proto descriptors that types were resolved against. */
+    final Optional<Hash> descriptorHash;
+    /** The JARs and unpacked class files. */
+    final ImmutableList<File> outputs;
+
+    CompiledJar(
+        SoyOptions options, ImmutableMap<File, Metadata<SoyFileInfo>> files,
+        Optional<Hash> descriptorHash, ImmutableList<File> outputs) {
+      this.options = options;
+      this.files = files;
+      this.descriptorHash = descriptorHash;
+      this.outputs = outputs;
+    }
+  }
+
+
   static final class SV
   extends CompilePlanGraphNode.CompileStateVector<SoyOptions, SoyBundle> {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
+
+    final ImmutableMap<String, CompiledJar> compiled;
+    final String genJavaPackageName;
 
+    @SuppressWarnings("synthetic-access")
     protected SV(SoyToJava node) {
       super(node);
+      this.compiled = ImmutableMap.copyOf(node.compiled);
+      this.genJavaPackageName = node.genJavaPackageName;
     }
 
+    @SuppressWarnings("synthetic-access")
     @Override
     public PlanGraphNode<?> reconstitute(PlanContext context, JoinNodes jn) {
-      SoyToJava node = apply(new SoyToJava(context));
+      SoyToJava node = apply(new SoyToJava(context, genJavaPackageName));
+      node.compiled.putAll(compiled);
       BuildSoyFileSet.initSfss(node.optionsAndBundles, context);
       return node;
     }
@@ -2,25 +2,45 @@ package com.google.closure.plugin.soy;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.plan.BundlingPlanGraphNode.OptionsAndBundles;
 import com.google.closure.plugin.plan.CompilePlanGraphNode;
+import com.google.closure.plugin.plan.Hash;
 import com.google.closure.plugin.plan.JoinNodes;
+import com.google.closure.plugin.plan.Metadata;
 import com.google.closure.plugin.plan.PlanContext;
 import com.google.closure.plugin.plan.PlanGraphNode;
 import com.google.closure.plugin.plan.Update;
-import com.google.common.io.Files;
 import com.google.template.soy.SoyFileSet;
 import com.google.template.soy.jssrc.SoyJsSrcOptions;
 import com.google.template.soy.msgs.SoyMsgBundle;
+import com.google.template.soy.msgs.SoyMsgBundleHandler;
+import com.google.template.soy.msgs.SoyMsgException;
+import com.google.template.soy.xliffmsgplugin.XliffMsgPlugin;
 
 final class SoyToJs extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
 
@@ -28,14 +48,39 @@ final class SoyToJs extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
     super(context);
   }
 
+  /**
+   * What was last compiled for each set of options by options id so that
+   * we only recompile sources affected by a change.
+   */
+  private final Map<String, CompiledSoy> compiled = Maps.newLinkedHashMap();
+
   @Override
   protected void process() throws IOException, MojoExecutionException {
-    this.processDefunctBundles(optionsAndBundles);
-
     Update<OptionsAndBundles<SoyOptions, SoyBundle>> u =
         optionsAndBundles.get();
 
     this.changedFiles.clear();
+
+    // Changing a source makes the old bundle defunct.
+    // Leave its outputs to processOne when a bundle with the same options
+    // replaces it so that we need not regenerate outputs of unaffected
+    // sources.
+    Set<String> recompiled = Sets.newHashSet();
+    for (OptionsAndBundles<SoyOptions, SoyBundle> c : u.changed) {
+      recompiled.add(c.optionsAndInputs.options.getId());
+    }
+    for (OptionsAndBundles<SoyOptions, SoyBundle> d : u.defunct) {
+      String id = d.optionsAndInputs.options.getId();
+      for (SoyBundle b : d.bundles) {
+        if (recompiled.contains(id)) {
+          this.bundleToOutputs.remove(b);
+        } else {
+          this.compiled.remove(id);
+        }
+      }
+    }
+    this.processDefunctBundles(optionsAndBundles);
+
     for (OptionsAndBundles<SoyOptions, SoyBundle> c : u.changed) {
       for (SoyBundle b : c.bundles) {
         processOne(c.optionsAndInputs.options, b);
@@ -45,58 +90,383 @@ final class SoyToJs extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
 
   protected void processOne(SoyOptions options, SoyBundle bundle)
   throws IOException, MojoExecutionException {
-    SoyFileSet sfs = bundle.sfsSupplier.getSoyFileSet(context);
+    boolean ok = false;
+    try {
+      compileOne(options, bundle);
+      ok = true;
+    } finally {
+      if (!ok) {
+        // The build fails, so nothing will wait on the Java bytecode that
+        // compileOne may have started compiling.
+        bundle.sfsSupplier.cancelJavaCompile();
+      }
+    }
+  }
 
-    ImmutableList<Js> allJsSrc = ImmutableList.copyOf(options.getJs());
+  private void compileOne(SoyOptions options, SoyBundle bundle)
+  throws IOException, MojoExecutionException {
+    String id = options.getId();
+    CompiledSoy previous = compiled.get(id);
+    CompiledSoy reusable = null;
+    if (context.buildContext.isIncremental() && previous != null
+        && previous.options.equals(options)
+        && previous.jsOutDir.equals(bundle.jsOutDir)) {
+      reusable = previous;
+    }
 
-    ImmutableList<Source> sources = bundle.inputs;
+    Optional<Hash> descriptorHash = SoyDependencies.hashDescriptors(context);
 
-    ImmutableList.Builder<File> outputsThisBundleBuilder =
-        ImmutableList.builder();
+    ImmutableSet<Source> dirty;
+    if (reusable == null) {
+      dirty = ImmutableSet.copyOf(bundle.inputs);
+    } else {
+      dirty = SoyDependencies.sourcesToRecompile(
+          bundle.fileInfo, reusable.files,
+          !reusable.descriptorHash.equals(descriptorHash));
+    }
 
-    for (Js js : allJsSrc) {
-      SoyJsSrcOptions jsSrcOptions = js.toSoyJsSrcOptions(context.log);
-      SoyMsgBundle msgBundle = null;
+    // Figure out which translations changed.
+    Map<File, Hash> translationHashes = Maps.newLinkedHashMap();
+    for (File translation : options.getTranslations()) {
+      try {
+        translationHashes.put(translation, Hash.hashFile(translation));
+      } catch (IOException ex) {
+        throw new MojoExecutionException(
+            "Failed to read translations from " + translation, ex);
+      }
+    }
 
-      // TODO: relay errors and warnings via build context.
-      // TODO: can we get the source map for an input?
-      List<String> jsFileContent = sfs.compileToJsSrc(jsSrcOptions, msgBundle);
-      java.nio.file.Files.createDirectories(bundle.jsOutDir.toPath());
+    Set<File> previousOutputs = Sets.newHashSet();
+    if (reusable != null) {
+      for (ImmutableList<File> outputs : reusable.outputsByInput.values()) {
+        previousOutputs.addAll(outputs);
+      }
+    }
 
-      int nOutputs = jsFileContent.size();
-      Preconditions.checkState(nOutputs == sources.size());
-      for (int i = 0; i < nOutputs; ++i) {
-        File inputRelPath = sources.get(i).relativePath;
+    ImmutableList<Source> allCompiledSources =
+        bundle.sfsSupplier.compiledSources(
+            Optional.<ImmutableSet<Source>>absent());
 
-        // Disambiguate with js.id if not null (constructed above).
-        String suffix = ".js";
-        if (!js.wasIdImplied()) {
-          suffix = "_" + js.getId() + suffix;
+    // Each JS variant is compiled once without messages and once per
+    // translation.
+    List<Variant> variants = Lists.newArrayList();
+    for (Js js : options.getJs()) {
+      variants.add(new Variant(js, Optional.<File>absent(), null, true, dirty));
+      if (js.shouldGenerateGoogMsgDefs != null
+          && js.shouldGenerateGoogMsgDefs.booleanValue()) {
+        // Messages are looked up at runtime via goog.getMsg so a message
+        // bundle would not change the output.
+        continue;
+      }
+      for (Map.Entry<File, Hash> e : translationHashes.entrySet()) {
+        File translation = e.getKey();
+        CompiledTranslation old = reusable != null
+            ? reusable.translations.get(translation) : null;
+        if (old != null && old.hash.equals(e.getValue())) {
+          variants.add(new Variant(
+              js, Optional.of(translation), old.locale, true, dirty));
+        } else {
+          // We don't know the locale until we load the bundle.
+          variants.add(new Variant(
+              js, Optional.of(translation), null, false,
+              ImmutableSet.copyOf(bundle.inputs)));
         }
+      }
+    }
 
-        String compiledJsContent = jsFileContent.get(i);
-        File outputRelPath = new File(
-            inputRelPath.getParentFile(),
-            FilenameUtils.getBaseName(inputRelPath.getName()) + suffix);
-        File outputPath = new File(FilenameUtils.concat(
-            bundle.jsOutDir.getPath(), outputRelPath.getPath()));
-        Files.createParentDirs(outputPath);
+    // Regenerate outputs that are new or were deleted behind our back.
+    for (Variant v : variants) {
+      if (v.localeKnown) {
+        Set<Source> toCompile = Sets.newLinkedHashSet(v.toCompile);
+        for (Source s : allCompiledSources) {
+          File output = v.outputFor(bundle, s);
+          if (!previousOutputs.contains(output) || !output.exists()) {
+            toCompile.add(s);
+          }
+        }
+        v.toCompile = ImmutableSet.copyOf(toCompile);
+      }
+      v.compiledSources = bundle.sfsSupplier.compiledSources(
+          Optional.of(v.toCompile));
+    }
+
+    if (!bundle.sfsSupplier.compiledSources(Optional.of(dirty)).isEmpty()) {
+      // Let the Java backend compile while we compile JS.
+      bundle.sfsSupplier.startJavaCompile(context);
+    }
+
+    compileVariants(bundle, variants);
+
+    java.nio.file.Files.createDirectories(bundle.jsOutDir.toPath());
+    int nCompiled = 0;
+    for (Variant v : variants) {
+      List<String> jsFileContent = v.jsFileContent;
+      if (jsFileContent == null) { continue; }
+      int nOutputs = jsFileContent.size();
+      Preconditions.checkState(nOutputs == v.compiledSources.size());
+      nCompiled += nOutputs;
+      for (int i = 0; i < nOutputs; ++i) {
+        Source source = v.compiledSources.get(i);
+        File outputPath = v.outputFor(bundle, source);
         try {
-          Files.write(compiledJsContent, outputPath, Charsets.UTF_8);
+          if (promoter.promote(
+                  jsFileContent.get(i).getBytes(Charsets.UTF_8),
+                  outputPath)) {
+            this.changedFiles.add(outputPath);
+          }
         } catch (IOException ex) {
           throw new MojoExecutionException(
-              "Failed to write soy templates compiled from " + inputRelPath
-              + " to " + outputPath,
+              "Failed to write soy templates compiled from "
+              + source.relativePath + " to " + outputPath,
               ex);
         }
-        outputsThisBundleBuilder.add(outputPath);
       }
     }
+    context.log.debug(
+        "soy compiled " + nCompiled + " JS outputs for " + id);
 
+    Map<File, ImmutableList<File>> outputsByInput = Maps.newLinkedHashMap();
+    ImmutableList.Builder<File> outputsThisBundleBuilder =
+        ImmutableList.builder();
+    for (Source s : allCompiledSources) {
+      ImmutableList.Builder<File> outputs = ImmutableList.builder();
+      for (Variant v : variants) {
+        outputs.add(v.outputFor(bundle, s));
+      }
+      ImmutableList<File> outputsForSource = outputs.build();
+      outputsByInput.put(s.canonicalPath, outputsForSource);
+      outputsThisBundleBuilder.addAll(outputsForSource);
+    }
     ImmutableList<File> outputsThisBundle = outputsThisBundleBuilder.build();
+
+    // Delete outputs of sources that were removed or are no longer compiled.
+    if (previous != null) {
+      Set<File> extant = ImmutableSet.copyOf(outputsThisBundle);
+      for (ImmutableList<File> outputs : previous.outputsByInput.values()) {
+        for (File output : outputs) {
+          if (!extant.contains(output)) {
+            deleteIfExists(output);
+          }
+        }
+      }
+    }
+
+    ImmutableMap.Builder<File, Metadata<SoyFileInfo>> files =
+        ImmutableMap.builder();
+    for (Map.Entry<Source, Metadata<SoyFileInfo>> e
+         : bundle.fileInfo.entrySet()) {
+      files.put(e.getKey().canonicalPath, e.getValue());
+    }
+    Map<File, CompiledTranslation> translations = Maps.newLinkedHashMap();
+    for (Variant v : variants) {
+      // The locale is unknown if there was nothing to compile.
+      if (v.translation.isPresent() && v.localeKnown) {
+        File translation = v.translation.get();
+        translations.put(translation, new CompiledTranslation(
+            translationHashes.get(translation), v.locale));
+      }
+    }
+    compiled.put(id, new CompiledSoy(
+        options, bundle.jsOutDir, files.build(), descriptorHash,
+        ImmutableMap.copyOf(translations),
+        ImmutableMap.copyOf(outputsByInput)));
+
     this.bundleToOutputs.put(bundle, outputsThisBundle);
-    // TODO: We could hash before compiling to filter this down.
-    this.changedFiles.addAll(outputsThisBundle);
+  }
+
+  /**
+   * @param locale null for JS compiled without translations.
+   */
+  private static File outputFor(
+      SoyBundle bundle, Source source, Js js, String locale) {
+    File inputRelPath = source.relativePath;
+
+    // Disambiguate with js.id if not null (constructed above).
+    StringBuilder suffix = new StringBuilder();
+    if (!js.wasIdImplied()) {
+      suffix.append('_').append(js.getId());
+    }
+    if (locale != null) {
+      suffix.append('_').append(
+          locale.replace('-', '_').toLowerCase(Locale.ROOT));
+    }
+    suffix.append(".js");
+
+    File outputRelPath = new File(
+        inputRelPath.getParentFile(),
+        FilenameUtils.getBaseName(inputRelPath.getName()) + suffix);
+    return new File(FilenameUtils.concat(
+        bundle.jsOutDir.getPath(), outputRelPath.getPath()));
+  }
+
+  /**
+   * Compiles each variant that has sources to compile concurrently, loading
+   * each translation at most once, and stores the generated JS in
+   * {@link Variant#jsFileContent}.
+   */
+  private void compileVariants(SoyBundle bundle, List<Variant> variants)
+  throws MojoExecutionException {
+    List<Variant> toCompile = Lists.newArrayList();
+    Set<File> translationsNeeded = Sets.newLinkedHashSet();
+    for (Variant v : variants) {
+      if (!v.compiledSources.isEmpty()) {
+        toCompile.add(v);
+        if (v.translation.isPresent()) {
+          translationsNeeded.add(v.translation.get());
+        }
+      }
+    }
+    int nTasks = toCompile.size() + translationsNeeded.size();
+    if (nTasks == 0) {
+      return;
+    }
+    if (nTasks == 1) {
+      Variant v = toCompile.get(0);
+      SoyFileSet sfs = bundle.sfsSupplier.getSoyFileSet(context, v.toCompile);
+      v.jsFileContent = compileVariant(sfs, v.js, null);
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(nTasks, Runtime.getRuntime().availableProcessors()));
+    try {
+      // Submit loads first so that no compile waits on a load that is
+      // queued behind it.
+      Map<File, Future<SoyMsgBundle>> msgBundles = Maps.newLinkedHashMap();
+      for (final File translation : translationsNeeded) {
+        msgBundles.put(translation, executor.submit(
+            new Callable<SoyMsgBundle>() {
+              @Override
+              public SoyMsgBundle call() throws IOException {
+                return loadTranslation(translation);
+              }
+            }));
+      }
+
+      // Each variant compiles its own file set since compiling is not
+      // thread-safe.
+      List<Future<List<String>>> results = Lists.newArrayList();
+      for (final Variant v : toCompile) {
+        final SoyFileSet sfs = bundle.sfsSupplier.newSoyFileSet(
+            context, v.toCompile);
+        final Future<SoyMsgBundle> msgBundle = v.translation.isPresent()
+            ? msgBundles.get(v.translation.get())
+            : null;
+        results.add(executor.submit(new Callable<List<String>>() {
+          @SuppressWarnings("synthetic-access")
+          @Override
+          public List<String> call()
+          throws InterruptedException, ExecutionException {
+            return compileVariant(
+                sfs, v.js, msgBundle != null ? msgBundle.get() : null);
+          }
+        }));
+      }
+
+      for (Map.Entry<File, Future<SoyMsgBundle>> e : msgBundles.entrySet()) {
+        File translation = e.getKey();
+        String locale = getUnchecked(
+            e.getValue(), "load translations from " + translation)
+            .getLocaleString();
+        if (locale == null) {
+          throw new MojoExecutionException(
+              "Translations in " + translation
+              + " do not specify a target language");
+        }
+        for (Variant v : toCompile) {
+          if (v.translation.equals(Optional.of(translation))) {
+            v.locale = locale;
+            v.localeKnown = true;
+          }
+        }
+      }
+      for (int i = 0, n = toCompile.size(); i < n; ++i) {
+        Variant v = toCompile.get(i);
+        v.jsFileContent = getUnchecked(
+            results.get(i), "compile soy to JS " + v);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> T getUnchecked(Future<T> f, String description)
+  throws MojoExecutionException {
+    try {
+      return f.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted to " + description, ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      // A compile waiting on a failed load fails the same way.
+      while (cause instanceof ExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      Throwables.propagateIfPossible(cause);
+      throw new MojoExecutionException("Failed to " + description, cause);
+    }
+  }
+
+  private static SoyMsgBundle loadTranslation(File translation)
+  throws IOException {
+    try {
+      return new SoyMsgBundleHandler(new XliffMsgPlugin())
+          .createFromFile(translation);
+    } catch (SoyMsgException ex) {
+      throw new IOException(
+          "Malformed translations in " + translation, ex);
+    }
+  }
+
+  private List<String> compileVariant(
+      SoyFileSet sfs, Js js, SoyMsgBundle msgBundle) {
+    SoyJsSrcOptions jsSrcOptions = js.toSoyJsSrcOptions(context.log);
+
+    // TODO: relay errors and warnings via build context.
+    // TODO: can we get the source map for an input?
+    return sfs.compileToJsSrc(jsSrcOptions, msgBundle);
+  }
+
+  /** A JS backend configuration and optionally a translation to apply. */
+  private static final class Variant {
+    final Js js;
+    final Optional<File> translation;
+    /** The locale of the translation or null if untranslated or unknown. */
+    String locale;
+    /**
+     * False until the translation is loaded if its locale was not known from
+     * an earlier compile.
+     */
+    boolean localeKnown;
+    /** The sources whose output needs to be regenerated. */
+    ImmutableSet<Source> toCompile;
+    /** The sources in toCompile that generate code in output order. */
+    ImmutableList<Source> compiledSources;
+    /** JS for compiledSources or null if not compiled. */
+    List<String> jsFileContent;
+
+    Variant(
+        Js js, Optional<File> translation, String locale, boolean localeKnown,
+        ImmutableSet<Source> toCompile) {
+      this.js = js;
+      this.translation = translation;
+      this.locale = locale;
+      this.localeKnown = localeKnown;
+      this.toCompile = toCompile;
+    }
+
+    /** The file that JS compiled from source for this variant goes in. */
+    File outputFor(SoyBundle bundle, Source source) {
+      Preconditions.checkState(localeKnown, "%s", this);
+      return SoyToJs.outputFor(bundle, source, js, locale);
+    }
+
+    @Override
+    public String toString() {
+      return js.getId()
+          + (translation.isPresent() ? " with " + translation.get() : "");
+    }
   }
 
   @Override
@@ -104,18 +474,72 @@ final class SoyToJs extends CompilePlanGraphNode<SoyOptions, SoyBundle> {
     return new SV(this);
   }
 
+
+  /** What was generated for a set of options. */
+  static final class CompiledSoy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final SoyOptions options;
+    final File jsOutDir;
+    /** Metadata for all sources by canonical path when compiled. */
+    final ImmutableMap<File, Metadata<SoyFileInfo>> files;
+    /** Hash of the proto descriptors that types were resolved against. */
+    final Optional<Hash> descriptorHash;
+    /** The translations that were applied. */
+    final ImmutableMap<File, CompiledTranslation> translations;
+    /** Generated files by the canonical path of the input. */
+    final ImmutableMap<File, ImmutableList<File>> outputsByInput;
+
+    CompiledSoy(
+        SoyOptions options, File jsOutDir,
+        ImmutableMap<File, Metadata<SoyFileInfo>> files,
+        Optional<Hash> descriptorHash,
+        ImmutableMap<File, CompiledTranslation> translations,
+        ImmutableMap<File, ImmutableList<File>> outputsByInput) {
+      this.options = options;
+      this.jsOutDir = jsOutDir;
+      this.files = files;
+      this.descriptorHash = descriptorHash;
+      this.translations = translations;
+      this.outputsByInput = outputsByInput;
+    }
+  }
+
+
+  /** A translation file that was applied. */
+  static final class CompiledTranslation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Hash of the translation file. */
+    final Hash hash;
+    /** The locale that the file provides messages for. */
+    final String locale;
+
+    CompiledTranslation(Hash hash, String locale) {
+      this.hash = hash;
+      this.locale = locale;
+    }
+  }
+
+
   static final class SV
   extends CompilePlanGraphNode.CompileStateVector<SoyOptions, SoyBundle> {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
+
+    final ImmutableMap<String, CompiledSoy> compiled;
 
+    @SuppressWarnings("synthetic-access")
     protected SV(SoyToJs node) {
       super(node);
+      this.compiled = ImmutableMap.copyOf(node.compiled);
     }
 
+    @SuppressWarnings("synthetic-access")
     @Override
     public PlanGraphNode<?> reconstitute(PlanContext context, JoinNodes jn) {
       SoyToJs node = apply(new SoyToJs(context));
+      node.compiled.putAll(compiled);
       BuildSoyFileSet.initSfss(node.optionsAndBundles, context);
       return node;
     }
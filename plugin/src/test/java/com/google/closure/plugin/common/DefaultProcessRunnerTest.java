@@ -2,6 +2,7 @@ package com.google.closure.plugin.common;
 
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Test;
 
@@ -29,6 +30,24 @@ public final class DefaultProcessRunnerTest extends TestCase {
     assertEquals("Hello World", receiver.sb.toString());
   }
 
+  @Test
+  public static void testTimeout() throws Exception {
+    TestOutputReceiver receiver = new TestOutputReceiver();
+    Future<Integer> exitCode = DefaultProcessRunner.INSTANCE.run(
+        new TestLog(), "sleep",
+        // Not Windows compatible.
+        ImmutableList.of("/bin/sleep", "10"),
+        receiver);
+    try {
+      exitCode.get(100, TimeUnit.MILLISECONDS);
+      fail("sleep exited early");
+    } catch (TimeoutException ex) {
+      // Ok
+    } finally {
+      exitCode.cancel(true);
+    }
+  }
+
 
   static final class TestOutputReceiver
   implements ProcessRunner.OutputReceiver {
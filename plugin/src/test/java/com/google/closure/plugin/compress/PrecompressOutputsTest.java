@@ -0,0 +1,118 @@
+package com.google.closure.plugin.compress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.closure.module.ClosureModule;
+import com.google.closure.plugin.common.GenfilesDirs;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PrecompressOutputsTest extends TestCase {
+
+  @Test
+  public static void testCompressesChangedOutputs() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      File closureOut = new File(dir, "closure");
+      PlanContext context = new PlanContext(
+          null, null, null, new SystemStreamLog(), null,
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              new File(dir, "js"), new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, dir, closureOut, null);
+      PrecompressOutputs node = new PrecompressOutputs(
+          context, CompressPlanner.compressibleOutputsSpec(closureOut));
+
+      File css = new File(closureOut, "css/main.css");
+      File js = new File(closureOut, "js/main.js");
+      File txt = new File(closureOut, "notes.txt");
+      File renameMap = new File(
+          closureOut, ClosureModule.CSS_RENAMING_MAP_RESOURCE_PATH
+          .substring("/closure/".length()));
+      File criticalManifest = new File(
+          closureOut, ClosureModule.CRITICAL_CSS_MANIFEST_RESOURCE_PATH
+          .substring("/closure/".length()));
+      write(css, ".a{color:red}");
+      write(js, "alert(1)");
+      write(txt, "not compressible");
+      write(renameMap, "{}");
+      write(criticalManifest, "{}");
+
+      run(node);
+      assertEquals(
+          ImmutableSet.of(gz(css), gz(js)),
+          ImmutableSet.copyOf(node.changedOutputFiles()));
+      assertEquals(".a{color:red}", gunzip(gz(css)));
+      assertEquals("alert(1)", gunzip(gz(js)));
+      // Runtime-only and non-compressible outputs are left alone.
+      assertFalse(gz(txt).exists());
+      assertFalse(gz(renameMap).exists());
+      assertFalse(gz(criticalManifest).exists());
+
+      run(node);
+      assertEquals(
+          ImmutableList.of(), ImmutableList.copyOf(node.changedOutputFiles()));
+
+      write(css, ".a{color:blue}");
+      run(node);
+      assertEquals(
+          ImmutableList.of(gz(css)),
+          ImmutableList.copyOf(node.changedOutputFiles()));
+      assertEquals(".a{color:blue}", gunzip(gz(css)));
+
+      // A deleted sibling is rewritten.
+      assertTrue(gz(js).delete());
+      run(node);
+      assertEquals(
+          ImmutableList.of(gz(js)),
+          ImmutableList.copyOf(node.changedOutputFiles()));
+
+      // The sibling of a deleted output is deleted.
+      assertTrue(js.delete());
+      run(node);
+      assertEquals(
+          ImmutableList.of(gz(js)),
+          ImmutableList.copyOf(node.changedOutputFiles()));
+      assertFalse(gz(js).exists());
+      assertTrue(gz(css).exists());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void run(PrecompressOutputs node) throws Exception {
+    node.filterUpdates();
+    node.process();
+  }
+
+  private static File gz(File f) {
+    return PrecompressOutputs.gzipFileFor(f);
+  }
+
+  private static void write(File f, String content) throws IOException {
+    Files.createParentDirs(f);
+    Files.write(content, f, Charsets.UTF_8);
+  }
+
+  private static String gunzip(File f) throws IOException {
+    try (InputStream in = new GZIPInputStream(Files.asByteSource(f)
+             .openStream())) {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    }
+  }
+}
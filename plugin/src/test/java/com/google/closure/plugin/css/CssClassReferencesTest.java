@@ -0,0 +1,72 @@
+package com.google.closure.plugin.css;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class CssClassReferencesTest extends TestCase {
+
+  private static final ImmutableList<String> SOY_FILES = ImmutableList.of(
+      Joiner.on('\n').join(
+          "{namespace app.page}",
+          "{alias app.widgets}",
+          "",
+          "{template .aboveFold}",
+          "  <div class=\"{css page}\">{call widgets.header /}</div>",
+          "{/template}",
+          "",
+          "{template .belowFold}",
+          "  <div class=\"{css footer}\">{call .unused /}</div>",
+          "{/template}",
+          "",
+          "{template .unused}",
+          "  <div class=\"{css unused}\"></div>",
+          "{/template}"),
+      Joiner.on('\n').join(
+          "{namespace app.widgets}",
+          "",
+          "{template .header}",
+          "  <h1 class=\"{css header}\">{delcall app.logo /}</h1>",
+          "{/template}",
+          "",
+          "{deltemplate app.logo}",
+          "  <img class=\"{css logo}\">",
+          "{/deltemplate}",
+          "",
+          "{template .sidebar}",
+          "  <div class=\"{css sidebar}\"></div>",
+          "{/template}"));
+
+  @Test
+  public static void testCalledTemplatesAreCritical() {
+    CssClassReferences refs = CssClassReferences.fromTemplates(
+        SOY_FILES, ImmutableSet.of("app.page.aboveFold"));
+    assertFalse(refs.unbounded);
+    assertEquals(ImmutableSet.of("page", "header", "logo"), refs.names);
+  }
+
+  @Test
+  public static void testUncalledTemplatesAreNotCritical() {
+    CssClassReferences refs = CssClassReferences.fromTemplates(
+        SOY_FILES, ImmutableSet.of("app.page.belowFold"));
+    assertEquals(ImmutableSet.of("footer", "unused"), refs.names);
+    assertFalse(refs.isReferenced("header"));
+    assertFalse(refs.isReferenced("sidebar"));
+  }
+
+  @Test
+  public static void testCallCycles() {
+    CssClassReferences refs = CssClassReferences.fromTemplates(
+        ImmutableList.of(Joiner.on('\n').join(
+            "{namespace a}",
+            "{template .x}{css x}{call .y /}{/template}",
+            "{template .y}{css y}{call .x /}{/template}")),
+        ImmutableSet.of("a.y"));
+    assertEquals(ImmutableSet.of("y", "x"), refs.names);
+  }
+}
@@ -8,9 +8,11 @@ import com.google.closure.plugin.TestLog;
 import com.google.closure.plugin.common.Sources.Source;
 import com.google.closure.plugin.common.TypedFile;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.css.SourceCode;
 
 import junit.framework.TestCase;
 
@@ -84,4 +86,21 @@ public final class CssDepGraphTest extends TestCase {
             GET_REL_PATH));
   }
 
+  @Test
+  public static void testHeaderScan() {
+    Optional<ImmutableList<CssDepGraph.Dep>> deps = CssDepGraph.scanHeader(
+        new SourceCode(
+            "a.css",
+            "/* header\n */\n@provide 'a';\n@require \"b\";\n.a { color: red }"));
+    assertTrue(deps.isPresent());
+    assertEquals(
+        "[{PROVIDE a @ a.css:3}, {REQUIRE b @ a.css:4}]",
+        deps.get().toString());
+
+    // Dependency rules after other content need a full parse.
+    assertFalse(
+        CssDepGraph.scanHeader(new SourceCode(
+            "b.css", ".b { color: red }\n@require 'c';"))
+        .isPresent());
+  }
 }
@@ -0,0 +1,99 @@
+package com.google.closure.plugin.css;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class CssRulePrunerTest extends TestCase {
+
+  private static final Predicate<String> NOT_DEAD = new Predicate<String>() {
+    @Override
+    public boolean apply(String className) {
+      return !className.startsWith("dead");
+    }
+  };
+
+  private static String prune(String css) {
+    return new CssRulePruner(NOT_DEAD).prune(css);
+  }
+
+  @Test
+  public static void testSelectorsAndRules() {
+    assertEquals(".a{color:red}", prune(".a,.dead-x{color:red}.dead{x:y}"));
+    assertEquals("div{color:red}", prune("div{color:red}"));
+    assertEquals(".b{c:d}", prune(".b{c:d}.b .dead{e:f}"));
+  }
+
+  @Test
+  public static void testNestedRules() {
+    assertEquals(
+        "@media print{.c{a:b}}",
+        prune("@media screen{.dead{a:b}}@media print{.c{a:b}.dead{a:b}}"));
+    assertEquals(
+        "@font-face{src:url('a.dead')}",
+        prune("@font-face{src:url('a.dead')}"));
+  }
+
+  @Test
+  public static void testClassesThatDoNotConstrainMatches() {
+    assertEquals(".c:not(.dead){a:b}", prune(".c:not(.dead){a:b}"));
+    assertEquals(
+        "div[title='.dead']{q:r}", prune("div[title='.dead']{q:r}"));
+    assertEquals(
+        "/* .dead{ */.e{f:g}", prune("/* .dead{ */.e{f:g}"));
+  }
+
+  @Test
+  public static void testReferences() {
+    CssClassReferences refs = new CssClassReferences.Builder()
+        .addSoy("<div class=\"{css foo} {css('bar-baz')} {css $x, boo}\">")
+        .addJs("goog.getCssName('far'); goog.getCssName(base, 'faz');")
+        .build();
+    assertFalse(refs.unbounded);
+    assertTrue(refs.isReferenced("foo"));
+    assertTrue(refs.isReferenced("bar-baz"));
+    assertTrue(refs.isReferenced("far"));
+    assertTrue(refs.isReferenced("any-boo"));
+    assertTrue(refs.isReferenced("x-y-faz"));
+    assertFalse(refs.isReferenced("bar"));
+    assertFalse(refs.isReferenced("foo-bar"));
+
+    Predicate<String> afterRenaming = refs.isReferencedAfterRenaming(
+        ImmutableMap.of("foo", "a", "bar", "b", "baz", "c"));
+    assertTrue(afterRenaming.apply("a"));
+    assertTrue(afterRenaming.apply("b-c"));
+    assertFalse(afterRenaming.apply("b"));
+
+    assertTrue(
+        new CssClassReferences.Builder()
+        .addJs("goog.getCssName(x)")
+        .build()
+        .unbounded);
+  }
+
+  @Test
+  public static void testSplit() {
+    String[] parts = new CssRulePruner(NOT_DEAD).split(
+        "body{m:0}.a,.dead{b:c}@media print{.dead-x{d:e}}");
+    assertEquals("body{m:0}.a{b:c}", parts[0]);
+    assertEquals(".dead{b:c}@media print{.dead-x{d:e}}", parts[1]);
+  }
+
+  @Test
+  public static void testTemplateReferences() {
+    CssClassReferences refs = new CssClassReferences.Builder()
+        .addSoyTemplates(
+            "{namespace ns}\n"
+            + "{template .header}<b class=\"{css top}\"></b>{/template}\n"
+            + "{template .footer}<b class=\"{css bottom}\"></b>{/template}",
+            ImmutableSet.of("ns.header"))
+        .build();
+    assertTrue(refs.isReferenced("top"));
+    assertFalse(refs.isReferenced("bottom"));
+  }
+}
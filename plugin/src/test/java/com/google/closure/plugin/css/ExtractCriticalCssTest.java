@@ -0,0 +1,122 @@
+package com.google.closure.plugin.css;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.closure.plugin.common.FileExt;
+import com.google.closure.plugin.common.GenfilesDirs;
+import com.google.closure.plugin.common.SrcfilesDirs;
+import com.google.closure.plugin.common.StableCssSubstitutionMapProvider;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ExtractCriticalCssTest extends TestCase {
+
+  @Test
+  public static void testSplitsAndOnlyReportsChangedParts()
+  throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      File closureOut = new File(dir, "closure");
+      PlanContext context = new PlanContext(
+          null, null, null, new SystemStreamLog(),
+          new SrcfilesDirs(
+              dir, ImmutableList.<File>of(), ImmutableList.<File>of()),
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              new File(dir, "js"), new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, dir, closureOut,
+          new StableCssSubstitutionMapProvider(
+              new File(dir, "css-rename-map.json")));
+      write(
+          new File(dir, "src/main/soy/app.soy"),
+          Joiner.on('\n').join(
+              "{namespace app}",
+              "{template .top}",
+              "  <div class=\"{css top}\">{call .header /}</div>",
+              "{/template}",
+              "{template .header}",
+              "  <h1 class=\"{css header}\"></h1>",
+              "{/template}",
+              "{template .bottom}",
+              "  <div class=\"{css bottom}\"></div>",
+              "{/template}"));
+
+      File cssDir = context.closureOutputDirectoryForExt(FileExt.CSS);
+      File css = new File(cssDir, "main.css");
+      File critical = new File(cssDir, "main-critical.css");
+      File deferred = new File(cssDir, "main-deferred.css");
+      File manifest = new File(cssDir, ExtractCriticalCss.MANIFEST_BASENAME);
+      ImmutableMap<File, ImmutableSet<String>> criticalTemplates =
+          ImmutableMap.of(css, ImmutableSet.of("app.top"));
+
+      ExtractCriticalCss node = new ExtractCriticalCss(context);
+      write(css, ".top{a:b}.header{c:d}.bottom{e:f}");
+      node.extract(criticalTemplates, ImmutableSet.of(css));
+      assertEquals(".top{a:b}.header{c:d}", read(critical));
+      assertEquals(".bottom{e:f}", read(deferred));
+      assertEquals(
+          "{\"main.css\":{"
+          + "\"critical\":\"main-critical.css\","
+          + "\"deferred\":\"main-deferred.css\"}}",
+          read(manifest));
+      assertEquals(
+          ImmutableSet.of(critical, deferred, manifest),
+          ImmutableSet.copyOf(node.changedOutputFiles()));
+
+      // Recompiled to the same bytes.
+      write(css, ".top{a:b}.header{c:d}.bottom{e:f}");
+      node.extract(criticalTemplates, ImmutableSet.of(css));
+      assertEquals(
+          ImmutableList.of(), ImmutableList.copyOf(node.changedOutputFiles()));
+
+      // Only the deferred part changes.
+      write(css, ".top{a:b}.header{c:d}.bottom{e:g}");
+      node.extract(criticalTemplates, ImmutableSet.of(css));
+      assertEquals(".bottom{e:g}", read(deferred));
+      assertEquals(
+          ImmutableList.of(deferred),
+          ImmutableList.copyOf(node.changedOutputFiles()));
+
+      // Unchanged compiled CSS is not split again.
+      node.extract(criticalTemplates, ImmutableSet.<File>of());
+      assertEquals(
+          ImmutableList.of(), ImmutableList.copyOf(node.changedOutputFiles()));
+
+      // No longer split.
+      node.extract(
+          ImmutableMap.<File, ImmutableSet<String>>of(),
+          ImmutableSet.<File>of());
+      assertFalse(critical.exists());
+      assertFalse(deferred.exists());
+      assertEquals("{}", read(manifest));
+      assertEquals(
+          ImmutableSet.of(critical, deferred, manifest),
+          ImmutableSet.copyOf(node.changedOutputFiles()));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void write(File f, String content) throws IOException {
+    Files.createParentDirs(f);
+    Files.write(content, f, Charsets.UTF_8);
+  }
+
+  private static String read(File f) throws IOException {
+    return Files.toString(f, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,162 @@
+package com.google.closure.plugin.extract;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.closure.plugin.common.GenfilesDirs;
+import com.google.closure.plugin.common.SourceFileProperty;
+import com.google.closure.plugin.extract.ResolvedExtractsList
+    .ResolvedExtract;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ExtractFilesTest extends TestCase {
+
+  /** More archives than threads so plans overlap with applies. */
+  private static final int N_ARCHIVES =
+      3 * ExtractFiles.MAX_CONCURRENT_EXTRACTS;
+
+  @Test
+  public static void testOnlyChangedArchivesAreReread() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      File jsGenfiles = new File(dir, "js");
+      PlanContext context = new PlanContext(
+          null, null, null, new SystemStreamLog(), null,
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              jsGenfiles, new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, dir, dir, null);
+      ExtractFiles node = new ExtractFiles(context);
+
+      List<ResolvedExtract> extracts = Lists.newArrayList();
+      for (int i = 0; i < N_ARCHIVES; ++i) {
+        File archive = new File(dir, "a" + i + ".jar");
+        writeArchive(archive, ImmutableMap.of(
+            "src/main/js/a" + i + "/x.js", "x" + i,
+            "src/main/js/a" + i + "/y.js", "y" + i));
+        extracts.add(new ResolvedExtract(
+            "com.example", "a" + i, "1.0", ImmutableSet.of("js"),
+            ImmutableSet.<SourceFileProperty>of(), archive));
+      }
+
+      node.extract(extracts);
+      for (int i = 0; i < N_ARCHIVES; ++i) {
+        assertEquals("x" + i, read(new File(jsGenfiles, "a" + i + "/x.js")));
+        assertEquals("y" + i, read(new File(jsGenfiles, "a" + i + "/y.js")));
+      }
+
+      // Change every other archive.  Clobber the rest with garbage of the
+      // same size and modification time, so that any attempt to reread an
+      // archive that is up-to-date fails.
+      for (int i = 0; i < N_ARCHIVES; ++i) {
+        File archive = extracts.get(i).archive;
+        if (i % 2 == 0) {
+          writeArchive(archive, ImmutableMap.of(
+              "src/main/js/a" + i + "/x.js", "x" + i + "'",
+              "src/main/js/a" + i + "/z.js", "z" + i));
+        } else {
+          long lastModified = archive.lastModified();
+          byte[] garbage = new byte[(int) archive.length()];
+          Arrays.fill(garbage, (byte) '?');
+          Files.write(garbage, archive);
+          assertTrue(archive.setLastModified(lastModified));
+        }
+      }
+
+      node.extract(extracts);
+      for (int i = 0; i < N_ARCHIVES; ++i) {
+        File x = new File(jsGenfiles, "a" + i + "/x.js");
+        File y = new File(jsGenfiles, "a" + i + "/y.js");
+        File z = new File(jsGenfiles, "a" + i + "/z.js");
+        if (i % 2 == 0) {
+          assertEquals("x" + i + "'", read(x));
+          assertFalse(y.exists());
+          assertEquals("z" + i, read(z));
+        } else {
+          assertEquals("x" + i, read(x));
+          assertEquals("y" + i, read(y));
+          assertFalse(z.exists());
+        }
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public static void testLaterArchivesWin() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      File jsGenfiles = new File(dir, "js");
+      PlanContext context = new PlanContext(
+          null, null, null, new SystemStreamLog(), null,
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              jsGenfiles, new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, dir, dir, null);
+      ExtractFiles node = new ExtractFiles(context);
+
+      List<ResolvedExtract> extracts = Lists.newArrayList();
+      for (int i = 0; i < N_ARCHIVES; ++i) {
+        File archive = new File(dir, "a" + i + ".jar");
+        writeArchive(archive, ImmutableMap.of(
+            "src/main/js/shared.js", "from a" + i));
+        extracts.add(new ResolvedExtract(
+            "com.example", "a" + i, "1.0", ImmutableSet.of("js"),
+            ImmutableSet.<SourceFileProperty>of(), archive));
+      }
+
+      File shared = new File(jsGenfiles, "shared.js");
+      node.extract(extracts);
+      assertEquals("from a" + (N_ARCHIVES - 1), read(shared));
+
+      // The last archive is up-to-date when planned, but not once the
+      // changed first archive has been applied.
+      writeArchive(extracts.get(0).archive, ImmutableMap.of(
+          "src/main/js/shared.js", "from a0'"));
+      node.extract(extracts);
+      assertEquals("from a" + (N_ARCHIVES - 1), read(shared));
+
+      node.extract(Lists.reverse(extracts));
+      assertEquals("from a0'", read(shared));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static void writeArchive(File archive, Map<String, String> entries)
+  throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(
+             new FileOutputStream(archive))) {
+      for (Map.Entry<String, String> e : entries.entrySet()) {
+        out.putNextEntry(new ZipEntry(e.getKey()));
+        out.write(e.getValue().getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+  }
+
+  private static String read(File f) throws IOException {
+    return Files.toString(f, Charsets.UTF_8);
+  }
+}
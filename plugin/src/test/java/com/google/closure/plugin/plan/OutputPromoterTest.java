@@ -0,0 +1,76 @@
+package com.google.closure.plugin.plan;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class OutputPromoterTest extends TestCase {
+
+  @Test
+  public static void testPromote() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      OutputPromoter promoter = new OutputPromoter();
+      File out = new File(dir, "a/out.txt");
+
+      assertTrue(promoter.promote("foo".getBytes(Charsets.UTF_8), out));
+      assertEquals("foo", Files.toString(out, Charsets.UTF_8));
+      // Unchanged content is not rewritten.
+      assertFalse(promoter.promote("foo".getBytes(Charsets.UTF_8), out));
+
+      File from = new File(dir, "from.txt");
+      Files.write("bar", from, Charsets.UTF_8);
+      assertTrue(promoter.promote(from, out));
+      assertEquals("bar", Files.toString(out, Charsets.UTF_8));
+      assertFalse(from.exists());
+
+      // A change behind the promoter's back is not masked by its cache.
+      Files.write("baz!", out, Charsets.UTF_8);
+      assertTrue(promoter.promote("bar".getBytes(Charsets.UTF_8), out));
+      assertEquals("bar", Files.toString(out, Charsets.UTF_8));
+
+      // Restored state is trusted.
+      OutputPromoter restored = new OutputPromoter();
+      restored.restore(promoter.getPromotedFiles());
+      assertFalse(restored.promote("bar".getBytes(Charsets.UTF_8), out));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public static void testUnknownOutputsAreComparedByContent()
+  throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      File out = new File(dir, "out.txt");
+      Files.write("foo", out, Charsets.UTF_8);
+      long lastModified = 1000L;
+      assertTrue(out.setLastModified(lastModified));
+
+      // A promoter that did not write out leaves identical content alone.
+      OutputPromoter promoter = new OutputPromoter();
+      assertFalse(promoter.promote("foo".getBytes(Charsets.UTF_8), out));
+      assertEquals(lastModified, out.lastModified());
+      assertTrue(promoter.isUnchangedSincePromoted(out));
+
+      // Same size but different content.
+      assertTrue(promoter.promote("bar".getBytes(Charsets.UTF_8), out));
+      assertEquals("bar", Files.toString(out, Charsets.UTF_8));
+
+      File from = new File(dir, "from.txt");
+      Files.write("bar", from, Charsets.UTF_8);
+      assertFalse(new OutputPromoter().promote(from, out));
+      assertFalse(from.exists());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+}
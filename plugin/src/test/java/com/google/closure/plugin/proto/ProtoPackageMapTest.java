@@ -3,6 +3,7 @@ package com.google.closure.plugin.proto;
 import org.junit.Test;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.closure.plugin.common.CStyleLexer;
 
 import junit.framework.TestCase;
@@ -63,4 +64,18 @@ public final class ProtoPackageMapTest extends TestCase {
             new CStyleLexer("option (foo) = 1;\npackage foo.bar.baz;")));
   }
 
+  @Test
+  public static void testGetImports() {
+    assertEquals(
+        ImmutableList.of("foo/bar.proto", "baz.proto", "boo.proto"),
+        ProtoPackageMap.getImports(
+            new CStyleLexer(
+                "syntax = \"proto3\";\n"
+                + "package foo;\n"
+                + "import \"foo/bar.proto\";\n"
+                + "import public 'baz.proto';\n"
+                + "// import \"commented.proto\";\n"
+                + "import weak \"boo.proto\";\n"
+                + "message M { optional string import = 1; }")));
+  }
 }
@@ -0,0 +1,716 @@
+package com.google.closure.plugin.proto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.junit.Test;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import com.google.closure.plugin.TestLog;
+import com.google.closure.plugin.common.DirectoryScannerSpec;
+import com.google.closure.plugin.common.GenfilesDirs;
+import com.google.closure.plugin.common.ProcessRunner;
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.common.SrcfilesDirs;
+import com.google.closure.plugin.common.TypedFile;
+import com.google.closure.plugin.plan.Hash;
+import com.google.closure.plugin.plan.Metadata;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.closure.plugin.proto.ProtoPackageMap.ProtoFileInfo;
+import com.google.closure.plugin.proto.RunProtoc.BundleCompilation;
+import com.google.closure.plugin.proto.RunProtoc.LangSet;
+import com.google.closure.plugin.proto.RunProtoc.ProtocInvocation;
+import com.google.closure.plugin.proto.RunProtoc.RootSet;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class RunProtocTest extends TestCase {
+
+  /** A process that exits when waited on unless it is hung. */
+  static final class FakeProcess implements Future<Integer> {
+    final FakeProcessRunner runner;
+    final int exitCode;
+    boolean hung;
+    /** How long it was last waited on. */
+    long waitedNanos = -1;
+    boolean exited;
+    boolean cancelled;
+
+    FakeProcess(FakeProcessRunner runner, int exitCode) {
+      this.runner = runner;
+      this.exitCode = exitCode;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (exited || cancelled) { return false; }
+      cancelled = true;
+      --runner.inFlight;
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return exited || cancelled;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException {
+      try {
+        return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex) {
+        throw new AssertionError("Waited forever", ex);
+      }
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit)
+    throws InterruptedException, TimeoutException {
+      waitedNanos = unit.toNanos(timeout);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      if (hung) {
+        throw new TimeoutException();
+      }
+      if (!exited) {
+        exited = true;
+        --runner.inFlight;
+      }
+      return exitCode;
+    }
+  }
+
+  /** Fails the processes whose launch order is listed. */
+  static final class FakeProcessRunner implements ProcessRunner {
+    final ImmutableSet<Integer> failing;
+    final List<FakeProcess> launched = Lists.newArrayList();
+    /** True if launched processes should never exit. */
+    boolean hang;
+    int inFlight;
+    int maxInFlight;
+
+    FakeProcessRunner(Integer... failing) {
+      this.failing = ImmutableSet.copyOf(failing);
+    }
+
+    @Override
+    public Future<Integer> run(
+        Log log, String logPrefix, Iterable<? extends String> argv,
+        OutputReceiver outputReceiver) {
+      FakeProcess p = new FakeProcess(
+          this, failing.contains(launched.size()) ? 1 : 0);
+      p.hung = hang;
+      launched.add(p);
+      maxInFlight = Math.max(maxInFlight, ++inFlight);
+      return p;
+    }
+  }
+
+  private static PlanContext contextFor(ProcessRunner processRunner) {
+    return new PlanContext(
+        processRunner, null, null, new TestLog(), null, null,
+        ImmutableList.<Artifact>of(), null, null, null, null);
+  }
+
+  private static ImmutableList<ProtocInvocation> invocations(int n) {
+    ImmutableList.Builder<ProtocInvocation> b = ImmutableList.builder();
+    for (int i = 0; i < n; ++i) {
+      b.add(invocation("protoc " + i, 60000L));
+    }
+    return b.build();
+  }
+
+  private static ProtocInvocation invocation(String label, long timeout) {
+    return new ProtocInvocation(
+        label, ImmutableList.<Source>of(), 0, timeout,
+        ImmutableList.of("protoc"),
+        null, new File("java"), null, new File("js"),
+        Optional.<File>absent());
+  }
+
+  @Test
+  public static void testConcurrencyIsBounded() throws Exception {
+    int n = 3 * RunProtoc.MAX_CONCURRENT_PROTOC_PROCESSES + 1;
+    FakeProcessRunner runner = new FakeProcessRunner();
+    RunProtoc.runAll(contextFor(runner), invocations(n));
+    assertEquals(n, runner.launched.size());
+    assertEquals(
+        RunProtoc.MAX_CONCURRENT_PROTOC_PROCESSES, runner.maxInFlight);
+    assertEquals(0, runner.inFlight);
+    for (FakeProcess p : runner.launched) {
+      assertTrue(p.exited);
+    }
+  }
+
+  @Test
+  public static void testFailureCancelsTheRest() throws Exception {
+    int n = 3 * RunProtoc.MAX_CONCURRENT_PROTOC_PROCESSES + 1;
+    FakeProcessRunner runner = new FakeProcessRunner(1);
+    try {
+      RunProtoc.runAll(contextFor(runner), invocations(n));
+      fail();
+    } catch (MojoExecutionException ex) {
+      assertTrue(
+          ex.getMessage(),
+          ex.getMessage().startsWith("protoc 1 failed with exit code 1 "));
+    }
+    // Nothing is launched once a failure is seen, so at most one more than
+    // the limit was launched: the one launched after the first was awaited.
+    assertEquals(
+        RunProtoc.MAX_CONCURRENT_PROTOC_PROCESSES + 1,
+        runner.launched.size());
+    assertTrue(
+        runner.maxInFlight <= RunProtoc.MAX_CONCURRENT_PROTOC_PROCESSES);
+    assertEquals(0, runner.inFlight);
+    assertTrue(runner.launched.get(0).exited);
+    assertTrue(runner.launched.get(1).exited);
+    for (FakeProcess p
+         : runner.launched.subList(2, runner.launched.size())) {
+      assertTrue(p.cancelled);
+    }
+  }
+
+  @Test
+  public static void testInterruptIsRestored() throws Exception {
+    FakeProcessRunner runner = new FakeProcessRunner();
+    ProtocInvocation invocation = invocation("protoc", 60000L);
+    invocation.launch(contextFor(runner));
+    Thread.currentThread().interrupt();
+    try {
+      invocation.awaitSuccessfulExit();
+      fail();
+    } catch (MojoExecutionException ex) {
+      assertTrue(ex.getCause() instanceof InterruptedException);
+    }
+    assertTrue(Thread.interrupted());
+  }
+
+  @Test
+  public static void testTimeoutGrowsWithInputs() {
+    assertEquals(30000L, RunProtoc.protocTimeoutMillis(0, 0, 600));
+    // A second per input.
+    assertEquals(33000L, RunProtoc.protocTimeoutMillis(3, 0, 600));
+    // Two seconds per started 16kB.
+    assertEquals(32000L, RunProtoc.protocTimeoutMillis(0, 1, 600));
+    assertEquals(32000L, RunProtoc.protocTimeoutMillis(0, 16384, 600));
+    assertEquals(34000L, RunProtoc.protocTimeoutMillis(0, 16385, 600));
+    assertEquals(
+        30000L + 100 * 1000L + 64 * 2000L,
+        RunProtoc.protocTimeoutMillis(100, 1 << 20, 600));
+  }
+
+  @Test
+  public static void testTimeoutIsClampedToCeiling() {
+    assertEquals(10000L, RunProtoc.protocTimeoutMillis(0, 0, 10));
+    assertEquals(
+        600000L, RunProtoc.protocTimeoutMillis(100000, 1L << 40, 600));
+    // Below the ceiling, the ceiling does not matter.
+    assertEquals(
+        RunProtoc.protocTimeoutMillis(5, 50000, 600),
+        RunProtoc.protocTimeoutMillis(5, 50000, 3600));
+  }
+
+  @Test
+  public static void testTimeoutIsMeasuredFromLaunch() throws Exception {
+    FakeProcessRunner runner = new FakeProcessRunner();
+    runner.hang = true;
+    PlanContext context = contextFor(runner);
+
+    ProtocInvocation invocation = invocation("protoc", 1000L);
+    invocation.launch(context);
+    // As if it waited in the queue behind earlier invocations for 250ms.
+    invocation.launchNanos -= TimeUnit.MILLISECONDS.toNanos(250);
+    try {
+      invocation.awaitSuccessfulExit();
+      fail();
+    } catch (MojoExecutionException ex) {
+      assertTrue(
+          ex.getMessage(),
+          ex.getMessage().startsWith("protoc timed out after 1000ms"));
+    }
+    FakeProcess p = runner.launched.get(0);
+    assertTrue(p.waitedNanos > 0);
+    assertTrue(p.waitedNanos <= TimeUnit.MILLISECONDS.toNanos(750));
+    assertTrue(p.cancelled);
+
+    // Once the deadline has passed, it is not waited on at all.
+    invocation = invocation("protoc", 1000L);
+    invocation.launch(context);
+    invocation.launchNanos -= TimeUnit.MILLISECONDS.toNanos(2000);
+    try {
+      invocation.awaitSuccessfulExit();
+      fail();
+    } catch (MojoExecutionException ex) {
+      assertTrue(ex.getCause() instanceof TimeoutException);
+    }
+    p = runner.launched.get(1);
+    assertEquals(0L, p.waitedNanos);
+    assertTrue(p.cancelled);
+  }
+
+  private static final Pattern IMPORT = Pattern.compile(
+      "^import \"([^\"]+)\";", Pattern.MULTILINE);
+  private static final Pattern MESSAGE = Pattern.compile(
+      "^message (\\w+)", Pattern.MULTILINE);
+
+  /**
+   * Does what protoc would for protos that consist only of imports and empty
+   * messages: writes a Java and JS file per message and, with
+   * --include_imports, a descriptor set.
+   */
+  static final class EmulatedProtoc implements ProcessRunner {
+    /** The import paths of each run's inputs. */
+    final List<ImmutableSet<String>> runs = Lists.newArrayList();
+
+    @Override
+    public Future<Integer> run(
+        Log log, String logPrefix, Iterable<? extends String> argvIt,
+        OutputReceiver outputReceiver) {
+      List<File> protoPath = Lists.newArrayList();
+      List<File> inputs = Lists.newArrayList();
+      File javaOut = null, jsOut = null, descriptorSetOut = null;
+      Iterator<? extends String> argv = argvIt.iterator();
+      argv.next();  // protoc
+      while (argv.hasNext()) {
+        String arg = argv.next();
+        if ("--proto_path".equals(arg)) {
+          protoPath.add(new File(argv.next()));
+        } else if ("--java_out".equals(arg)) {
+          javaOut = new File(argv.next());
+        } else if ("--descriptor_set_out".equals(arg)) {
+          descriptorSetOut = new File(argv.next());
+        } else if (arg.startsWith("--js_out=")) {
+          jsOut = new File(arg.substring(arg.lastIndexOf(':') + 1)
+              .replaceFirst("^--js_out=", ""));
+        } else if (!"--include_imports".equals(arg)) {
+          inputs.add(new File(arg));
+        }
+      }
+      ImmutableSet.Builder<String> run = ImmutableSet.builder();
+      for (File input : inputs) {
+        run.add(importPath(protoPath, input));
+      }
+      runs.add(run.build());
+      try {
+        Map<String, FileDescriptorProto> descriptors =
+            Maps.newLinkedHashMap();
+        for (File input : inputs) {
+          String importPath = importPath(protoPath, input);
+          describe(protoPath, importPath, descriptors);
+          for (DescriptorProto message
+               : descriptors.get(importPath).getMessageTypeList()) {
+            String name = message.getName();
+            String from = "// from " + importPath + "\n";
+            write(new File(javaOut, name + ".java"), from);
+            write(new File(jsOut, name + ".js"), from);
+          }
+        }
+        if (descriptorSetOut != null) {
+          Files.write(
+              FileDescriptorSet.newBuilder()
+                  .addAllFile(descriptors.values())
+                  .build().toByteArray(),
+              descriptorSetOut);
+        }
+      } catch (IOException ex) {
+        outputReceiver.processLine(ex.getMessage());
+        outputReceiver.allProcessed();
+        return Futures.immediateFuture(1);
+      }
+      outputReceiver.allProcessed();
+      return Futures.immediateFuture(0);
+    }
+
+    private static String importPath(List<File> protoPath, File f) {
+      for (File root : protoPath) {
+        String prefix = root.getPath() + File.separator;
+        if (f.getPath().startsWith(prefix)) {
+          return f.getPath().substring(prefix.length())
+              .replace(File.separatorChar, '/');
+        }
+      }
+      throw new AssertionError(f);
+    }
+
+    /** Adds the descriptors of the file and its imports, imports first. */
+    private static void describe(
+        List<File> protoPath, String importPath,
+        Map<String, FileDescriptorProto> descriptors)
+    throws IOException {
+      if (descriptors.containsKey(importPath)) { return; }
+      File f = null;
+      for (File root : protoPath) {
+        File candidate = new File(root, importPath);
+        if (candidate.exists()) {
+          f = candidate;
+          break;
+        }
+      }
+      if (f == null) {
+        throw new IOException(importPath + ": File not found.");
+      }
+      String content = Files.toString(f, Charsets.UTF_8);
+      FileDescriptorProto.Builder fd = FileDescriptorProto.newBuilder()
+          .setName(importPath);
+      Matcher m = IMPORT.matcher(content);
+      while (m.find()) {
+        fd.addDependency(m.group(1));
+        describe(protoPath, m.group(1), descriptors);
+      }
+      m = MESSAGE.matcher(content);
+      while (m.find()) {
+        fd.addMessageType(DescriptorProto.newBuilder().setName(m.group(1)));
+      }
+      descriptors.put(importPath, fd.build());
+    }
+  }
+
+  static final class IncrementalBuildContext extends DefaultBuildContext {
+    @Override
+    public boolean isIncremental() {
+      return true;
+    }
+  }
+
+  /** A tree of protos and the plugin state for compiling them. */
+  static final class Fixture {
+    final File dir;
+    final File root;
+    /** Searched after root. */
+    final File root2;
+    final File descriptorSetFile;
+    final EmulatedProtoc protoc = new EmulatedProtoc();
+    final PlanContext context;
+    final ProtoFinalOptions options;
+    final RunProtoc node;
+
+    Fixture(boolean incremental) throws IOException {
+      this(Files.createTempDir().getCanonicalFile(), incremental);
+    }
+
+    Fixture(File dir, boolean incremental) {
+      this.dir = dir;
+      this.root = new File(dir, "src/main/proto");
+      this.root2 = new File(dir, "src/main/proto2");
+      this.descriptorSetFile = new File(dir, "descriptors.pd");
+      this.context = new PlanContext(
+          protoc, null,
+          incremental ? new IncrementalBuildContext()
+              : new DefaultBuildContext(),
+          new TestLog(),
+          new SrcfilesDirs(
+              dir, ImmutableList.<File>of(), ImmutableList.<File>of()),
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              new File(dir, "js"), new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, dir, dir, null);
+      this.options = new ProtoFinalOptions(
+          "proto",
+          new DirectoryScannerSpec(
+              ImmutableList.of(new TypedFile(root), new TypedFile(root2)),
+              ImmutableList.of("**/*.proto"), ImmutableList.<String>of()),
+          Optional.<String>absent(), Optional.of(new File("protoc")),
+          descriptorSetFile, new File(dir, "test-descriptors.pd"),
+          ImmutableSet.<String>of(), ImmutableSet.<String>of(), 60);
+      this.node = new RunProtoc(context);
+    }
+
+    void write(String relPath, String... lines) throws IOException {
+      write(root, relPath, lines);
+    }
+
+    void write(File r, String relPath, String... lines) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      for (String line : lines) {
+        sb.append(line).append('\n');
+      }
+      RunProtocTest.write(new File(r, relPath), sb.toString());
+    }
+
+    void delete(String relPath) {
+      assertTrue(new File(root, relPath).delete());
+    }
+
+    /**
+     * Compiles all the protos under the roots as one bundle.
+     * @return the import paths of each protoc run's inputs.
+     */
+    List<ImmutableSet<String>> compile() throws Exception {
+      List<Source> sources = Lists.newArrayList();
+      Map<Source, Metadata<ProtoFileInfo>> protoFiles = Maps.newTreeMap();
+      for (File r : ImmutableList.of(root, root2)) {
+        for (File f : Files.fileTreeTraverser().preOrderTraversal(r)) {
+          if (!f.isFile()) { continue; }
+          String relPath = f.getPath().substring(r.getPath().length() + 1);
+          Source s = new Source(f, new TypedFile(r), new File(relPath));
+          String content = Files.toString(f, Charsets.UTF_8);
+          ImmutableList.Builder<String> imports = ImmutableList.builder();
+          Matcher m = IMPORT.matcher(content);
+          while (m.find()) {
+            imports.add(m.group(1));
+          }
+          sources.add(s);
+          protoFiles.put(s, new Metadata<>(
+              Hash.hashString(content),
+              new ProtoFileInfo(
+                  Optional.<String>absent(), imports.build())));
+        }
+      }
+      ProtoBundle bundle = new ProtoBundle(
+          RootSet.MAIN, LangSet.ALL,
+          ImmutableList.copyOf(Sets.newTreeSet(sources)),
+          Optional.of(descriptorSetFile));
+
+      int nRuns = protoc.runs.size();
+      BundleCompilation compilation = node.prepare(
+          options, bundle, new ProtoPackageMap(protoFiles));
+      try {
+        RunProtoc.runAll(context, compilation.invocations);
+        node.mergeOutputs(compilation);
+      } finally {
+        for (ProtocInvocation invocation : compilation.invocations) {
+          invocation.deleteTempFiles();
+        }
+      }
+      for (ProtocInvocation invocation : compilation.invocations) {
+        assertFalse(invocation.javaTempDir.exists());
+        assertFalse(invocation.jsTempDir.exists());
+        assertFalse(invocation.descriptorSetTempFile.get().exists());
+      }
+      return ImmutableList.copyOf(
+          protoc.runs.subList(nRuns, protoc.runs.size()));
+    }
+
+    File javaOut(String name) {
+      return new File(context.genfilesDirs.javaGenfiles, name + ".java");
+    }
+
+    File jsOut(String name) {
+      return new File(context.genfilesDirs.jsGenfiles, name + ".js");
+    }
+
+    /** The descriptor set from compiling the current tree from scratch. */
+    byte[] descriptorSetFromScratch() throws Exception {
+      File scratch = Files.createTempDir().getCanonicalFile();
+      try {
+        Fixture full = new Fixture(scratch, false);
+        FileUtils.copyDirectory(root, full.root);
+        if (root2.exists()) {
+          FileUtils.copyDirectory(root2, full.root2);
+        }
+        full.compile();
+        return Files.toByteArray(full.descriptorSetFile);
+      } finally {
+        FileUtils.deleteDirectory(scratch);
+      }
+    }
+  }
+
+  static void write(File f, String content) throws IOException {
+    Files.createParentDirs(f);
+    Files.write(content, f, Charsets.UTF_8);
+  }
+
+  private static ImmutableSet<String> paths(String... paths) {
+    return ImmutableSet.copyOf(paths);
+  }
+
+  @Test
+  public static void testEditedImportDirtiesImporters() throws Exception {
+    Fixture f = new Fixture(true);
+    try {
+      f.write("a.proto", "import \"b.proto\";", "message A {}");
+      f.write("b.proto", "import \"c.proto\";", "message B {}");
+      f.write("c.proto", "message C {}");
+      f.write("d.proto", "message D {}");
+      assertEquals(
+          ImmutableList.of(
+              paths("a.proto", "b.proto", "c.proto", "d.proto")),
+          f.compile());
+      assertTrue(f.javaOut("A").exists());
+      assertTrue(f.jsOut("D").exists());
+
+      // Nothing changed.
+      assertEquals(ImmutableList.of(), f.compile());
+
+      // c.proto is imported directly by b.proto and transitively by a.proto.
+      f.write("c.proto", "message C {}", "message C2 {}");
+      Set<ImmutableSet<String>> runs = Sets.newHashSet(f.compile());
+      assertEquals(
+          ImmutableSet.of(
+              paths("a.proto"), paths("b.proto"), paths("c.proto")),
+          runs);
+      assertTrue(f.javaOut("C2").exists());
+      assertDescriptorSet(
+          f.descriptorSetFromScratch(), Files.toByteArray(f.descriptorSetFile));
+    } finally {
+      FileUtils.deleteDirectory(f.dir);
+    }
+  }
+
+  @Test
+  public static void testRemovedFileDirtiesFilesThatResolvedThroughIt()
+  throws Exception {
+    Fixture f = new Fixture(true);
+    try {
+      f.write("a.proto", "import \"b.proto\";", "message A {}");
+      f.write("b.proto", "message B {}");
+      // Masked by b.proto under the first root.
+      f.write(f.root2, "b.proto", "message B2 {}");
+      f.write("c.proto", "message C {}");
+      f.compile();
+      // Recompile separately so that each input claims only its own outputs.
+      f.write("a.proto", "import \"b.proto\";", "message A {}", "");
+      f.write("b.proto", "message B {}", "");
+      f.write(f.root2, "b.proto", "message B2 {}", "");
+      f.write("c.proto", "message C {}", "");
+      assertEquals(4, f.compile().size());
+      assertTrue(f.javaOut("B").exists());
+
+      // a.proto did not change, but its import now resolves elsewhere.
+      f.delete("b.proto");
+      assertEquals(
+          ImmutableSet.of(paths("a.proto"), paths("b.proto")),
+          ImmutableSet.copyOf(f.compile()));
+      assertFalse(f.javaOut("B").exists());
+      assertFalse(f.jsOut("B").exists());
+      assertTrue(f.javaOut("B2").exists());
+      assertTrue(f.javaOut("A").exists());
+      assertTrue(f.javaOut("C").exists());
+      assertDescriptorSet(
+          f.descriptorSetFromScratch(), Files.toByteArray(f.descriptorSetFile));
+
+      // Once a.proto's import does not resolve at all, protoc has to be
+      // rerun to report it.
+      assertTrue(new File(f.root2, "b.proto").delete());
+      try {
+        f.compile();
+        fail();
+      } catch (MojoExecutionException ex) {
+        assertTrue(
+            ex.getMessage(),
+            ex.getMessage().startsWith("protoc MAIN/ALL failed"));
+      }
+      assertEquals(paths("a.proto"), Iterables.getLast(f.protoc.runs));
+    } finally {
+      FileUtils.deleteDirectory(f.dir);
+    }
+  }
+
+  @Test
+  public static void testSharedOutputsKeptUntilUnclaimed() throws Exception {
+    Fixture f = new Fixture(true);
+    try {
+      f.write("a.proto", "message A {}");
+      f.write("b.proto", "message B {}");
+      f.write("c.proto", "message C {}");
+      // The first run compiles all inputs together, so each input is
+      // credited with every output.
+      assertEquals(
+          ImmutableList.of(paths("a.proto", "b.proto", "c.proto")),
+          f.compile());
+
+      // A.java is still claimed by b.proto and c.proto.
+      f.delete("a.proto");
+      assertEquals(ImmutableList.of(), f.compile());
+      assertTrue(f.javaOut("A").exists());
+
+      // Recompiling b.proto alone narrows its claim, but c.proto still
+      // claims A.java.
+      f.write("b.proto", "message B {}", "");
+      assertEquals(ImmutableList.of(paths("b.proto")), f.compile());
+      assertTrue(f.javaOut("A").exists());
+      assertTrue(f.javaOut("B").exists());
+
+      // Once nothing claims them, A's outputs are deleted.
+      f.write("c.proto", "message C {}", "");
+      assertEquals(ImmutableList.of(paths("c.proto")), f.compile());
+      assertFalse(f.javaOut("A").exists());
+      assertFalse(f.jsOut("A").exists());
+      assertTrue(f.javaOut("B").exists());
+      assertTrue(f.javaOut("C").exists());
+      assertDescriptorSet(
+          f.descriptorSetFromScratch(), Files.toByteArray(f.descriptorSetFile));
+    } finally {
+      FileUtils.deleteDirectory(f.dir);
+    }
+  }
+
+  @Test
+  public static void testMergedDescriptorSetMatchesFullRun() throws Exception {
+    Fixture f = new Fixture(true);
+    try {
+      f.write("x/a.proto", "import \"x/b.proto\";", "message A {}");
+      f.write("x/b.proto", "import \"y/c.proto\";", "message B {}");
+      f.write("y/c.proto", "message C {}");
+      f.write("y/d.proto", "import \"y/c.proto\";", "message D {}");
+      f.compile();
+      assertDescriptorSet(
+          f.descriptorSetFromScratch(), Files.toByteArray(f.descriptorSetFile));
+
+      f.write("y/d.proto", "message D {}", "message D2 {}");
+      assertEquals(ImmutableList.of(paths("y/d.proto")), f.compile());
+      byte[] merged = Files.toByteArray(f.descriptorSetFile);
+      assertDescriptorSet(f.descriptorSetFromScratch(), merged);
+      // Dependencies come before their dependents.
+      List<String> names = Lists.newArrayList();
+      for (FileDescriptorProto fd
+           : FileDescriptorSet.parseFrom(merged).getFileList()) {
+        for (String dep : fd.getDependencyList()) {
+          assertTrue(dep, names.contains(dep));
+        }
+        names.add(fd.getName());
+      }
+      assertEquals(
+          ImmutableSet.of("x/a.proto", "x/b.proto", "y/c.proto", "y/d.proto"),
+          ImmutableSet.copyOf(names));
+    } finally {
+      FileUtils.deleteDirectory(f.dir);
+    }
+  }
+
+  private static void assertDescriptorSet(byte[] want, byte[] got)
+  throws IOException {
+    // Compare text so that failures show a readable diff.
+    assertEquals(
+        FileDescriptorSet.parseFrom(want).toString(),
+        FileDescriptorSet.parseFrom(got).toString());
+  }
+}
@@ -0,0 +1,262 @@
+package com.google.closure.plugin.soy;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.common.TypedFile;
+import com.google.closure.plugin.plan.Hash;
+import com.google.closure.plugin.plan.Metadata;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SoyDependenciesTest extends TestCase {
+
+  private static final TypedFile ROOT = new TypedFile(new File("/src/soy"));
+
+  /** Soy sources by path relative to ROOT. */
+  static final class Tree {
+    private final Map<String, String> contentByPath = Maps.newTreeMap();
+
+    Tree put(String relPath, String... lines) {
+      contentByPath.put(relPath, Joiner.on('\n').join(lines));
+      return this;
+    }
+
+    Tree remove(String relPath) {
+      assertNotNull(contentByPath.remove(relPath));
+      return this;
+    }
+
+    Tree copy() {
+      Tree t = new Tree();
+      t.contentByPath.putAll(contentByPath);
+      return t;
+    }
+
+    ImmutableMap<Source, Metadata<SoyFileInfo>> current() {
+      ImmutableMap.Builder<Source, Metadata<SoyFileInfo>> b =
+          ImmutableMap.builder();
+      for (Map.Entry<String, String> e : contentByPath.entrySet()) {
+        b.put(source(e.getKey()), metadata(e.getValue()));
+      }
+      return b.build();
+    }
+
+    /** As recorded after compiling this tree. */
+    ImmutableMap<File, Metadata<SoyFileInfo>> previous() {
+      ImmutableMap.Builder<File, Metadata<SoyFileInfo>> b =
+          ImmutableMap.builder();
+      for (Map.Entry<String, String> e : contentByPath.entrySet()) {
+        b.put(source(e.getKey()).canonicalPath, metadata(e.getValue()));
+      }
+      return b.build();
+    }
+
+    private static Metadata<SoyFileInfo> metadata(String content) {
+      return new Metadata<>(
+          Hash.hashString(content), SoyFileInfo.of(content));
+    }
+  }
+
+  static Source source(String relPath) {
+    return new Source(new File(ROOT.f, relPath), ROOT, new File(relPath));
+  }
+
+  static ImmutableSet<Source> sources(String... relPaths) {
+    ImmutableSet.Builder<Source> b = ImmutableSet.builder();
+    for (String relPath : relPaths) {
+      b.add(source(relPath));
+    }
+    return b.build();
+  }
+
+  private static ImmutableSet<Source> recompile(
+      Tree before, Tree after, boolean typesChanged) {
+    return SoyDependencies.sourcesToRecompile(
+        after.current(), before.previous(), typesChanged);
+  }
+
+  /** a calls b which calls c.  d stands alone. */
+  static Tree chain() {
+    return new Tree()
+        .put("a.soy",
+            "{namespace a}",
+            "{template .main}{call b.mid /}{/template}")
+        .put("b.soy",
+            "{namespace b}",
+            "{template .mid}{call c.leaf /}{/template}")
+        .put("c.soy",
+            "{namespace c}",
+            "{template .leaf}leaf{/template}")
+        .put("d.soy",
+            "{namespace d}",
+            "{template .alone}alone{/template}");
+  }
+
+  @Test
+  public static void testNothingChanged() {
+    Tree t = chain();
+    assertEquals(ImmutableSet.of(), recompile(t, t, false));
+  }
+
+  @Test
+  public static void testFirstCompile() {
+    assertEquals(
+        sources("a.soy", "b.soy", "c.soy", "d.soy"),
+        recompile(new Tree(), chain(), false));
+  }
+
+  @Test
+  public static void testTransitiveCallers() {
+    Tree before = chain();
+    Tree after = before.copy()
+        .put("c.soy",
+            "{namespace c}",
+            "{template .leaf}changed{/template}");
+    assertEquals(
+        sources("a.soy", "b.soy", "c.soy"), recompile(before, after, false));
+
+    after = before.copy()
+        .put("b.soy",
+            "{namespace b}",
+            "{template .mid}{call c.leaf /} changed{/template}");
+    assertEquals(sources("a.soy", "b.soy"), recompile(before, after, false));
+  }
+
+  @Test
+  public static void testCallersOfRemovedTemplate() {
+    Tree before = chain();
+    // b still calls c.leaf which no longer exists, so it has to be
+    // recompiled to report that.
+    Tree after = before.copy()
+        .put("c.soy",
+            "{namespace c}",
+            "{template .renamed}leaf{/template}");
+    assertEquals(
+        sources("a.soy", "b.soy", "c.soy"), recompile(before, after, false));
+  }
+
+  @Test
+  public static void testCallersOfMovedTemplate() {
+    Tree before = chain();
+    // c.leaf moves to a new file.
+    Tree after = before.copy()
+        .put("c.soy",
+            "{namespace c}",
+            "{template .other}other{/template}")
+        .put("e.soy",
+            "{namespace c}",
+            "{template .leaf}leaf{/template}");
+    assertEquals(
+        sources("a.soy", "b.soy", "c.soy", "e.soy"),
+        recompile(before, after, false));
+  }
+
+  @Test
+  public static void testCallersOfNewTemplate() {
+    Tree before = chain()
+        .put("e.soy",
+            "{namespace e}",
+            "{template .main}{call f.missing /}{/template}");
+    // Defining a template that was missing fixes its callers.
+    Tree after = before.copy()
+        .put("f.soy",
+            "{namespace f}",
+            "{template .missing}found{/template}");
+    assertEquals(sources("e.soy", "f.soy"), recompile(before, after, false));
+  }
+
+  @Test
+  public static void testDelTemplatePropagation() {
+    Tree before = new Tree()
+        .put("impl.soy",
+            "{namespace impl}",
+            "{deltemplate my.widget}widget{/deltemplate}")
+        .put("user.soy",
+            "{namespace user}",
+            "{template .page}{delcall my.widget /}{/template}")
+        .put("outer.soy",
+            "{namespace outer}",
+            "{template .main}{call user.page /}{/template}")
+        .put("other.soy",
+            "{namespace other}",
+            "{template .main}{delcall other.widget /}{/template}");
+    Tree after = before.copy()
+        .put("impl.soy",
+            "{namespace impl}",
+            "{deltemplate my.widget}changed{/deltemplate}");
+    assertEquals(
+        sources("impl.soy", "outer.soy", "user.soy"),
+        recompile(before, after, false));
+
+    // A new implementation affects delcallers too.
+    after = before.copy()
+        .put("impl2.soy",
+            "{namespace impl2}",
+            "{deltemplate my.widget}another{/deltemplate}");
+    assertEquals(
+        sources("impl2.soy", "outer.soy", "user.soy"),
+        recompile(before, after, false));
+
+    // Changing a delcaller does not recompile the implementation.
+    after = before.copy()
+        .put("user.soy",
+            "{namespace user}",
+            "{template .page}{delcall my.widget /} changed{/template}");
+    assertEquals(
+        sources("outer.soy", "user.soy"), recompile(before, after, false));
+  }
+
+  @Test
+  public static void testTypesChanged() {
+    Tree t = new Tree()
+        .put("typed.soy",
+            "{namespace typed}",
+            "{template .main}",
+            "  {@param p: foo.Proto}",
+            "  {$p.name}",
+            "{/template}")
+        .put("caller.soy",
+            "{namespace caller}",
+            "{template .main}{call typed.main data=\"all\" /}{/template}")
+        .put("untyped.soy",
+            "{namespace untyped}",
+            "{template .main}",
+            "  {@param s: string}",
+            "  {$s}",
+            "{/template}");
+    assertEquals(ImmutableSet.of(), recompile(t, t, false));
+    assertEquals(
+        sources("caller.soy", "typed.soy"), recompile(t, t, true));
+  }
+
+  @Test
+  public static void testDeletedSources() {
+    Tree before = chain();
+    Tree after = before.copy().remove("c.soy");
+    assertEquals(sources("a.soy", "b.soy"), recompile(before, after, false));
+
+    // Nothing refers to d.
+    after = before.copy().remove("d.soy");
+    assertEquals(ImmutableSet.of(), recompile(before, after, false));
+
+    // Deleting the only implementation of a deltemplate.
+    before = new Tree()
+        .put("impl.soy",
+            "{namespace impl}",
+            "{deltemplate my.widget}widget{/deltemplate}")
+        .put("user.soy",
+            "{namespace user}",
+            "{template .page}{delcall my.widget /}{/template}");
+    after = before.copy().remove("impl.soy");
+    assertEquals(sources("user.soy"), recompile(before, after, false));
+  }
+}
@@ -0,0 +1,81 @@
+package com.google.closure.plugin.soy;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SoyFileInfoTest extends TestCase {
+
+  @Test
+  public static void testOf() {
+    SoyFileInfo info = SoyFileInfo.of(Joiner.on('\n').join(
+        "{namespace foo.bar}",
+        "{alias baz.boo}",
+        "{alias far.faz as f}",
+        "",
+        "/** @param x */",
+        "{template .main}",
+        "  {@param p: foo.Proto}",
+        "  {@inject? q: list<baz.Enum>}",
+        "  {call .helper /}",
+        "  {call boo.other /}",
+        "  {call f.thing /}",
+        "  {delcall my.del /}",
+        "  // {call .commentedOut /}",
+        "  http://example.com/",
+        "{/template}",
+        "",
+        "{template .helper}",
+        "  /* {call .alsoCommentedOut /} */",
+        "{/template}",
+        "",
+        "{deltemplate my.del}",
+        "{/deltemplate}"));
+    assertEquals("foo.bar", info.namespace);
+    assertEquals(
+        ImmutableSet.of("foo.bar.main", "foo.bar.helper"), info.templates);
+    assertEquals(ImmutableSet.of("my.del"), info.delTemplates);
+    assertEquals(
+        ImmutableSet.of("foo.bar.helper", "baz.boo.other", "far.faz.thing"),
+        info.calls);
+    assertEquals(ImmutableSet.of("my.del"), info.delCalls);
+    assertEquals(ImmutableSet.of("foo.Proto", "baz.Enum"), info.typeNames);
+  }
+
+  @Test
+  public static void testCallGraph() {
+    ImmutableSetMultimap<String, String> graph = SoyFileInfo.callGraph(
+        Joiner.on('\n').join(
+            "{namespace foo.bar}",
+            "{alias far.faz as f}",
+            "",
+            "{template .main}",
+            "  {call .helper /}",
+            "  {call f.thing}{param x: 1 /}{/call}",
+            "  // {call .commentedOut /}",
+            "{/template}",
+            "",
+            "{template .helper}",
+            "  {delcall my.del /}",
+            "{/template}",
+            "",
+            "{template .leaf}",
+            "{/template}",
+            "",
+            "{deltemplate my.del}",
+            "  {call .leaf /}",
+            "{/deltemplate}"));
+    assertEquals(
+        ImmutableSetMultimap.builder()
+            .putAll("foo.bar.main", "foo.bar.helper", "far.faz.thing")
+            .put("foo.bar.helper", "my.del")
+            .put("my.del", "foo.bar.leaf")
+            .build(),
+        graph);
+  }
+}
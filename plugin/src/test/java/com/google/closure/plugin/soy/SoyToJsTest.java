@@ -0,0 +1,389 @@
+package com.google.closure.plugin.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Test;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import com.google.closure.plugin.TestLog;
+import com.google.closure.plugin.common.GenfilesDirs;
+import com.google.closure.plugin.common.Sources.Source;
+import com.google.closure.plugin.common.SrcfilesDirs;
+import com.google.closure.plugin.common.TypedFile;
+import com.google.closure.plugin.plan.Hash;
+import com.google.closure.plugin.plan.Metadata;
+import com.google.closure.plugin.plan.OptionPlanGraphNode.OptionsAndInputs;
+import com.google.closure.plugin.plan.PlanContext;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.msgs.restricted.SoyMsg;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SoyToJsTest extends TestCase {
+
+  static final class IncrementalBuildContext extends DefaultBuildContext {
+    @Override
+    public boolean isIncremental() {
+      return true;
+    }
+  }
+
+  static final String GREETING = Joiner.on('\n').join(
+      "{namespace greet}",
+      "{template .hello}",
+      "  {msg desc=\"greeting\"}Hello{/msg}",
+      "{/template}");
+
+  /** Soy sources and translations and the plugin state for compiling them. */
+  static final class Fixture {
+    final File dir;
+    final File root;
+    final File jsOut;
+    final File classes;
+    final ImmutableList<Js> jsVariants;
+    SoyOptions options;
+    PlanContext context;
+    SoyToJs jsNode;
+    SoyToJava javaNode;
+
+    Fixture(Js... jsVariants) throws IOException {
+      this.dir = Files.createTempDir().getCanonicalFile();
+      this.root = new File(dir, "src/main/soy");
+      this.jsOut = new File(dir, "js");
+      this.classes = new File(dir, "classes");
+      this.jsVariants = ImmutableList.copyOf(jsVariants);
+      setTranslations();
+      newRun();
+    }
+
+    void setTranslations(File... translations) {
+      options = new SoyOptions();
+      options.id = "soy";
+      for (Js js : jsVariants) {
+        options.setJs(js);
+      }
+      for (File translation : translations) {
+        options.setTranslation(translation);
+      }
+    }
+
+    /** Starts a new incremental build that sees what earlier runs did. */
+    void newRun() {
+      this.context = new PlanContext(
+          null, null, new IncrementalBuildContext(), new TestLog(),
+          new SrcfilesDirs(
+              dir, ImmutableList.<File>of(), ImmutableList.<File>of()),
+          new GenfilesDirs(
+              dir, new File(dir, "java"), new File(dir, "java-test"),
+              jsOut, new File(dir, "js-test")),
+          ImmutableList.<Artifact>of(), dir, classes, dir, null);
+      // Never written, so Soy compiles without proto types.
+      context.protoIO.setMainDescriptorSetFile(
+          new File(dir, "descriptors.pd"));
+      if (jsNode == null) {
+        jsNode = new SoyToJs(context);
+        javaNode = new SoyToJava(context, "");
+      } else {
+        jsNode = reconstitute(jsNode);
+        javaNode = reconstitute(javaNode);
+      }
+    }
+
+    /** Forgets what the JS backend compiled as if it had never run. */
+    void forgetJs() {
+      jsNode = new SoyToJs(context);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <N extends SoyToJs> N reconstitute(N node) {
+      node.optionsAndBundles = Optional.absent();
+      return (N) node.getStateVector().reconstitute(context, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <N extends SoyToJava> N reconstitute(N node) {
+      node.optionsAndBundles = Optional.absent();
+      return (N) node.getStateVector().reconstitute(context, null);
+    }
+
+    void write(String relPath, String... lines) throws IOException {
+      File f = new File(root, relPath);
+      Files.createParentDirs(f);
+      Files.write(Joiner.on('\n').join(lines), f, Charsets.UTF_8);
+    }
+
+    /**
+     * Writes an XLIFF file that translates the greeting.
+     *
+     * @param locale null to omit the target language.
+     */
+    File writeTranslation(String name, String locale, String greeting)
+    throws IOException {
+      SoyFileSet sfs = SoyFileSet.builder().add(GREETING, "greet.soy").build();
+      Iterator<SoyMsg> msgs = sfs.extractMsgs().iterator();
+      long msgId = msgs.next().getId();
+      assertFalse(msgs.hasNext());
+
+      File f = new File(dir, name);
+      Files.write(
+          Joiner.on('\n').join(
+              "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+              "<xliff version=\"1.2\""
+              + " xmlns=\"urn:oasis:names:tc:xliff:document:1.2\">",
+              "<file original=\"SoyMsgBundle\" datatype=\"x-soy-msg\""
+              + " xml:space=\"preserve\" source-language=\"en\""
+              + (locale != null ? " target-language=\"" + locale + "\"" : "")
+              + ">",
+              "<body>",
+              "<trans-unit id=\"" + msgId + "\" datatype=\"html\">",
+              "<source>Hello</source>",
+              "<target>" + greeting + "</target>",
+              "</trans-unit>",
+              "</body>",
+              "</file>",
+              "</xliff>"),
+          f, Charsets.UTF_8);
+      return f;
+    }
+
+    /** A bundle of the named sources as the bundler would produce it. */
+    SoyBundle bundle(String... relPaths) throws IOException {
+      TypedFile typedRoot = new TypedFile(root);
+      ImmutableList.Builder<Source> sources = ImmutableList.builder();
+      ImmutableMap.Builder<Source, Metadata<SoyFileInfo>> fileInfo =
+          ImmutableMap.builder();
+      for (String relPath : relPaths) {
+        Source s = new Source(
+            new File(root, relPath), typedRoot, new File(relPath));
+        String content = Files.toString(s.canonicalPath, Charsets.UTF_8);
+        sources.add(s);
+        fileInfo.put(s, new Metadata<>(
+            Hash.hashString(content), SoyFileInfo.of(content)));
+      }
+      SoyFileSetSupplier sfsSupplier = new SoyFileSetSupplier(
+          new OptionsAndInputs<>(options, sources.build()));
+      sfsSupplier.init(context);
+      return new SoyBundle(
+          sources.build(), fileInfo.build(), sfsSupplier,
+          new File(dir, "closure-templates-soy.jar"), jsOut);
+    }
+
+    File js(String relPath) {
+      return new File(jsOut, relPath);
+    }
+
+    String read(String relPath) throws IOException {
+      return Files.toString(js(relPath), Charsets.UTF_8);
+    }
+
+    /**
+     * Overwrites an output so that we can tell whether a later compile
+     * regenerates it.
+     */
+    void stale(String relPath) throws IOException {
+      Files.write("stale", js(relPath), Charsets.UTF_8);
+    }
+
+    void delete() throws IOException {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static Js js(String id) {
+    Js js = new Js();
+    js.id = id;
+    return js;
+  }
+
+  @Test
+  public static void testJavaCompileHandoff() throws Exception {
+    Fixture f = new Fixture(js("js"));
+    try {
+      f.write("greet.soy", GREETING);
+      SoyBundle bundle = f.bundle("greet.soy");
+
+      // The JS backend starts the Java compile and the Java backend uses
+      // the result instead of compiling again.
+      f.jsNode.processOne(f.options, bundle);
+      Future<SoyFileSetSupplier.JavaBytecode> started =
+          bundle.sfsSupplier.getStartedJavaCompile().get();
+      assertSame(started, bundle.sfsSupplier.getJavaBytecode(f.context));
+      f.javaNode.processOne(f.options, bundle);
+      assertTrue(started.isDone());
+      assertTrue(f.js("greet_js.js").exists());
+      assertFalse(
+          FileUtils.listFiles(f.classes, new String[] { "class" }, true)
+          .isEmpty());
+
+      // Nothing to compile, so nothing is started.
+      f.newRun();
+      bundle = f.bundle("greet.soy");
+      f.jsNode.processOne(f.options, bundle);
+      assertFalse(bundle.sfsSupplier.getStartedJavaCompile().isPresent());
+      f.javaNode.processOne(f.options, bundle);
+      assertFalse(bundle.sfsSupplier.getStartedJavaCompile().isPresent());
+    } finally {
+      f.delete();
+    }
+  }
+
+  @Test
+  public static void testSkippedJavaCompileIsCancelled() throws Exception {
+    Fixture f = new Fixture(js("js"));
+    try {
+      f.write("greet.soy", GREETING);
+      SoyBundle bundle = f.bundle("greet.soy");
+      f.jsNode.processOne(f.options, bundle);
+      f.javaNode.processOne(f.options, bundle);
+
+      // The JS backend recompiles everything, but the Java backend knows
+      // that no source changed.
+      f.newRun();
+      f.forgetJs();
+      bundle = f.bundle("greet.soy");
+      f.jsNode.processOne(f.options, bundle);
+      Future<SoyFileSetSupplier.JavaBytecode> started =
+          bundle.sfsSupplier.getStartedJavaCompile().get();
+      f.javaNode.processOne(f.options, bundle);
+      assertTrue(started.isDone());
+      assertFalse(bundle.sfsSupplier.getStartedJavaCompile().isPresent());
+    } finally {
+      f.delete();
+    }
+  }
+
+  @Test
+  public static void testFailedJsCompileCancelsJavaCompile()
+  throws Exception {
+    Fixture f = new Fixture(js("js"));
+    try {
+      f.write("greet.soy", GREETING);
+      f.write(
+          "broken.soy",
+          "{namespace broken}",
+          "{template .main}{call .missing /}{/template}");
+      SoyBundle bundle = f.bundle("greet.soy", "broken.soy");
+      try {
+        f.jsNode.processOne(f.options, bundle);
+        fail();
+      } catch (RuntimeException ex) {
+        // Soy reports compile errors via unchecked exceptions.
+      }
+      assertFalse(bundle.sfsSupplier.getStartedJavaCompile().isPresent());
+
+      // Likewise when a translation, loaded concurrently, is bad.
+      f.setTranslations(f.writeTranslation("fr.xlf", null, "Salut"));
+      f.newRun();
+      bundle = f.bundle("greet.soy");
+      try {
+        f.jsNode.processOne(f.options, bundle);
+        fail();
+      } catch (MojoExecutionException ex) {
+        // Expected
+      }
+      assertFalse(bundle.sfsSupplier.getStartedJavaCompile().isPresent());
+    } finally {
+      f.delete();
+    }
+  }
+
+  @Test
+  public static void testVariantsCompiledConcurrently() throws Exception {
+    Js withJsdoc = js("a");
+    Js withoutJsdoc = js("b");
+    withoutJsdoc.shouldGenerateJsdoc = false;
+    Fixture f = new Fixture(withJsdoc, withoutJsdoc);
+    try {
+      f.write("greet.soy", GREETING);
+      f.setTranslations(
+          f.writeTranslation("fr.xlf", "fr", "Salut"),
+          f.writeTranslation("de.xlf", "de-CH", "Gruezi"));
+      // Six variants and two translations to load.
+      SoyBundle bundle = f.bundle("greet.soy");
+      f.jsNode.processOne(f.options, bundle);
+
+      for (String id : new String[] { "a", "b" }) {
+        String untranslated = f.read("greet_" + id + ".js");
+        String fr = f.read("greet_" + id + "_fr.js");
+        String de = f.read("greet_" + id + "_de_ch.js");
+        assertTrue(untranslated, untranslated.contains("Hello"));
+        assertTrue(fr, fr.contains("Salut"));
+        assertFalse(fr, fr.contains("Hello"));
+        assertTrue(de, de.contains("Gruezi"));
+        boolean jsdoc = "a".equals(id);
+        assertEquals(untranslated, jsdoc, untranslated.contains("@param"));
+        assertEquals(fr, jsdoc, fr.contains("@param"));
+      }
+      assertEquals(
+          ImmutableList.of(
+              "greet_a.js", "greet_a_de_ch.js", "greet_a_fr.js",
+              "greet_b.js", "greet_b_de_ch.js", "greet_b_fr.js"),
+          ImmutableList.copyOf(Sets.newTreeSet(Arrays.asList(f.jsOut.list()))));
+    } finally {
+      f.delete();
+    }
+  }
+
+  @Test
+  public static void testIncrementalTranslations() throws Exception {
+    Fixture f = new Fixture(js("js"));
+    try {
+      f.write("greet.soy", GREETING);
+      File fr = f.writeTranslation("fr.xlf", "fr", "Salut");
+      File de = f.writeTranslation("de.xlf", "de", "Hallo");
+      f.setTranslations(fr, de);
+      f.jsNode.processOne(f.options, f.bundle("greet.soy"));
+      assertTrue(f.read("greet_js_fr.js").contains("Salut"));
+      assertTrue(f.read("greet_js_de.js").contains("Hallo"));
+
+      // Only the changed translation's outputs are regenerated.  Those of
+      // the unchanged translation and the untranslated outputs are reused.
+      f.stale("greet_js.js");
+      f.stale("greet_js_fr.js");
+      f.stale("greet_js_de.js");
+      f.writeTranslation("fr.xlf", "fr", "Coucou");
+      f.newRun();
+      f.jsNode.processOne(f.options, f.bundle("greet.soy"));
+      assertTrue(f.read("greet_js_fr.js").contains("Coucou"));
+      assertEquals("stale", f.read("greet_js.js"));
+      assertEquals("stale", f.read("greet_js_de.js"));
+
+      // A translation whose locale changed moves its outputs.
+      f.writeTranslation("de.xlf", "de-AT", "Servus");
+      f.newRun();
+      f.jsNode.processOne(f.options, f.bundle("greet.soy"));
+      assertFalse(f.js("greet_js_de.js").exists());
+      assertTrue(f.read("greet_js_de_at.js").contains("Servus"));
+      assertEquals("stale", f.read("greet_js.js"));
+      assertTrue(f.read("greet_js_fr.js").contains("Coucou"));
+
+      // Removing a translation deletes its outputs and leaves the others.
+      f.setTranslations(fr);
+      f.newRun();
+      f.jsNode.processOne(f.options, f.bundle("greet.soy"));
+      assertFalse(f.js("greet_js_de_at.js").exists());
+      assertTrue(f.read("greet_js_fr.js").contains("Coucou"));
+      assertTrue(f.read("greet_js.js").contains("Hello"));
+      assertEquals(
+          ImmutableList.of("greet_js.js", "greet_js_fr.js"),
+          ImmutableList.copyOf(Sets.newTreeSet(Arrays.asList(f.jsOut.list()))));
+    } finally {
+      f.delete();
+    }
+  }
+}